@@ -2,13 +2,20 @@ package core;
 
 import helpers.UtilFuncs;
 
-import org.apache.commons.math3.linear.RealVector;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
 
 import defs.Dataset;
+import defs.FactorMatrix;
 import defs.Hypers;
 import defs.Params;
 import defs.SocBIT_Params;
+import defs.SparseRatings;
 
+/**
+ * STE with brands: r_{u,i} = p_u * c_u . theta_i + (1 - p_u) * b_u . beta_i, where b_u mixes the brand feats of u and
+ * of its trusters as c_u does for topics (see {@link STE_Cal}), and only brands producing i are in b_u . beta_i
+ */
 class BrandSTE_Cal extends STE_Cal {
 	
 	public BrandSTE_Cal(Dataset ds, Hypers hypers) {
@@ -31,7 +38,6 @@ class BrandSTE_Cal extends STE_Cal {
 
 	private double regDecPref(SocBIT_Params params) {
 		
-//		SocBIT_Params castParams = (SocBIT_Params) params;
 		double sum = 0;
 		for (int u = 0; u < ds.numUser; u++) {
 			double decPref = params.userDecisionPrefs[u];
@@ -48,35 +54,104 @@ class BrandSTE_Cal extends STE_Cal {
 	}
 	
 	@Override
-	double estOneRating(int u, int i, Params params) {
-		double topicRating = super.estOneRating(u, i, params);
+	void evalCombos(Params params, EvalContext context) {
+		super.evalCombos(params, context);
+		context.brandCombos = combine(((SocBIT_Params) params).brandUser);
+	}
+	
+	@Override
+	double estOneRating(int u, int i, Params params, EvalContext context) {
 		
 		SocBIT_Params castParams = (SocBIT_Params) params;
+		double topicRating = super.estOneRating(u, i, params, context);
+		double brandRating = calBrandRating(u, i, castParams, context);
 		double decPref = castParams.userDecisionPrefs[u];
-		double brandRating = calBrandRating(u,i, castParams);
-		
 		return decPref*topicRating + (1 - decPref)*brandRating;
 	}
 
-	private double calBrandRating(int u, int i, SocBIT_Params params) {
+	double calBrandRating(int u, int i, SocBIT_Params params, EvalContext context) {
+		return params.brandItem.dotProduct(i, context.brandCombos.data(), context.brandCombos.offset(u));
+	}
+	
+	/**
+	 * Topic and brand parts are quadratic in the step as in STE, weighted by the stepped decision prefs: the ratings are
+	 * cubic in the step
+	 */
+	@Override
+	StepObjective stepObjective(Params params, Params dir) {
 		
-		RealVector itemBrandFeats = params.brandItem.getColumnVector(i);
-		RealVector userBrandFeats = params.brandUser.getColumnVector(u);
-		double personal = userBrandFeats.dotProduct(itemBrandFeats);
-		double social = 0;
-		// actually we only loop thru the set of friends of u, 
-		// thus, later we can speed up by caching the set of friends of each user
-		for (int v = 0; v < ds.numUser; v++) { 
-			double influenceWeight = ds.edge_weights.getEntry(v, u);
-			if (influenceWeight > 0) {
-				RealVector vBrandFeats = params.brandUser.getColumnVector(v);
-				social += influenceWeight*vBrandFeats.dotProduct(itemBrandFeats);
+		SocBIT_Params castParams = (SocBIT_Params) params;
+		SocBIT_Params castDir = (SocBIT_Params) dir;
+		EvalContext context = context(params);
+		if (context.brandCombos == null) {
+			evalCombos(params, context);
+		}
+		FactorMatrix topicDirs = combine(dir.topicUser);
+		FactorMatrix brandDirs = combine(castDir.brandUser);
+		double[] prefs = castParams.userDecisionPrefs;
+		double[] prefDirs = castDir.userDecisionPrefs;
+		StepObjective objective = new StepObjective(ds.ratings);
+		double[] topicDot = new double[3];
+		double[] brandDot = new double[3];
+		SparseRatings ratings = ds.ratings;
+		for (int u = 0; u < ds.numUser; u++) {
+			for (int k = ratings.userStart(u); k < ratings.userEnd(u); k++) {
+				int i = ratings.itemAt(k);
+				StepObjective.dotPoly(context.topicCombos, topicDirs, u, params.topicItem, dir.topicItem, i, topicDot);
+				StepObjective.dotPoly(context.brandCombos, brandDirs, u, castParams.brandItem, castDir.brandItem, i, brandDot);
+				objective.addRatingTerm(k, prefs[u], prefDirs[u], topicDot);
+				objective.addRatingTerm(k, 1 - prefs[u], -prefDirs[u], brandDot);
 			}
 		}
-				
-		double alpha = hypers.alpha;
-		return alpha*personal + (1 - alpha)*social;
+		objective.addReg(hypers.topicLambda, params.topicUser, dir.topicUser);
+		objective.addReg(hypers.topicLambda, params.topicItem, dir.topicItem);
+		objective.addReg(hypers.brandLambda, castParams.brandUser, castDir.brandUser);
+		objective.addReg(hypers.brandLambda, castParams.brandItem, castDir.brandItem);
+		objective.addReg(hypers.decisionLambda, prefs, prefDirs, 0.5);
+		return objective;
 	}
 	
+	/**
+	 * Rating evaluations with the topic and brand parts c_u . theta_i and b_u . beta_i of each observed rating, needed by
+	 * the gradients of the decision prefs
+	 */
+	EvalContext evalForGrads(SocBIT_Params params) {
+		
+		EvalContext context = evalRatings(params);
+		if (context.topicSims == null) {
+			SparseRatings ratings = ds.ratings;
+			double[] topicSims = newArray(ratings.nnz());
+			double[] brandSims = newArray(ratings.nnz());
+			for (int u = 0; u < ds.numUser; u++) {
+				for (int k = ratings.userStart(u); k < ratings.userEnd(u); k++) {
+					int i = ratings.itemAt(k);
+					topicSims[k] = super.estOneRating(u, i, params, context);
+					brandSims[k] = calBrandRating(u, i, params, context);
+				}
+			}
+			context.topicSims = topicSims;
+			context.brandSims = brandSims;
+		}
+		return context;
+	}
 	
+	@Override
+	RealMatrix estRatings(Params params) {
+		
+		SocBIT_Params castParams = (SocBIT_Params) params;
+		EvalContext context = context(params);
+		if (context.brandCombos == null) {
+			evalCombos(params, context);
+		}
+		double[][] estimated = new double[ds.numUser][ds.numItem];
+		getLinAlg().gemmTN(castParams.userDecisionPrefs, context.topicCombos, castParams.topicItem, estimated, false);
+		for (int u = 0; u < ds.numUser; u++) {
+			double brandPref = 1 - castParams.userDecisionPrefs[u];
+			double[] row = estimated[u];
+			for (int i = 0; i < ds.numItem; i++) {
+				row[i] += brandPref * calBrandRating(u, i, castParams, context);
+			}
+		}
+		return new Array2DRowRealMatrix(estimated, false);
+	}
 }
@@ -0,0 +1,63 @@
+package core;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Computes the gradients of the entities [from, to) (users or items), split in halves of about equal cost until a part
+ * costs less than the grain. Costs are given by a prefix array, e.g. 1 + number of ratings of each entity, so that the
+ * few users and items with most ratings do not end up in the same part.
+ * Each leaf uses the {@link GradCal.Sums} of the thread which runs it. An entity is computed by a single
+ * leaf with the same operations as in a sequential loop, so results do not depend on the split.
+ */
+class EntityTask extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	private final GradCal gradCal;
+	private final GradCal.EntityAction action;
+	private final long[] costPrefix;	// cost of the entities [0, e) at e
+	private final long grain;
+	private final int from;
+	private final int to;
+
+	EntityTask(GradCal gradCal, GradCal.EntityAction action, long[] costPrefix, long grain, int from, int to) {
+		this.gradCal = gradCal;
+		this.action = action;
+		this.costPrefix = costPrefix;
+		this.grain = grain;
+		this.from = from;
+		this.to = to;
+	}
+
+	@Override
+	protected void compute() {
+		
+		if (to - from <= 1 || costPrefix[to] - costPrefix[from] <= grain) {
+			GradCal.Sums sums = gradCal.sums();
+			for (int e = from; e < to; e++) {
+				action.compute(e, sums);
+			}
+			return;
+		}
+		int mid = split();
+		invokeAll(new EntityTask(gradCal, action, costPrefix, grain, from, mid),
+					new EntityTask(gradCal, action, costPrefix, grain, mid, to));
+	}
+
+	// first entity whose prefix reaches half of the cost of the range, both halves are non-empty
+	private int split() {
+		
+		long half = (costPrefix[from] + costPrefix[to]) >>> 1;
+		int lo = from + 1;
+		int hi = to - 1;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (costPrefix[mid] < half) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+}
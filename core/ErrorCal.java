@@ -1,44 +1,41 @@
 package core;
 
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
 import org.apache.commons.math3.linear.RealMatrix;
 
+import defs.SocialGraph;
+import defs.SparseRatings;
+
 class ErrorCal {
 	
-	// Pre: both weight matrices are square with the same dimension
-	static RealMatrix edgeWeightErrors(RealMatrix est_weights, RealMatrix obs_weights) {
-		// Ad-hoc trick: as w_{u, u}'s do NOT exist, we need to exclude errors due to estimating them by 
-		// resetting them equal to estimated weights
-		int numUser = obs_weights.getColumnDimension();
-		RealMatrix imputed_weights = obs_weights.copy();	// safe-guard copy
+	// Pre: est_weights is a square matrix over the same users as obs_weights
+	static RealMatrix edgeWeightErrors(RealMatrix est_weights, SocialGraph obs_weights) {
+		// unconnected pairs have weight 0, so their errors are the estimated weights themselves
+		int numUser = obs_weights.numUser;
+		RealMatrix edge_weight_errors = est_weights.copy();
+		for (int u = 0; u < numUser; u++) {
+			for (int k = obs_weights.outStart(u); k < obs_weights.outEnd(u); k++) {
+				int v = obs_weights.outNeighbor(k);
+				edge_weight_errors.addToEntry(u, v, - obs_weights.outWeight(k));
+			}
+		}
+		// Ad-hoc trick: as w_{u, u}'s do NOT exist, we need to exclude errors due to estimating them 
 		for (int u = 0; u < numUser; u++) {
-			imputed_weights.setEntry(u, u, est_weights.getEntry(u, u));	  
+			edge_weight_errors.setEntry(u, u, 0);	  
 		}
-		RealMatrix edge_weight_errors = est_weights.subtract(imputed_weights);
 		return edge_weight_errors;
 	}
 	
-	static RealMatrix ratingErrors(RealMatrix est_ratings, RealMatrix obs_ratings) {
-		// XXX: many ratings r_{u,i} are missing as u may not rate i. Again we should exclude the errors from these missing ratings by  
-		// similar trick i.e. force the missing ratings equal to estimated values (so that the errors vanish)  
-		RealMatrix imputed_ratings = imputeNAs(obs_ratings, est_ratings);
-		RealMatrix rating_errors = est_ratings.subtract(imputed_ratings);
-		return rating_errors;
-	}
-	
-	/**
-	 * NAs in {@link mat} are marked by some invalid value i.e. null, 
-	 * in the case of rating, we used -1 as marker 
-	 */
-	static RealMatrix imputeNAs(RealMatrix mat, RealMatrix estimated_values) {
-		
-		RealMatrix imputed_mat = mat.copy();	 // safe-guard copy
-		for (int i = 0; i < mat.getRowDimension(); i++) {
-			for (int j = 0; j < mat.getColumnDimension(); j++) {
-				if (imputed_mat.getEntry(i, j) == -1) {
-					imputed_mat.setEntry(i, j, estimated_values.getEntry(i, j));
-				}
+	static RealMatrix ratingErrors(RealMatrix est_ratings, SparseRatings obs_ratings) {
+		// XXX: many ratings r_{u,i} are missing as u may not rate i. We should exclude the errors from these missing ratings,  
+		// so only observed entries get a non-zero error, all the others are left as 0 
+		RealMatrix rating_errors = new Array2DRowRealMatrix(obs_ratings.numUser, obs_ratings.numItem);
+		for (int u = 0; u < obs_ratings.numUser; u++) {
+			for (int k = obs_ratings.userStart(u); k < obs_ratings.userEnd(u); k++) {
+				int i = obs_ratings.itemAt(k);
+				rating_errors.setEntry(u, i, est_ratings.getEntry(u, i) - obs_ratings.valueAt(k));
 			}
 		}
-		return imputed_mat;
+		return rating_errors;
 	}
 }
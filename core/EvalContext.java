@@ -0,0 +1,46 @@
+package core;
+
+import defs.FactorMatrix;
+
+/**
+ * Evaluations of one version of params (see {@link defs.Params#version()}), shared by the objective, the RMSE reports
+ * and the gradients, so that within an iteration of the trainer each of them is computed once per params.
+ * Rating quantities are per observed rating, in the user-major order of {@link defs.SparseRatings}, i.e. the rating
+ * (u, itemAt(k)) is at k in [userStart(u), userEnd(u)). Parts are filled on demand by the calculator (see
+ * {@link RecSysCal#context(defs.Params)}), a null part is not computed yet.
+ */
+class EvalContext {
+	
+	final long version;
+	
+	// for the objective
+	double[] estimates;		// r^_{u,i}
+	double[] errors;		// cutoff(r^_{u,i}) - r_{u,i}
+	double[] logisDiffs;	// logisDiff(r^_{u,i}), set with errors as both come from the same sigmoid pass
+	double sqRatingError;	// squared Frobenius norm of the rating errors, set with errors
+	TrustPass trust;		// trust part, possibly without the gradient sums
+	Double objValue;
+	
+	// for the gradients
+	double[] topicSims;		// theta_u . theta_i for socBIT, c_u . theta_i for bSTE
+	double[] brandSims;		// beta_u . beta_i over the brands producing i for socBIT, b_u . beta_i for bSTE
+	
+	// STE models: feats of each user mixed with those of its trusters, alpha * theta_u + (1 - alpha) * (W^T theta)_u
+	FactorMatrix topicCombos;	// c_u
+	FactorMatrix brandCombos;	// b_u, bSTE only
+	
+	// also held by another calculator (see RecSysCal#adoptContext), its arrays are then never reused
+	boolean shared;
+	
+	EvalContext(long version) {
+		this.version = version;
+	}
+	
+	/**
+	 * Forget what depends on the trust terms, e.g. when a new trust sample is drawn
+	 */
+	void dropTrust() {
+		trust = null;
+		objValue = null;
+	}
+}
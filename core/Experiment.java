@@ -1,14 +1,17 @@
 package core;
 
+import helpers.BinaryFormat;
 import helpers.Checkers;
 import helpers.DataLoader;
 import helpers.DirUtils;
 import helpers.ParamLoader;
 import helpers.ParamSaver;
+import helpers.Sigmoid;
 import helpers.UtilFuncs;
 
 import java.io.IOException;
 import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
 
 import myUtil.Savers;
 
@@ -18,6 +21,7 @@ import org.apache.commons.math3.linear.RealVector;
 
 import defs.Dataset;
 import defs.Errors;
+import defs.FactorMatrix;
 import defs.Hypers;
 import defs.InvalidModelException;
 import defs.Model;
@@ -26,18 +30,49 @@ import defs.ParamModelMismatchException;
 import defs.Params;
 import defs.SoRecParams;
 import defs.SocBIT_Params;
+import defs.SparseRatings;
 
 public class Experiment {
 	
 	static Dataset train_ds;
-	private static RealMatrix test_ratings;
+	private static DataLoader loader;	// keeps the id dictionaries, saved with the learned params
+	private static SparseRatings test_ratings;
 	private static Params gt_params;	// only exist in synthetic data
 	private static int gt_numTopic;
+	// turn this on for data sets whose ratings, graph and factors weigh too much on the heap (and its GC)
+	private static final boolean OFF_HEAP = false;
+	// number of non-edges drawn per user for a sampled trust loss, 0 for the exact loss over all user pairs (see Trainer#sampleTrustLoss)
+	private static final int NUM_NON_EDGE_SAMPLE = 0;
+	// table approximation of the logistic function and its derivative, within 1e-8 of the exact ones (see Sigmoid)
+	private static final boolean APPROX_SIGMOID = false;
+	// threads of the gradients, 1 to compute them sequentially (see Trainer#parallelGradients)
+	private static final int NUM_GRAD_THREAD = 1;
+	private static final ForkJoinPool GRAD_POOL = (NUM_GRAD_THREAD > 1) ? new ForkJoinPool(NUM_GRAD_THREAD) : null;
+	// line search on polynomials in the step size, for the STE models and sampled trust losses (see Trainer#closedFormLineSearch)
+	private static final boolean CLOSED_FORM_LINE_SEARCH = false;
+	// step sizes tried at the same time by the line search, 1 to try them one by one (see Trainer#parallelLineSearch)
+	private static final int NUM_PARALLEL_STEP = 1;
+	private static final ForkJoinPool SEARCH_POOL = (NUM_PARALLEL_STEP > 1) ? new ForkJoinPool(NUM_PARALLEL_STEP) : null;
+	// first step size of each line search, and number of recent objective values of its test (see Trainer#stepSizes,
+	// Trainer#nonmonotoneLineSearch), HALVING and 1 for the usual search
+	private static final Trainer.StepRule STEP_RULE = Trainer.StepRule.HALVING;
+	private static final int NUM_RECENT_VALUE = 1;
+	// iterations of the training: gradient descent, Nesterov momentum, L-BFGS or stochastic epochs (see Trainer#optimizeBy)
+	private static final Trainer.Method OPTIMIZER = Trainer.Method.GRADIENT_DESCENT;
+	// entries per batch, first step size, its decay per epoch and non-edges drawn per user each epoch of
+	// Trainer.Method.STOCHASTIC (see Trainer#stochasticBatches)
+	private static final int SGD_BATCH_SIZE = 1000;
+	private static final double SGD_LEARNING_RATE = 0.5;
+	private static final double SGD_DECAY = 0.1;
+	private static final int SGD_NUM_NON_EDGE = 20;
+	// also train the STE models (STE and bSTE) on the real data sets, their test errors are printed only
+	private static final boolean RUN_STE_MODELS = false;
 	
 	public static void main(String[] args) throws IOException, InvalidModelException, ParamModelMismatchException, NonConvergeException {
 		
 		int runIndex = 3;
 		int numUser = 2000;
+		Sigmoid.setApproximate(APPROX_SIGMOID);
 //		synExp(numUser, runIndex);
 		
 		realExp();
@@ -139,6 +174,13 @@ public class Experiment {
 			double test_rmse_soRec = predict(soRec, test_ratings);
 			double test_rmse_socBIT = predict(socBIT, test_ratings);
 			testErrs += test_rmse_soRec + "," + test_rmse_socBIT + "\n";
+			
+			if (RUN_STE_MODELS) {
+				Model ste = trainBySTE(train_ds, numTopic);
+				Model bSTE = trainByBSTE(train_ds, numTopic);
+				System.out.println("testErr_STE, testErr_bSTE");
+				System.out.println(predict(ste, test_ratings) + "," + predict(bSTE, test_ratings));
+			}
 		}	
 		
 		String fErrors = errDir + "all_errors.csv";
@@ -158,19 +200,36 @@ public class Experiment {
 		@SuppressWarnings("unused")
 		int splitIndex = 1;
 		
-		DataLoader loader = new DataLoader(dataDir);
-		String train_rating_file = dataDir +  "train_ratings.csv";	// splitIndex + "_split/" +		 
-		String graph_file = graphDir + "edge_weights.csv";
+		int numThread = Runtime.getRuntime().availableProcessors();
+		loader = new DataLoader(dataDir, numThread);
+		String train_rating_file = dataFile(dataDir +  "train_ratings.csv");	// splitIndex + "_split/" +		 
+		String graph_file = graphFile(dataDir, graphDir);
 		train_ds = loader.load(train_rating_file, graph_file);	// splitIndex
 		System.out.println("Loaded train ds = (ratings and the graph)");
+		if (OFF_HEAP) {
+			train_ds.moveOffHeap();
+			FactorMatrix.setDefaultStorage(FactorMatrix.Storage.OFF_HEAP);
+		}
 		
 		// XXX: tmp turn off for synExp, as synExp currently run on whole ds
-		String test_file = dataDir +  "test_ratings.csv";	// splitIndex + "_split/" +
+		String test_file = dataFile(dataDir +  "test_ratings.csv");	// splitIndex + "_split/" +
 		test_ratings = loader.loadRatings(test_file);
 		System.out.println("Loaded test ratings");
 		
 	}
 
+	// use binary files made by BinaryConverter when they exist, as they are mapped instead of parsed
+	private static String dataFile(String csvFile) {
+		String binFile = BinaryFormat.binaryName(csvFile);
+		return BinaryFormat.exists(binFile) ? binFile : csvFile;
+	}
+	
+	// the binary graph is restricted to the users of the data set, so it sits in the data folder
+	private static String graphFile(String dataDir, String graphDir) {
+		String binFile = dataDir + "edge_weights.bin";
+		return BinaryFormat.exists(binFile) ? binFile : graphDir + "edge_weights.csv";
+	}
+
 	private static Trainer initTrainer(String model, Dataset ds, int numTopic) throws InvalidModelException {
 		
 		int maxIter = 1; // 10
@@ -193,15 +252,19 @@ public class Experiment {
 //				printRegConst(hypers);
 			}
 			
-//			if (model.equalsIgnoreCase("STE")) {
-//				hypers = Hypers.assignBySTE();
-//				System.out.println("Try " + numTopic + " topics.");
-//			} 
-//			
-//			if (model.equalsIgnoreCase("bSTE")) {
-//				hypers = Hypers.assignByBSTE();
-//				System.out.println("Try " + numTopic + " topics.");
-//			}
+			if (model.equalsIgnoreCase("STE")) {
+				double alpha = 0.5;
+				hypers = Hypers.setBySTE(topicLambda, alpha);
+				System.out.println("Try " + numTopic + " topics.");
+			} 
+			
+			if (model.equalsIgnoreCase("bSTE")) {
+				double brandLambda = 0.001;
+				double decisionLambda = 1;
+				double alpha = 0.5;
+				hypers = Hypers.setByBSTE(topicLambda, brandLambda, decisionLambda, alpha);
+				System.out.println("Try " + numTopic + " topics.");
+			}
 		}
 		
 		else {
@@ -209,6 +272,16 @@ public class Experiment {
 		}
 		
 		Trainer trainer = new Trainer(model, ds, numTopic, hypers, maxIter);
+		if (NUM_NON_EDGE_SAMPLE > 0) {
+			trainer.sampleTrustLoss(NUM_NON_EDGE_SAMPLE, 1);
+		}
+		trainer.parallelGradients(GRAD_POOL);
+		trainer.closedFormLineSearch(CLOSED_FORM_LINE_SEARCH);
+		trainer.parallelLineSearch(SEARCH_POOL, NUM_PARALLEL_STEP);
+		trainer.stepSizes(STEP_RULE);
+		trainer.nonmonotoneLineSearch(NUM_RECENT_VALUE);
+		trainer.optimizeBy(OPTIMIZER);
+		trainer.stochasticBatches(SGD_BATCH_SIZE, SGD_LEARNING_RATE, SGD_DECAY, SGD_NUM_NON_EDGE, 1);
 		return trainer;
 	}
 
@@ -227,7 +300,7 @@ public class Experiment {
 		System.out.println("Training by socBIT model");
 		
 		Trainer trainer = initTrainer("socBIT", ds, numTopic);	// currently training on whole data set, switch to training set later	
-		SocBIT_Params initParams = new SocBIT_Params(ds.numUser, ds.numItem, ds.numBrand, trainer.numTopic);
+		SocBIT_Params initParams = new SocBIT_Params(ds.numUser, ds.numItem, ds.itemBrands, trainer.numTopic);
 		System.out.println("iter, obj_value (rating + regs + edge_weight_errors), rating errors");
 		Model result = trainer.trainByGD(initParams);
 		return result;
@@ -240,7 +313,7 @@ public class Experiment {
 	 * @param test_ds
 	 * @return 
 	 */
-	private static double predict(Model model, RealMatrix test_ratings) {
+	private static double predict(Model model, SparseRatings test_ratings) {
 		
 		double rmse = 0;
 		
@@ -258,9 +331,14 @@ public class Experiment {
 			RealMatrix estRatings = socBIT_Cal.estRatings(model.learnedParams);
 			errMat = socBIT_Cal.calRatingErrors(estRatings, test_ratings);
 		}
+		if (calculator instanceof STE_Cal) {
+			System.out.println("Predict ratings by STE...");
+			STE_Cal ste_Cal = (STE_Cal) calculator;
+			RealMatrix estRatings = ste_Cal.estRatings(model.learnedParams);
+			errMat = ste_Cal.calRatingErrors(estRatings, test_ratings);
+		}
 		
-		int na_marker = -1;
-		int numRating = UtilFuncs.numNeq(test_ratings, na_marker);	
+		int numRating = test_ratings.nnz();
 		rmse = calRMSE(errMat, numRating);
 		return rmse;
 	}
@@ -344,21 +422,20 @@ public class Experiment {
 		String name = resDir + model + "/" + "numTopic" + numTopic + "/";
 		DirUtils.mkDir(name);
 		ParamSaver.save(params, name);
+		ParamSaver.saveIndices(loader.getUserIndex(), loader.getItemIndex(), name);
 	}
 
-	@SuppressWarnings("unused")
 	private static Model trainByBSTE(Dataset ds, int numTopic) throws InvalidModelException, IOException, ParamModelMismatchException, NonConvergeException {
 		
 		System.out.println("Training by bSTE model...");
 		Trainer trainer = initTrainer("bSTE", ds, numTopic);
 		
-		SocBIT_Params initParams = new SocBIT_Params(ds.numUser, ds.numItem, ds.numBrand, trainer.numTopic);
+		SocBIT_Params initParams = new SocBIT_Params(ds.numUser, ds.numItem, ds.itemBrands, trainer.numTopic);
 		System.out.println("iter, obj_value (rating + regs), rating errors");
 		Model result = trainer.trainByGD(initParams);
 		return result;
 	}
 	
-	@SuppressWarnings("unused")
 	private static Model trainBySTE(Dataset ds, int numTopic) throws IOException, InvalidModelException, ParamModelMismatchException, NonConvergeException {
 		
 		System.out.println("Training by STE model...");
@@ -1,9 +1,11 @@
 package core;
 
-import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.RealVector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntToLongFunction;
 
+import org.apache.commons.math3.linear.RealMatrix;
 import defs.Dataset;
+import defs.FactorMatrix;
 import defs.Hypers;
 import defs.Params;
 
@@ -13,16 +15,138 @@ public abstract class GradCal {
 	protected int numTopic;
 	Dataset ds;
 
-	// derived fields
-	protected RealMatrix estimated_ratings;
-	protected RealMatrix rating_errors;
+	// when set, the trust part of the gradients is taken on these terms only
+	protected TrustSample trustSample;
+	
+	// when set, gradients of users and items are computed in parallel on this pool, with the same values as sequentially
+	private ForkJoinPool pool;
+	private static final int TASKS_PER_THREAD = 8;	// so that threads which finish early can steal work
+	// sums of each thread, kept across calculations
+	private final ThreadLocal<Sums> threadSums = ThreadLocal.withInitial(this::newSums);
+	// costs of the users and items, from their numbers of ratings
+	private long[] userCosts;
+	private long[] itemCosts;
+
+	// gradient returned by calculate, allocated on the first calculation and overwritten by the next ones
+	private Params workspace;
 
-	// model is the trainer's model
+	/**
+	 * @return the gradient of the params, in the workspace of this calculator: it is overwritten by the next
+	 * calculation, and released by {@link #close()}
+	 */
 	abstract Params calculate(Params params);
 	
-	abstract RealVector calItemTopicGrad(Params params, int itemIndex);	// RealMatrix rating_errors
+	// gradient with the dimensions of the model, all its values are written by each calculation
+	abstract Params newGradient();
+	
+	Params workspace() {
+		if (workspace == null) {
+			workspace = newGradient();
+		}
+		return workspace;
+	}
+	
+	/**
+	 * Release the workspace, e.g. its off-heap factors at the end of the training
+	 */
+	void close() {
+		if (workspace != null) {
+			workspace.close();
+			workspace = null;
+		}
+	}
+	
+	/**
+	 * @param sample: terms of the trust loss for the next gradients, null for the exact loss over all user pairs.
+	 * Must be the sample used by the objective, so that the gradients are those of the objective
+	 */
+	void useTrustSample(TrustSample sample) {
+		trustSample = sample;
+	}
+	
+	/**
+	 * @param pool: pool on which the gradients of users and items are computed, null to compute them sequentially
+	 */
+	void useParallel(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+	
+	// the gradient of an entity is written into its vector in grad, see FactorMatrix#offset
+	abstract void calItemTopicGrad(Params params, int itemIndex, FactorMatrix grad, Sums sums);	// RealMatrix rating_errors
 
-	abstract RealVector calUserTopicGrad(Params params, int u);	// RealMatrix rating_errors, RealMatrix edge_weight_errors
+	abstract void calUserTopicGrad(Params params, int u, FactorMatrix grad, Sums sums);	// RealMatrix rating_errors, RealMatrix edge_weight_errors
+	
+	/**
+	 * Per-entity sums, written by one thread only: each thread computing entities gets its own ones (see {@link #sums()})
+	 */
+	static class Sums {
+		
+		final double[] topicRating;	// numTopic, part due to the rating errors
+		final double[] topicEdge;	// numTopic, part due to the trust errors (or to the trusters, for STE models)
+		final double[] brandRating;	// numBrand
+		final double[] brandEdge;	// numBrand
+		
+		Sums(int numTopic, int numBrand) {
+			topicRating = new double[numTopic];
+			topicEdge = new double[numTopic];
+			brandRating = new double[numBrand];
+			brandEdge = new double[numBrand];
+		}
+	}
+	
+	interface EntityAction {
+		void compute(int e, Sums sums);
+	}
+	
+	Sums newSums() {
+		return new Sums(numTopic, ds.numBrand);
+	}
+	
+	// sums of the current thread, allocated by it on its first use
+	Sums sums() {
+		return threadSums.get();
+	}
+	
+	/**
+	 * Run {@code action} on the entities [0, n), where n + 1 is the length of {@code costPrefix}: in a loop, or in tasks of
+	 * about equal cost on the pool if one is set (see {@link EntityTask})
+	 */
+	void forEachEntity(long[] costPrefix, EntityAction action) {
+		
+		int n = costPrefix.length - 1;
+		if (pool == null) {
+			Sums sums = sums();
+			for (int e = 0; e < n; e++) {
+				action.compute(e, sums);
+			}
+			return;
+		}
+		long grain = Math.max(1, costPrefix[n] / ((long) pool.getParallelism() * TASKS_PER_THREAD));
+		pool.invoke(new EntityTask(this, action, costPrefix, grain, 0, n));
+	}
+	
+	void forEachUser(EntityAction action) {
+		if (userCosts == null) {
+			userCosts = costPrefix(ds.numUser, u -> 1 + ds.ratings.userEnd(u) - ds.ratings.userStart(u));
+		}
+		forEachEntity(userCosts, action);
+	}
+	
+	void forEachItem(EntityAction action) {
+		if (itemCosts == null) {
+			itemCosts = costPrefix(ds.numItem, i -> 1 + ds.ratings.itemEnd(i) - ds.ratings.itemStart(i));
+		}
+		forEachEntity(itemCosts, action);
+	}
+	
+	// cost of the entities [0, e) at e
+	static long[] costPrefix(int n, IntToLongFunction cost) {
+		long[] prefix = new long[n + 1];
+		for (int e = 0; e < n; e++) {
+			prefix[e + 1] = prefix[e] + cost.applyAsLong(e);
+		}
+		return prefix;
+	}
 	
 	/**
 	 * NAs in {@link mat} are marked by some invalid value i.e. null, 
@@ -0,0 +1,138 @@
+package core;
+
+import helpers.ParamUpdater;
+
+import defs.Params;
+
+/**
+ * Limited-memory BFGS: the direction is H * grad, where H approximates the inverse Hessian from the last
+ * {@code memory} pairs (s, y) of param and gradient differences (two-loop recursion), scaled by <s, y> / <y, y> of the
+ * newest pair. Steps 1, 1/2, ... are tried along it with the sufficient reduction of gradient descent (constant GAMMA).
+ * Pairs with no positive curvature <s, y> are not kept, and the memory is cleared when H * grad is not a descent
+ * direction or gives no step, the iteration then being a gradient step from 1/2 as in gradient descent.
+ *
+ * The last step is s = -step * direction, so only the direction and the gradient of the last iteration are kept besides
+ * the pairs. Buffers: 2 * memory + 2 params, besides the two of the updater.
+ */
+class LBFGS_Optimizer extends Optimizer {
+	
+	private final int memory;
+	private final Params[] sPairs;
+	private final Params[] yPairs;
+	private final double[] rhos;	// 1 / <s, y>
+	private final double[] alphas;
+	private int numPair;
+	private int newest = -1;		// index of the newest pair, pairs are kept in a ring
+	
+	private Params direction;
+	private Params lastGrad;
+	private double lastStep;		// accepted at the previous iteration, 0 if none
+	
+	LBFGS_Optimizer(GradCal gradCal, RecSysCal calculator, int memory) {
+		super(gradCal, calculator);
+		this.memory = memory;
+		sPairs = new Params[memory];
+		yPairs = new Params[memory];
+		rhos = new double[memory];
+		alphas = new double[memory];
+	}
+	
+	@Override
+	void iterate(ParamUpdater updater, double cValue) {
+		
+		System.out.println("Performing L-BFGS step ...");
+		Params cParams = updater.current();
+		Params grad = gradCal.calculate(cParams);
+		if (direction == null) {
+			direction = gradCal.newGradient();	// only as buffers with the dimensions of the params
+			lastGrad = gradCal.newGradient();
+		}
+		if (lastStep > 0) {
+			addPair(grad);
+		}
+		
+		double accepted = 0;
+		if (numPair > 0) {
+			twoLoop(grad);
+			double slope = grad.dot(direction);
+			if (slope > 0) {
+				accepted = backtrack(updater, cParams, cValue, direction, slope, Trainer.GAMMA, 1);
+			}
+			if (accepted == 0) {
+				System.out.println("No step along the L-BFGS direction, clearing the memory");
+				restart();
+			}
+		}
+		if (accepted == 0) {
+			direction.setValues(grad);
+			accepted = backtrack(updater, cParams, cValue, direction, grad.dot(grad), Trainer.GAMMA, 0.5);
+		}
+		if (accepted == 0) {
+			System.out.println("Cannot find better new params  (i.e. with sufficient reduction). "
+								+ "Line search stopped due to step size too small");
+		}
+		lastGrad.setValues(grad);	// the gradient is overwritten by the next calculation
+		lastStep = accepted;
+	}
+	
+	// pair of the last step, kept if its curvature is positive
+	private void addPair(Params grad) {
+		
+		int slot = (newest + 1) % memory;
+		if (sPairs[slot] == null) {
+			sPairs[slot] = gradCal.newGradient();
+			yPairs[slot] = gradCal.newGradient();
+		}
+		Params s = sPairs[slot];
+		Params y = yPairs[slot];
+		s.setCombination(-lastStep, direction, 0, direction);
+		y.setCombination(1, grad, -1, lastGrad);
+		double curvature = s.dot(y);
+		if (curvature > 0) {
+			rhos[slot] = 1 / curvature;
+			newest = slot;
+			numPair = Math.min(numPair + 1, memory);
+		} else if (numPair == memory) {
+			numPair--;	// the slot was the oldest pair
+		}
+	}
+	
+	// direction = H * grad
+	private void twoLoop(Params grad) {
+		
+		direction.setValues(grad);
+		for (int k = 0; k < numPair; k++) {
+			int slot = (newest - k + memory) % memory;
+			alphas[slot] = rhos[slot] * sPairs[slot].dot(direction);
+			direction.setCombination(1, direction, -alphas[slot], yPairs[slot]);
+		}
+		double scale = 1 / (rhos[newest] * yPairs[newest].dot(yPairs[newest]));	// <s, y> / <y, y>
+		direction.setCombination(scale, direction, 0, direction);
+		for (int k = numPair - 1; k >= 0; k--) {
+			int slot = (newest - k + memory) % memory;
+			double beta = rhos[slot] * yPairs[slot].dot(direction);
+			direction.setCombination(1, direction, alphas[slot] - beta, sPairs[slot]);
+		}
+	}
+	
+	@Override
+	void restart() {
+		numPair = 0;
+		newest = -1;
+		lastStep = 0;
+	}
+	
+	@Override
+	public void close() {
+		if (direction != null) {
+			direction.close();
+			lastGrad.close();
+		}
+		for (int k = 0; k < memory; k++) {
+			if (sPairs[k] != null) {
+				sPairs[k].close();
+				yPairs[k].close();
+			}
+		}
+	}
+}
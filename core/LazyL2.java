@@ -0,0 +1,99 @@
+package core;
+
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+import defs.FactorMatrix;
+import defs.ItemBrandFeats;
+
+/**
+ * Regularizer lambda * ||x - center||^2 of the rows of a block of params (e.g. the topic feats of the users), applied
+ * by stochastic steps (see {@link SGD}) without visiting all the rows: each batch, every row should take the proximal
+ * step x <- center + (x - center) / (1 + lambda * rate), but only the running log of these factors is updated
+ * ({@link #shrink}). A row takes the product of the factors it missed when it is next visited ({@link #catchUp}), and
+ * all rows take theirs at the end of an epoch ({@link #catchUpAll}), so that the params are then up to date.
+ */
+class LazyL2 {
+
+	private final double lambda;
+	private double logScale;		// sum of the logs of the factors since the last reset
+	private final double[] rowLogs;	// logScale when each row was last caught up
+
+	LazyL2(double lambda, int numRow) {
+		this.lambda = lambda;
+		rowLogs = new double[numRow];
+	}
+
+	/**
+	 * Regularizer step of a batch on all rows
+	 * @param rate: step size of the batch times its share of the epoch, see {@link SGD}
+	 */
+	void shrink(double rate) {
+		logScale -= Math.log1p(lambda * rate);
+	}
+
+	/**
+	 * @return factor of x - center that the row missed, the row is then seen as up to date
+	 */
+	double catchUp(int row) {
+		double factor = Math.exp(logScale - rowLogs[row]);
+		rowLogs[row] = logScale;
+		return factor;
+	}
+
+	void catchUp(FactorMatrix feats, int e) {
+		double factor = catchUp(e);
+		if (factor != 1) {
+			DoubleBuffer data = feats.data();
+			int off = feats.offset(e);
+			for (int k = 0; k < feats.numFactor(); k++) {
+				data.put(off + k, data.get(off + k) * factor);
+			}
+		}
+	}
+
+	// rows are the items, with their values on the brands producing them
+	void catchUp(ItemBrandFeats feats, int i) {
+		double factor = catchUp(i);
+		if (factor != 1) {
+			for (int k = feats.pairs.brandStart(i); k < feats.pairs.brandEnd(i); k++) {
+				feats.setValue(k, feats.getValue(k) * factor);
+			}
+		}
+	}
+
+	// one value per row
+	void catchUp(double[] values, int row, double center) {
+		double factor = catchUp(row);
+		if (factor != 1) {
+			values[row] = center + (values[row] - center) * factor;
+		}
+	}
+
+	void catchUpAll(FactorMatrix feats) {
+		for (int e = 0; e < rowLogs.length; e++) {
+			catchUp(feats, e);
+		}
+		reset();
+	}
+
+	void catchUpAll(ItemBrandFeats feats) {
+		for (int i = 0; i < rowLogs.length; i++) {
+			catchUp(feats, i);
+		}
+		reset();
+	}
+
+	void catchUpAll(double[] values, double center) {
+		for (int row = 0; row < rowLogs.length; row++) {
+			catchUp(values, row, center);
+		}
+		reset();
+	}
+
+	// all rows are up to date, start again from factor 1 so that the logs do not grow over the epochs
+	private void reset() {
+		logScale = 0;
+		Arrays.fill(rowLogs, 0);
+	}
+}
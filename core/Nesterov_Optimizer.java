@@ -0,0 +1,92 @@
+package core;
+
+import helpers.ParamUpdater;
+
+import defs.Params;
+
+/**
+ * Nesterov's accelerated gradient with backtracking (FISTA without proximal term): from the extrapolation
+ * y = x_k + (t_{k-1} - 1) / t_k * (x_k - x_{k-1}) of the last two params, x_{k+1} = y - s * grad(y), where the step s
+ * satisfies the descent lemma f(y - s g) <= f(y) - s ||g||^2 for the half gradient g (i.e. f(y - t G) <= f(y) - t/2 ||G||^2
+ * for the full gradient G = 2g and t = s/2). As the objective is not convex, the momentum is restarted (t = 1) whenever
+ * the objective goes up, and an iteration whose extrapolation gives no step falls back to a plain gradient step from x_k.
+ *
+ * Steps start from the last accepted one, doubled if it was accepted at once, as in {@link Trainer.StepRule#WARM_START}.
+ * Buffers: x_{k-1} and y, besides the two of the updater.
+ */
+class Nesterov_Optimizer extends Optimizer {
+	
+	private Params previous;		// x_{k-1}
+	private Params extrapolated;	// y
+	private boolean hasPrevious;
+	private double momentum = 1;	// t_{k-1}
+	private double step = 0.5;		// first step of the next iteration
+	
+	Nesterov_Optimizer(GradCal gradCal, RecSysCal calculator) {
+		super(gradCal, calculator);
+	}
+	
+	@Override
+	void iterate(ParamUpdater updater, double cValue) {
+		
+		System.out.println("Performing Nesterov step ...");
+		Params cParams = updater.current();
+		if (previous == null) {
+			previous = gradCal.newGradient();	// only as a buffer with the dimensions of the params
+			extrapolated = gradCal.newGradient();
+		}
+		
+		double nextMomentum = (1 + Math.sqrt(1 + 4 * momentum * momentum)) / 2;
+		double beta = hasPrevious ? (momentum - 1) / nextMomentum : 0;
+		double accepted = 0;
+		if (beta > 0) {
+			extrapolated.setCombination(1 + beta, cParams, -beta, previous);
+			accepted = gradientStep(updater, extrapolated, calculator.objValue(extrapolated));
+			if (accepted == 0) {
+				System.out.println("No step from the extrapolation, restarting the momentum");
+				nextMomentum = 1;
+			}
+		}
+		previous.setValues(cParams);	// x_k, before the updater reuses its buffer
+		if (accepted == 0) {
+			accepted = gradientStep(updater, cParams, cValue);
+		}
+		if (accepted == 0) {
+			System.out.println("Cannot find better new params  (i.e. with sufficient reduction). "
+								+ "Line search stopped due to step size too small");
+			return;
+		}
+		
+		hasPrevious = true;
+		momentum = nextMomentum;
+		if (calculator.objValue(updater.current()) > cValue) {
+			momentum = 1;	// no momentum at the next iteration
+		}
+	}
+	
+	// backtracking gradient step from the given params, see the class comment
+	private double gradientStep(ParamUpdater updater, Params from, double fromValue) {
+		
+		Params grad = gradCal.calculate(from);
+		double first = step;
+		double accepted = backtrack(updater, from, fromValue, grad, grad.dot(grad), 1, first);
+		if (accepted > 0) {
+			step = (accepted == first) ? Math.min(2 * accepted, Trainer.MAX_STEP) : accepted;
+		}
+		return accepted;
+	}
+	
+	@Override
+	void restart() {
+		hasPrevious = false;
+		momentum = 1;
+	}
+	
+	@Override
+	public void close() {
+		if (previous != null) {
+			previous.close();
+			extrapolated.close();
+		}
+	}
+}
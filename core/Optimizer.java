@@ -0,0 +1,68 @@
+package core;
+
+import helpers.ParamUpdater;
+
+import defs.Params;
+
+/**
+ * Iterations of {@link Trainer#trainByGD} other than its gradient descent, over the params seen as one vector (see
+ * {@link Params#dot}, {@link Params#setCombination}). Each iteration moves the params of the trainer's updater with
+ * the gradients of its GradCal and the objective of its RecSysCal, which share their evaluations as in gradient descent.
+ *
+ * As in gradient descent, a step s along a direction d gives params - s * d, where d is built from half gradients
+ * (see GradCal), and a step is accepted on a sufficient reduction f(params - s * d) - f(params) < -c * s * <grad, d>.
+ */
+abstract class Optimizer implements AutoCloseable {
+	
+	protected final GradCal gradCal;
+	protected final RecSysCal calculator;
+	
+	Optimizer(GradCal gradCal, RecSysCal calculator) {
+		this.gradCal = gradCal;
+		this.calculator = calculator;
+	}
+	
+	/**
+	 * One iteration from the current params of the updater, whose objective value is {@code cValue}. The params stay
+	 * if no step gives a sufficient reduction
+	 */
+	abstract void iterate(ParamUpdater updater, double cValue);
+	
+	/**
+	 * Forget the past iterations, e.g. when a new trust sample changes the objective they were made on
+	 */
+	abstract void restart();
+	
+	/**
+	 * Try from - s * dir for s = firstStep, firstStep/2, ... down to EPSILON_STEP until one gives a sufficient reduction
+	 * of f(from), and accept it
+	 * @param slope: <grad, dir> at from, positive for a descent direction
+	 * @param c: constant of the sufficient reduction
+	 * @return the accepted step, 0 if none
+	 */
+	protected double backtrack(ParamUpdater updater, Params from, double fromValue, Params dir, double slope, double c,
+								double firstStep) {
+		
+		double step = 2 * firstStep;
+		while (step > Trainer.EPSILON_STEP) {
+			step = step/2;
+			Params nParams = updater.tryStep(from, step, dir);
+			double funcDiff = calculator.objValue(nParams) - fromValue;
+			if (funcDiff == 0) {
+				System.out.println("Meet a local minimum !!!");
+			}
+			if (funcDiff < - c * step * slope || funcDiff == 0) {
+				updater.accept();
+				return step;
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * Release the buffers of the optimizer
+	 */
+	@Override
+	public void close() {
+	}
+}
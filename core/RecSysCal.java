@@ -1,5 +1,19 @@
 package core;
 
+import helpers.BlockedLinAlg;
+import helpers.LinAlg;
+import helpers.UtilFuncs;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
 import org.apache.commons.math3.linear.Array2DRowRealMatrix;
 import org.apache.commons.math3.linear.RealMatrix;
 
@@ -8,15 +22,210 @@ import defs.Params;
 
 public abstract class RecSysCal {
 	
-	protected RealMatrix estimated_ratings;
+	// default backend of the dense products, on the common fork-join pool
+	private static final LinAlg BLOCKED_LIN_ALG = new BlockedLinAlg();
+	
+	// backend of the dense products (numUser x numItem ratings, numUser x numUser weights), see Trainer#denseBackend
+	private LinAlg linAlg = BLOCKED_LIN_ALG;
+	
+	// when set, the trust loss is evaluated on these terms instead of all user pairs, see TrustSample
+	protected TrustSample trustSample;
+	
+	// evaluations of the two latest params versions: during a line search, the current params and the latest candidate
+	private EvalContext latest;
+	private EvalContext previous;
+	
+	// per length, arrays of the contexts dropped by this calculator, reused by the next evaluations (see #newArray)
+	private final Map<Integer, ArrayDeque<double[]>> freeArrays = new HashMap<Integer, ArrayDeque<double[]>>();
+	private static final int MAX_FREE_ARRAYS = 8;	// per length, enough for all the arrays of a context
+	
+	// when set, passes over all user pairs (exact trust losses) run in parallel on this pool, with the same values
+	protected ForkJoinPool pool;
+	
+	// side (in users) of the tiles of the exact trust passes: factors of a tile of trustees stay in cache while a tile of
+	// trusters is matched against them
+	static final int TRUST_TILE = 256;
 	
 	public RecSysCal(Dataset ds) {
-		estimated_ratings = new Array2DRowRealMatrix(ds.numUser, ds.numItem);
+	}
+	
+	LinAlg getLinAlg() {
+		return linAlg;
+	}
+	
+	/**
+	 * @param backend: backend of the dense products of this calculator, null for the default one
+	 */
+	void useLinAlg(LinAlg backend) {
+		linAlg = (backend != null) ? backend : BLOCKED_LIN_ALG;
 	}
 	
 	abstract double objValue(Params params);
 	
+	/**
+	 * @param pool: pool of the passes over all user pairs, null to run them sequentially
+	 */
+	void useParallel(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+	
+	// run the tasks on the pool and wait for all of them
+	void runAll(List<Callable<Void>> tasks) {
+		
+		for (Future<Void> future : pool.invokeAll(tasks)) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+	}
+	
+	/**
+	 * @param sample: terms of the trust loss for the next evaluations, null for the exact loss over all user pairs
+	 */
+	void useTrustSample(TrustSample sample) {
+		trustSample = sample;
+		if (latest != null) {
+			releaseTrust(latest);
+			latest.dropTrust();
+		}
+		if (previous != null) {
+			releaseTrust(previous);
+			previous.dropTrust();
+		}
+	}
+	
+	/**
+	 * @return evaluations of the current version of the params, empty if the version is not among the two latest ones
+	 */
+	EvalContext context(Params params) {
+		
+		long version = params.version();
+		if (latest != null && latest.version == version) {
+			return latest;
+		}
+		if (previous != null && previous.version == version) {
+			EvalContext context = previous;
+			previous = latest;
+			latest = context;
+			return context;
+		}
+		release(previous);
+		previous = latest;
+		latest = new EvalContext(version);
+		return latest;
+	}
+	
+	/**
+	 * Take the evaluations of the current version of the params from another calculator of the same model and trust
+	 * sample (e.g. one of a parallel line search), as if they were made by this one
+	 */
+	void adoptContext(RecSysCal other, Params params) {
+		EvalContext context = other.context(params);
+		context.shared = true;
+		if (latest != context) {
+			if (previous != context) {
+				release(previous);
+			}
+			previous = latest;
+			latest = context;
+		}
+	}
+	
+	/**
+	 * @return an array of n values, taken from a context dropped by this calculator if one has an array of this length:
+	 * its values are not reset, so it is only for parts which are fully written
+	 */
+	double[] newArray(int n) {
+		ArrayDeque<double[]> arrays = freeArrays.get(n);
+		if (arrays == null || arrays.isEmpty()) {
+			return new double[n];
+		}
+		return arrays.pop();
+	}
+	
+	/**
+	 * Same as {@link #newArray} for sums, whose values start at 0
+	 */
+	double[] newZeros(int n) {
+		double[] array = newArray(n);
+		Arrays.fill(array, 0);
+		return array;
+	}
+	
+	private void release(double[] array) {
+		if (array == null) {
+			return;
+		}
+		ArrayDeque<double[]> arrays = freeArrays.get(array.length);
+		if (arrays == null) {
+			arrays = new ArrayDeque<double[]>();
+			freeArrays.put(array.length, arrays);
+		}
+		if (arrays.size() < MAX_FREE_ARRAYS) {
+			arrays.push(array);
+		}
+	}
+	
+	// the arrays of a dropped context can be reused, unless another calculator may still read them
+	private void release(EvalContext context) {
+		if (context == null || context.shared) {
+			return;
+		}
+		release(context.estimates);
+		release(context.errors);
+		release(context.logisDiffs);
+		release(context.topicSims);
+		release(context.brandSims);
+		releaseTrust(context);
+	}
+	
+	private void releaseTrust(EvalContext context) {
+		if (context.shared || context.trust == null) {
+			return;
+		}
+		release(context.trust.errors);
+		release(context.trust.logisDiffs);
+		release(context.trust.topicSums);
+		release(context.trust.brandSums);
+		release(context.trust.prefSums);
+		release(context.trust.zSums);
+	}
+	
+	/**
+	 * @return objective at params - s * dir as a function of the step s, see {@link StepObjective}, or null if this
+	 * calculator cannot give it in closed form (e.g. for the exact trust loss over all user pairs)
+	 */
+	StepObjective stepObjective(Params params, Params dir) {
+		return null;
+	}
+	
 	abstract RealMatrix estRatings(Params params);
 	
 	abstract RealMatrix calRatingErrors(Params params);
+	
+	/**
+	 * @return squared Frobenius norm of {@link #calRatingErrors(Params)}, calculators which can evaluate it over the observed
+	 * ratings only (without the numUser x numItem error matrix) override this
+	 */
+	double sqRatingError(Params params) {
+		return UtilFuncs.square(calRatingErrors(params).getFrobeniusNorm());
+	}
+	
+	/**
+	 * Same as {@link UtilFuncs#cutoff(RealMatrix)}, entries are mapped by the backend
+	 */
+	RealMatrix cutoff(RealMatrix matrix) {
+		double[][] entries = (matrix instanceof Array2DRowRealMatrix) ? ((Array2DRowRealMatrix) matrix).getDataRef() : matrix.getData();
+		double[][] bounded = new double[matrix.getRowDimension()][matrix.getColumnDimension()];
+		linAlg.map(entries, UtilFuncs::cutoff, bounded);
+		return new Array2DRowRealMatrix(bounded, false);
+	}
 }
@@ -0,0 +1,161 @@
+package core;
+
+import java.nio.DoubleBuffer;
+import java.util.Random;
+
+import defs.Dataset;
+import defs.FactorMatrix;
+import defs.Hypers;
+import defs.Params;
+import defs.SparseRatings;
+
+/**
+ * Mini-batch stochastic gradient steps of a model (see {@link Trainer.Method#STOCHASTIC}). The losses of the objective
+ * are sums over entries, the observed ratings and the terms of a trust sample (observed edges plus non-edges, see
+ * {@link TrustSample}), and the part of the (half) gradient of an entry only involves the feats of its user and item or
+ * of its truster and trustee. An epoch visits the entries once, shuffled into batches of batchSize:
+ * - the params of an entry take the step of its part of the gradient as soon as the entry is visited,
+ * - the regularizers, which involve all the params, take one step per batch with the batch's share of the epoch, and
+ * lazily (see {@link LazyL2}), so that a batch costs O(batchSize * numTopic) whatever the numbers of users and items.
+ * Over an epoch, both add up to about one gradient step of the objective with the learning rate, whose schedule is
+ * learningRate / (1 + decay * e) after e epochs (fractions of an epoch included).
+ *
+ * Params are updated in place, their version is changed at the end of each epoch.
+ */
+abstract class SGD {
+
+	Dataset ds;
+	Hypers hypers;
+	int numTopic;
+
+	private final int batchSize;
+	private final double learningRate;
+	private final double decay;
+	private long numBatch;	// batches done since the first epoch, for the schedule
+
+	private int[] raters;	// user of each observed rating
+	private int[] order;	// entries of the epoch, ratings first then the trust terms
+
+	protected TrustSample trustSample;
+	private int[] trusters;	// truster of each term of the trust sample
+
+	SGD(Trainer trainer) {
+		ds = trainer.ds;
+		hypers = trainer.hypers;
+		numTopic = trainer.numTopic;
+		batchSize = trainer.batchSize;
+		learningRate = trainer.learningRate;
+		decay = trainer.learningRateDecay;
+
+		SparseRatings ratings = ds.ratings;
+		raters = new int[ratings.nnz()];
+		for (int u = 0; u < ds.numUser; u++) {
+			for (int k = ratings.userStart(u); k < ratings.userEnd(u); k++) {
+				raters[k] = u;
+			}
+		}
+	}
+
+	/**
+	 * @param sample: trust terms of the next epochs, with their weights and scales as in the sampled trust loss
+	 */
+	void useTrustSample(TrustSample sample) {
+		trustSample = sample;
+		trusters = new int[sample.numTerm()];
+		for (int u = 0; u < ds.numUser; u++) {
+			for (int t = sample.start(u); t < sample.end(u); t++) {
+				trusters[t] = u;
+			}
+		}
+	}
+
+	/**
+	 * One pass over the ratings and the trust terms in random order, see {@link SGD}
+	 */
+	void epoch(Params params, Random random) {
+
+		int numRating = raters.length;
+		int numEntry = numRating + trustSample.numTerm();
+		if (order == null || order.length != numEntry) {
+			order = new int[numEntry];
+		}
+		for (int n = 0; n < numEntry; n++) {
+			order[n] = n;
+		}
+		shuffle(order, random);
+
+		long batchesPerEpoch = (numEntry + batchSize - 1) / batchSize;
+		for (int first = 0; first < numEntry; first += batchSize) {
+			int last = Math.min(first + batchSize, numEntry);
+			double rate = learningRate / (1 + decay * numBatch / batchesPerEpoch);
+			for (int n = first; n < last; n++) {
+				int entry = order[n];
+				if (entry < numRating) {
+					ratingStep(params, raters[entry], entry, rate);
+				} else {
+					trustStep(params, trusters[entry - numRating], entry - numRating, rate);
+				}
+			}
+			shrink(rate * (last - first) / numEntry);
+			numBatch++;
+		}
+		catchUpAll(params);
+		params.touch();	// values were changed in place
+	}
+
+	/**
+	 * Step of the rating k of user u, on the feats it involves once they are caught up with the regularizers
+	 */
+	abstract void ratingStep(Params params, int u, int k, double rate);
+
+	/**
+	 * Step of the term t of the trust sample, whose truster is u
+	 */
+	abstract void trustStep(Params params, int u, int t, double rate);
+
+	// regularizer step of a batch, see LazyL2#shrink
+	abstract void shrink(double rate);
+
+	// bring all params up to date with the regularizers, at the end of an epoch
+	abstract void catchUpAll(Params params);
+
+	// Fisher-Yates
+	private static void shuffle(int[] entries, Random random) {
+		for (int n = entries.length - 1; n > 0; n--) {
+			int m = random.nextInt(n + 1);
+			int entry = entries[n];
+			entries[n] = entries[m];
+			entries[m] = entry;
+		}
+	}
+
+	/**
+	 * Step of both vectors of a product x_e . y_f whose term has derivative c: x_e -= xRate * c * y_f and
+	 * y_f -= yRate * c * x_e, both from the values before the step
+	 */
+	static void crossStep(FactorMatrix x, int e, double xRate, FactorMatrix y, int f, double yRate, double c) {
+		DoubleBuffer xData = x.data();
+		DoubleBuffer yData = y.data();
+		int xOff = x.offset(e);
+		int yOff = y.offset(f);
+		for (int k = 0; k < x.numFactor(); k++) {
+			double xk = xData.get(xOff + k);
+			double yk = yData.get(yOff + k);
+			xData.put(xOff + k, xk - xRate * c * yk);
+			yData.put(yOff + k, yk - yRate * c * xk);
+		}
+	}
+
+	/**
+	 * Step of x_e only: x_e -= rate * c * y_f
+	 */
+	static void step(FactorMatrix x, int e, double rate, FactorMatrix y, int f, double c) {
+		DoubleBuffer xData = x.data();
+		DoubleBuffer yData = y.data();
+		int xOff = x.offset(e);
+		int yOff = y.offset(f);
+		for (int k = 0; k < x.numFactor(); k++) {
+			xData.put(xOff + k, xData.get(xOff + k) - rate * c * yData.get(yOff + k));
+		}
+	}
+}
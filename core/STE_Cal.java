@@ -1,19 +1,33 @@
 package core;
 
+import helpers.Kernels;
+import helpers.Sigmoid;
 import helpers.UtilFuncs;
 
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
 import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.RealVector;
 
 import defs.Dataset;
+import defs.FactorMatrix;
 import defs.Hypers;
 import defs.Params;
+import defs.SocialGraph;
+import defs.SparseRatings;
 
+/**
+ * STE (social trust ensemble) model in Hao Ma paper: Learning to Recommend with Social Trust Ensemble.
+ * r_{u,i} = alpha * theta_u . theta_i + (1 - alpha) * sum_{v trusting u} w_{v,u} theta_v . theta_i = c_u . theta_i,
+ * where the combined feats c_u = alpha * theta_u + (1 - alpha) * (W^T theta)_u are computed once per params version
+ * (see {@link EvalContext#topicCombos}), so that a rating costs one dot product whatever the number of trusters
+ */
 class STE_Cal extends RecSysCal {
-	
-	Dataset ds; 
+
+	Dataset ds;
 	Hypers hypers;
-	
+
 	public STE_Cal(Dataset ds, Hypers hypers) {
 		super(ds);
 		this.ds = ds;
@@ -22,12 +36,14 @@ class STE_Cal extends RecSysCal {
 
 	@Override
 	double objValue(Params params) {
-		
-//		System.out.println("calculating value of objective function ...");
-		estimated_ratings = estRatings(params);
-		RealMatrix rating_errors = calRatingErrors(params);
-		double sqErr = UtilFuncs.square(rating_errors.getFrobeniusNorm());
-		return sqErr + regularization(params) ;
+
+		EvalContext context = context(params);
+		if (context.objValue != null) {
+			return context.objValue;
+		}
+		double value = evalRatings(params).sqRatingError + regularization(params);
+		context.objValue = value;
+		return value;
 	}
 
 	double regularization(Params params) {
@@ -37,43 +53,130 @@ class STE_Cal extends RecSysCal {
 		return val;
 	}
 
-	RealMatrix estRatings(Params params) {
-		
+	/**
+	 * Same value as the squared Frobenius norm of {@link #calRatingErrors(Params)}, computed over the observed ratings only
+	 */
+	@Override
+	double sqRatingError(Params params) {
+		return evalRatings(params).sqRatingError;
+	}
+
+	// estimates, errors and logistic derivatives of the observed ratings, once per params version
+	EvalContext evalRatings(Params params) {
+
+		EvalContext context = context(params);
+		if (context.errors != null) {
+			return context;
+		}
+		evalCombos(params, context);
+
+		SparseRatings ratings = ds.ratings;
+		double[] estimates = newArray(ratings.nnz());
+		double[] errors = newArray(ratings.nnz());
+		double[] logisDiffs = newArray(ratings.nnz());
+		double sum = 0;
 		for (int u = 0; u < ds.numUser; u++) {
-			for (int i = 0; i < ds.numItem; i++) {
-				estimated_ratings.setEntry(u, i, estOneRating(u, i, params));
+			for (int k = ratings.userStart(u); k < ratings.userEnd(u); k++) {
+				estimates[k] = estOneRating(u, ratings.itemAt(k), params, context);
+			}
+			// bounded estimates are written in place of the errors
+			Sigmoid.eval(estimates, ratings.userStart(u), ratings.userEnd(u), errors, logisDiffs);
+			for (int k = ratings.userStart(u); k < ratings.userEnd(u); k++) {
+				errors[k] = errors[k] - ratings.valueAt(k);
+				sum += errors[k] * errors[k];
 			}
 		}
-		return estimated_ratings;
+		context.estimates = estimates;
+		context.errors = errors;
+		context.logisDiffs = logisDiffs;
+		context.sqRatingError = UtilFuncs.square(Math.sqrt(sum));	// as for the norm of the dense errors
+		return context;
 	}
 
-	RealMatrix calRatingErrors(Params params) {
-		
-//		STE_Calculator calculator = new STE_Calculator(params, alpha, ds.edge_weights);
-		
-		RealMatrix bounded_ratings = UtilFuncs.cutoff(estimated_ratings);
-		RealMatrix rating_errors = ErrorCal.ratingErrors(bounded_ratings, ds.ratings);
-		return rating_errors;
+	// combined feats of the users, see EvalContext
+	void evalCombos(Params params, EvalContext context) {
+		context.topicCombos = combine(params.topicUser);
 	}
-	
+
+	// with the combined feats of the params version in context
+	double estOneRating(int u, int i, Params params, EvalContext context) {
+		return context.topicCombos.dot(u, params.topicItem, i);
+	}
+
 	/**
-	 * Estimated rating r_{u,i} by STE (social trust ensemble) model in Hao Ma paper: Learning to Recommend with Social Trust Ensemble
-	 * @param u
-	 * @param i
-	 * @param edge_weights
-	 * @return
+	 * @return alpha * feats_u + (1 - alpha) * sum_{v trusting u, w_{v,u} > 0} w_{v,u} feats_v for every user u, i.e. the
+	 * feats mixed with the aggregate W^T feats in one pass over the edges
 	 */
-	double estOneRating(int u, int i, Params params) {
-		
-		RealVector userTopicFeat = params.topicUser.getColumnVector(u);
-		RealVector itemTopicFeat = params.topicItem.getColumnVector(i);
-		double personal_rating = userTopicFeat.dotProduct(itemTopicFeat);
+	FactorMatrix combine(FactorMatrix feats) {
+
+		int numFactor = feats.numFactor();
+		SocialGraph graph = ds.edge_weights;
+		double alpha = hypers.alpha;
+		DoubleBuffer data = feats.data();
+
+		double[] aggregate = new double[numFactor];
+		// on the heap whatever the default storage: combos are made for every params version and never closed
+		FactorMatrix combos = new FactorMatrix(numFactor, ds.numUser, FactorMatrix.Storage.HEAP);
+		for (int u = 0; u < ds.numUser; u++) {
+			Arrays.fill(aggregate, 0);
+			for (int p = graph.inStart(u); p < graph.inEnd(u); p++) {
+				double influenceWeight = graph.inWeight(p);
+				if (influenceWeight > 0) {
+					Kernels.axpy(influenceWeight, data, feats.offset(graph.inNeighbor(p)), aggregate, 0, numFactor);
+				}
+			}
+			Kernels.scaledAccumulate(alpha, data, feats.offset(u), 1 - alpha, aggregate, combos.data(), combos.offset(u), numFactor);
+		}
+		return combos;
+	}
+
+	/**
+	 * Combined feats are linear in the feats, c_u - s (combined dir)_u, so the ratings are quadratic in the step
+	 */
+	@Override
+	StepObjective stepObjective(Params params, Params dir) {
 		
-		double neighbor_rating = 0;
-		for (int v = 0; v < ds.numUser; v++)  {
-			RealVector v_topicFeat = params.topicUser.getColumnVector(v);
-			neighbor_rating += ds.edge_weights.getEntry(v, u) * v_topicFeat.dotProduct(itemTopicFeat);
+		EvalContext context = context(params);
+		if (context.topicCombos == null) {
+			evalCombos(params, context);
+		}
+		FactorMatrix dirCombos = combine(dir.topicUser);
+		StepObjective objective = new StepObjective(ds.ratings);
+		double[] dot = new double[3];
+		SparseRatings ratings = ds.ratings;
+		for (int u = 0; u < ds.numUser; u++) {
+			for (int k = ratings.userStart(u); k < ratings.userEnd(u); k++) {
+				StepObjective.dotPoly(context.topicCombos, dirCombos, u, params.topicItem, dir.topicItem, ratings.itemAt(k), dot);
+				objective.addRatingTerm(k, 1, 0, dot);
+			}
 		}
-		return hypers.alpha*personal_rating + (1 - hypers.alpha)*neighbor_rating;
+		objective.addReg(hypers.topicLambda, params.topicUser, dir.topicUser);
+		objective.addReg(hypers.topicLambda, params.topicItem, dir.topicItem);
+		return objective;
+	}
+
+	/**
+	 * Dense numUser x numItem estimates, for predictions
+	 */
+	@Override
+	RealMatrix estRatings(Params params) {
+
+		EvalContext context = context(params);
+		if (context.topicCombos == null) {
+			evalCombos(params, context);
+		}
+		double[][] estimated = new double[ds.numUser][ds.numItem];
+		getLinAlg().gemmTN(null, context.topicCombos, params.topicItem, estimated, false);
+		return new Array2DRowRealMatrix(estimated, false);
+	}
+
+	@Override
+	RealMatrix calRatingErrors(Params params) {
+		return calRatingErrors(estRatings(params), ds.ratings);
+	}
+
+	public RealMatrix calRatingErrors(RealMatrix estimated_ratings, SparseRatings ratings) {
+		RealMatrix bounded_ratings = cutoff(estimated_ratings);
+		return ErrorCal.ratingErrors(bounded_ratings, ratings);
 	}
 }
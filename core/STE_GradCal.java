@@ -1,10 +1,10 @@
 package core;
 
-import helpers.UtilFuncs;
+import helpers.Kernels;
 
-import org.apache.commons.math3.linear.ArrayRealVector;
-import org.apache.commons.math3.linear.RealVector;
+import java.util.Arrays;
 
+import defs.FactorMatrix;
 import defs.Params;
 
 public class STE_GradCal extends GradCal {
@@ -12,7 +12,15 @@ public class STE_GradCal extends GradCal {
 	// this alpha is redundant (it is already included in hypers), but for later brevity, we allow this redundancy
 	// for the meaning of alpha, see in hypers
 	protected double alpha;
-	protected STE_Cal calculator;
+	protected STE_Cal calculator;	// the trainer's one, so that evaluations of the params are shared with the objective
+	
+	// per observed rating (user-major order), from the evaluation context of the params
+	protected EvalContext context;
+	protected WeightedResiduals residuals;
+	
+	// personal topic sums g_u = sum_{i rated by u} w_u * e_{u,i} * logisDiff_{u,i} * theta_i of all users, numUser x numTopic.
+	// A user enters the ratings of its trusters through the combined feats, so its gradient mixes its own sum with theirs
+	protected double[] topic_personal_sums;
 	
 	public STE_GradCal(Trainer trainer) {
 		
@@ -20,113 +28,98 @@ public class STE_GradCal extends GradCal {
 		ds = trainer.ds;
 		hypers = trainer.hypers;
 		this.alpha = hypers.alpha;
-		calculator = new STE_Cal(ds, hypers);
+		calculator = (STE_Cal) trainer.calculator;
+		
+		topic_personal_sums = new double[ds.numUser * numTopic];
+		residuals = new WeightedResiduals(ds.ratings);
+	}
+	
+	@Override
+	Params newGradient() {
+		return new Params(ds.numUser, ds.numItem, numTopic);
 	}
 
 	@Override
 	Params calculate(Params params) {
 		
-		estimated_ratings = calculator.estRatings(params);	// for each set of params, need to re-estimate ratings
-		rating_errors = calculator.calRatingErrors(params);
+		useContext(calculator.evalRatings(params));
+		calTopicPersonalSums(params);
 		
-		Params grad = new Params(ds.numUser, ds.numItem, numTopic);
+		Params grad = workspace();
 		// gradients for users
-		for (int u = 0; u < ds.numUser; u++) {
-			RealVector userTopicGrad = calUserTopicGrad(params, u);
-			grad.topicUser.setColumnVector(u, userTopicGrad);
-		}
+		forEachUser((u, sums) -> calUserTopicGrad(params, u, grad.topicUser, sums));
 		// gradients for items
-		for (int i = 0; i < ds.numItem; i++) {
-			grad.topicItem.setColumnVector(i, calItemTopicGrad(params, i));
-		}
+		forEachItem((i, sums) -> calItemTopicGrad(params, i, grad.topicItem, sums));
 		return grad;
 	}
 	
-	@Override
-	RealVector calItemTopicGrad(Params params, int itemIndex) {
-		
-		RealVector itemTopicFeats = params.topicItem.getColumnVector(itemIndex);
-		RealVector itemTopicGrad = itemTopicFeats.mapMultiply(hypers.topicLambda);
+	void useContext(EvalContext context) {
+		this.context = context;
+		residuals.set(context.errors, context.logisDiffs);
+	}
+	
+	/**
+	 * Weights of the topic part in the estimates of the users, null for STE where it is 1
+	 */
+	double[] topicWeights(Params params) {
+		return null;
+	}
+	
+	// rows of diag(topicWeights) G theta_I
+	void calTopicPersonalSums(Params params) {
 		
-		RealVector sum = new ArrayRealVector(numTopic);
-		for (int u = 0; u < ds.numUser; u++) {
-			double rate_err = rating_errors.getEntry(u, itemIndex);
-			if (rate_err != 0) {
-				double logisDiff = UtilFuncs.logisDiff(estimated_ratings.getEntry(u, itemIndex));
-				RealVector userTopicFeats = params.topicUser.getColumnVector(u);
-				RealVector comboTopicFeat = comboTopicFeat(userTopicFeats, u, params);
-				
-				RealVector correctionByUser = comboTopicFeat.mapMultiply(rate_err).mapMultiply(logisDiff);
-				sum = sum.add(correctionByUser);
+		double[] weights = topicWeights(params);
+		forEachUser((u, sums) -> {
+			int uOff = u * numTopic;
+			Arrays.fill(topic_personal_sums, uOff, uOff + numTopic, 0);
+			residuals.rowProduct(u, params.topicItem, topic_personal_sums, uOff);
+			if (weights != null) {
+				for (int k = uOff; k < uOff + numTopic; k++) {
+					topic_personal_sums[k] *= weights[u];
+				}
 			}
-		}
-		
-		itemTopicGrad = itemTopicGrad.add(sum);
-		return itemTopicGrad;
+		});
 	}
-
-	RealVector calUserTopicGrad(Params params, int u) {
+	
+	@Override
+	void calItemTopicGrad(Params params, int itemIndex, FactorMatrix grad, Sums sums) {
 		
-		RealVector userTopicFeats = params.topicUser.getColumnVector(u);
-		RealVector userTopicGrad = userTopicFeats.mapMultiply(hypers.topicLambda);
+		double[] topic_sum = sums.topicRating;
+		Arrays.fill(topic_sum, 0);
 		
-		RealVector personal_part = compPersonalPart(u, params);
-		RealVector influenceePart = compInfluenceePart(u, params);
+		// only users who rated the item contribute, by their combined feats
+		residuals.columnProduct(itemIndex, topicWeights(params), context.topicCombos, topic_sum, 0);
 		
-		RealVector sum = personal_part.mapMultiply(alpha).add(influenceePart.mapMultiply(1 - alpha));
-		userTopicGrad = userTopicGrad.add(sum); 
-		return userTopicGrad;
+		Kernels.scaledAccumulate(hypers.topicLambda, params.topicItem.data(), params.topicItem.offset(itemIndex),
+									1, topic_sum, grad.data(), grad.offset(itemIndex), numTopic);
 	}
 	
-	protected RealVector compInfluenceePart(int u, Params params) {
+	@Override
+	void calUserTopicGrad(Params params, int u, FactorMatrix grad, Sums sums) {
 		
-		// influencee: those who are influenced by/trust u, thus include u's feat in their rating
-		RealVector influenceePart = new ArrayRealVector(numTopic);	
-		for (int v = 0; v < ds.numUser; v++) {
-			double influencedLevel = ds.edge_weights.getEntry(u, v);
-			if (influencedLevel > 0) {
-				for (int j = 0; j < ds.numItem; j++) {
-					double oneRatingErr = rating_errors.getEntry(v, j);
-					if (oneRatingErr != 0) {
-						RealVector itemTopicFeats = params.topicItem.getColumnVector(j);
-						double logisDiff = UtilFuncs.logisDiff(estimated_ratings.getEntry(v, j));
-						double weight = influencedLevel * oneRatingErr * logisDiff;
-						influenceePart = influenceePart.add(itemTopicFeats.mapMultiply(weight));
-					}
-				}
-			}
-		}
-		return influenceePart;
+		mixPersonalSums(topic_personal_sums, u, numTopic, sums.topicEdge, sums.topicRating);
+		Kernels.scaledAccumulate(hypers.topicLambda, params.topicUser.data(), params.topicUser.offset(u),
+									1, sums.topicRating, grad.data(), grad.offset(u), numTopic);
 	}
-
-	protected RealVector compPersonalPart(int u, Params params) {
+	
+	/**
+	 * sum = alpha * personal_u + (1 - alpha) * sum_{v trusting u, w_{v,u} > 0} w_{v,u} personal_v, i.e. the sums of
+	 * u itself and of the trusters whose combined feats contain u
+	 * @param personal: personal sums of all users, n values per user
+	 * @param social: buffer of size n
+	 */
+	void mixPersonalSums(double[] personal, int u, int n, double[] social, double[] sum) {
 		
-		RealVector personal_part = new ArrayRealVector(numTopic);
-		for (int i = 0; i < ds.numItem; i++) {
-			RealVector itemTopicFeats = params.topicItem.getColumnVector(i);
-			double oneRatingErr = rating_errors.getEntry(u, i);
-			if (oneRatingErr != 0) {
-				double logisDiff = UtilFuncs.logisDiff(estimated_ratings.getEntry(u, i));
-				
-				personal_part = personal_part.add(itemTopicFeats.mapMultiply(oneRatingErr*logisDiff));
+		Arrays.fill(social, 0);
+		for (int k = ds.edge_weights.outStart(u); k < ds.edge_weights.outEnd(u); k++) {
+			int v = ds.edge_weights.outNeighbor(k);
+			double influencedLevel = ds.edge_weights.outWeight(k);
+			if (influencedLevel > 0) {
+				Kernels.axpy(influencedLevel, personal, v * n, social, 0, n);
 			}
 		}
-		return personal_part;
-	}
-
-	protected RealVector comboTopicFeat(RealVector userTopicFeats, int u, Params params) {
-		
-		RealVector combo_feat = userTopicFeats.mapMultiply(alpha);
-		RealVector friendFeats = new ArrayRealVector(numTopic);
-		for (int v = 0; v < ds.numUser; v++) {
-			double influenceWeight = ds.edge_weights.getEntry(v, u);
-			if (influenceWeight > 0) {
-				RealVector vFeat = params.topicUser.getColumnVector(v);
-				friendFeats = friendFeats.add(vFeat.mapMultiply(influenceWeight));
-			}
+		for (int f = 0; f < n; f++) {
+			sum[f] = alpha * personal[u * n + f] + (1 - alpha) * social[f];
 		}
-		combo_feat = combo_feat.add(friendFeats.mapMultiply(1 - alpha));
-		return combo_feat;
 	}
-	
 }
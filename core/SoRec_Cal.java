@@ -1,19 +1,33 @@
 package core;
 
+import helpers.Kernels;
+import helpers.Sigmoid;
 import helpers.UtilFuncs;
 
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
 import org.apache.commons.math3.linear.RealMatrix;
 
 import defs.Dataset;
+import defs.FactorMatrix;
 import defs.Hypers;
 import defs.Params;
 import defs.SoRecParams;
+import defs.SocialGraph;
+import defs.SparseRatings;
 
 class SoRec_Cal extends RecSysCal {
 	
 	Dataset ds; 
 	Hypers hypers;
 	
+	// buffers of the exact trust pass, per thread as its tiles may run in parallel
+	private final ThreadLocal<TileBuffers> tileBuffers = ThreadLocal.withInitial(TileBuffers::new);
+	
 	public SoRec_Cal(Dataset ds, Hypers hypers) {
 		super(ds);
 		this.ds = ds;
@@ -23,38 +37,321 @@ class SoRec_Cal extends RecSysCal {
 	@Override
 	double objValue(Params params) {
 		SoRecParams soRecParams = (SoRecParams) params;
+		EvalContext context = context(soRecParams);
+		if (context.objValue != null) {
+			return context.objValue;
+		}
 		
-		RealMatrix ratingErrs = calRatingErrors(soRecParams);
-		RealMatrix edgeWeightErrs = calEdgeWeightErrors(soRecParams);
-		double value = sqFrobNorm(ratingErrs) + hypers.weightLambda * sqFrobNorm(edgeWeightErrs);
+		double value = sqRatingError(soRecParams) + hypers.weightLambda * sqEdgeWeightError(soRecParams);
 		double regPart = sqFrobNorm(soRecParams.topicUser) + sqFrobNorm(soRecParams.topicItem) + sqFrobNorm(soRecParams.zMatrix);
 		value += hypers.topicLambda * regPart;  
 		
+		context.objValue = value;
 		return value;
 	}
 
+	/**
+	 * Ratings and sampled trust terms are dot products of two stepped feats, hence quadratic in the step
+	 */
+	@Override
+	StepObjective stepObjective(Params params, Params dir) {
+		
+		if (trustSample == null) {
+			return null;
+		}
+		SoRecParams castParams = (SoRecParams) params;
+		SoRecParams castDir = (SoRecParams) dir;
+		StepObjective objective = new StepObjective(ds.ratings);
+		double[] dot = new double[3];
+		SparseRatings ratings = ds.ratings;
+		for (int u = 0; u < ds.numUser; u++) {
+			for (int k = ratings.userStart(u); k < ratings.userEnd(u); k++) {
+				StepObjective.dotPoly(params.topicUser, dir.topicUser, u, params.topicItem, dir.topicItem, ratings.itemAt(k), dot);
+				objective.addRatingTerm(k, 1, 0, dot);
+			}
+		}
+		
+		objective.useTrustSample(trustSample, hypers.weightLambda);
+		for (int u = 0; u < ds.numUser; u++) {
+			for (int t = trustSample.start(u); t < trustSample.end(u); t++) {
+				StepObjective.dotPoly(params.topicUser, dir.topicUser, u, castParams.zMatrix, castDir.zMatrix, trustSample.target(t), dot);
+				objective.addTrustTerm(t, 1, 0, dot);
+			}
+		}
+		
+		objective.addReg(hypers.topicLambda, params.topicUser, dir.topicUser);
+		objective.addReg(hypers.topicLambda, params.topicItem, dir.topicItem);
+		objective.addReg(hypers.topicLambda, castParams.zMatrix, castDir.zMatrix);
+		return objective;
+	}
+
 	@Override
 	RealMatrix estRatings(Params params) {
-		RealMatrix estRatings = params.topicUser.transpose().multiply(params.topicItem);
-		return estRatings;
+		double[][] estRatings = new double[ds.numUser][ds.numItem];
+		getLinAlg().gemmTN(null, params.topicUser, params.topicItem, estRatings, false);
+		return new Array2DRowRealMatrix(estRatings, false);
 	}
 
+	/**
+	 * Same value as the squared Frobenius norm of {@link #calRatingErrors(Params)}, computed over the observed ratings only
+	 * (see {@link SocBIT_Cal#evalRatings})
+	 */
+	@Override
+	double sqRatingError(Params params) {
+		return evalRatings(params).sqRatingError;
+	}
+	
+	// estimates, errors and logistic derivatives of the observed ratings, once per params version
+	EvalContext evalRatings(Params params) {
+		
+		EvalContext context = context(params);
+		if (context.errors != null) {
+			return context;
+		}
+		
+		SparseRatings ratings = ds.ratings;
+		double[] estimates = newArray(ratings.nnz());
+		double[] errors = newArray(ratings.nnz());
+		double[] logisDiffs = newArray(ratings.nnz());
+		double sum = 0;
+		for (int u = 0; u < ds.numUser; u++) {
+			for (int k = ratings.userStart(u); k < ratings.userEnd(u); k++) {
+				estimates[k] = params.topicUser.dot(u, params.topicItem, ratings.itemAt(k));
+			}
+			// bounded estimates are written in place of the errors
+			Sigmoid.eval(estimates, ratings.userStart(u), ratings.userEnd(u), errors, logisDiffs);
+			for (int k = ratings.userStart(u); k < ratings.userEnd(u); k++) {
+				errors[k] = errors[k] - ratings.valueAt(k);
+				sum += errors[k] * errors[k];
+			}
+		}
+		context.estimates = estimates;
+		context.errors = errors;
+		context.logisDiffs = logisDiffs;
+		context.sqRatingError = UtilFuncs.square(Math.sqrt(sum));
+		return context;
+	}
+	
 	@Override
 	RealMatrix calRatingErrors(Params params) {
 		RealMatrix estimated_ratings = estRatings(params);
-		RealMatrix bounded_ratings = UtilFuncs.cutoff(estimated_ratings);
+		RealMatrix bounded_ratings = cutoff(estimated_ratings);
 		RealMatrix rating_errors = ErrorCal.ratingErrors(bounded_ratings, ds.ratings);
 		return rating_errors;
 	}
 	
 	RealMatrix estWeights(SoRecParams params) {
-		RealMatrix estimated_weights = params.topicUser.transpose().multiply(params.zMatrix);
-		return estimated_weights;
+		double[][] estimated_weights = new double[ds.numUser][ds.numUser];
+		getLinAlg().gemmTN(null, params.topicUser, params.zMatrix, estimated_weights, false);
+		return new Array2DRowRealMatrix(estimated_weights, false);
+	}
+	
+	/**
+	 * Same as {@link #estWeights(SoRecParams)} but only for the terms of a trust sample
+	 * @param estimated: gets the estimated weight of each term
+	 */
+	void estWeights(SoRecParams params, TrustSample sample, double[] estimated) {
+		for (int u = 0; u < ds.numUser; u++) {
+			for (int t = sample.start(u); t < sample.end(u); t++) {
+				estimated[t] = params.topicUser.dot(u, params.zMatrix, sample.target(t));
+			}
+		}
+	}
+	
+	/**
+	 * @return squared Frobenius norm of the edge weight errors, estimated on the trust sample if one is used
+	 */
+	double sqEdgeWeightError(SoRecParams params) {
+		return evalTrust(params, false).sqError;
+	}
+	
+	/**
+	 * Trust terms of a params version, computed once and shared by the objective and the gradients (see
+	 * {@link TrustPass}). With a trust sample, the errors and logistic derivatives of its terms are kept, the arrays
+	 * being reused from dropped contexts (see {@link #newArray}) and the estimates written in place of the errors.
+	 * Without one, all user pairs are streamed by tiles (see {@link #TRUST_TILE}) and only the gradient sums of the
+	 * users are kept, if {@code withGrads}: those of theta_u in a pass by tiles of trusters, those of z_v in a pass by
+	 * tiles of trustees, so that each tile writes only its own sums and runs on the pool if one is set. Sums of each
+	 * user are accumulated in increasing order of the other user, whatever the number of threads. As for socBIT (see
+	 * {@link SocBIT_Cal#evalTrust}), the objective's pass has no sums and a version whose gradient is asked for gets a
+	 * second pass with them
+	 */
+	TrustPass evalTrust(SoRecParams params, boolean withGrads) {
+		
+		EvalContext context = context(params);
+		boolean missingGrads = withGrads && trustSample == null && context.trust != null && !context.trust.hasGrads();
+		if (context.trust != null && !missingGrads) {
+			return context.trust;
+		}
+		TrustPass pass = new TrustPass();
+		if (trustSample != null) {
+			pass.errors = newArray(trustSample.numTerm());
+			pass.logisDiffs = newArray(trustSample.numTerm());
+			estWeights(params, trustSample, pass.errors);
+			trustSample.errors(pass.errors, pass.errors, pass.logisDiffs);
+			pass.sqError = trustSample.sqError(pass.errors);
+		} else {
+			if (withGrads) {
+				pass.topicSums = newZeros(ds.numUser * params.topicUser.numFactor());
+				pass.zSums = newZeros(ds.numUser * params.zMatrix.numFactor());
+			}
+			exactTrustPass(params, pass);
+		}
+		context.trust = pass;
+		return pass;
+	}
+	
+	private void exactTrustPass(SoRecParams params, TrustPass pass) {
+		
+		int numTile = (ds.numUser + TRUST_TILE - 1) / TRUST_TILE;
+		double[] tileErrors = new double[numTile];
+		if (pool == null) {
+			for (int tile = 0; tile < numTile; tile++) {
+				tileErrors[tile] = trusterTile(params, pass, tile * TRUST_TILE);
+			}
+			for (int tile = 0; pass.zSums != null && tile < numTile; tile++) {
+				trusteeTile(params, pass, tile * TRUST_TILE);
+			}
+		} else {
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(2 * numTile);
+			for (int tile = 0; tile < numTile; tile++) {
+				int t = tile;
+				tasks.add(() -> {
+					tileErrors[t] = trusterTile(params, pass, t * TRUST_TILE);
+					return null;
+				});
+				if (pass.zSums != null) {
+					tasks.add(() -> {
+						trusteeTile(params, pass, t * TRUST_TILE);
+						return null;
+					});
+				}
+			}
+			runAll(tasks);
+		}
+		
+		double sqError = 0;
+		for (int tile = 0; tile < numTile; tile++) {
+			sqError += tileErrors[tile];
+		}
+		pass.sqError = sqError;
+	}
+	
+	/**
+	 * Terms of the trusters [uFirst, uFirst + TRUST_TILE) with all their trustees, and the sums of these trusters
+	 * @return squared errors of these terms
+	 */
+	private double trusterTile(SoRecParams params, TrustPass pass, int uFirst) {
+		
+		int numUser = ds.numUser;
+		int numTopic = params.topicUser.numFactor();
+		DoubleBuffer z = params.zMatrix.data();
+		SocialGraph graph = ds.edge_weights;
+		TileBuffers buffers = tileBuffers.get();
+		int[] nextEdge = buffers.nextEdge;
+		double[] estimates = buffers.estimates;
+		double[] bounded = buffers.bounded;
+		double[] logisDiffs = buffers.logisDiffs;
+		
+		double sqError = 0;
+		int uLast = Math.min(uFirst + TRUST_TILE, numUser);
+		for (int u = uFirst; u < uLast; u++) {
+			nextEdge[u - uFirst] = graph.outStart(u);
+		}
+		for (int vFirst = 0; vFirst < numUser; vFirst += TRUST_TILE) {
+			int vLast = Math.min(vFirst + TRUST_TILE, numUser);
+			for (int u = uFirst; u < uLast; u++) {
+				for (int v = vFirst; v < vLast; v++) {
+					estimates[v - vFirst] = params.topicUser.dot(u, params.zMatrix, v);
+				}
+				Sigmoid.eval(estimates, 0, vLast - vFirst, bounded, logisDiffs);
+				
+				int e = nextEdge[u - uFirst];
+				for (int v = vFirst; v < vLast; v++) {
+					double weight = 0;
+					if (e < graph.outEnd(u) && graph.outNeighbor(e) == v) {
+						weight = graph.outWeight(e);
+						e++;
+					}
+					if (v == u) {
+						continue;	// w_{u, u} does not exist
+					}
+					double error = bounded[v - vFirst] - weight;
+					sqError += error * error;
+					if (pass.topicSums != null && error != 0) {
+						Kernels.axpy(error * logisDiffs[v - vFirst], z, params.zMatrix.offset(v), pass.topicSums, u * numTopic,
+										numTopic);
+					}
+				}
+				nextEdge[u - uFirst] = e;
+			}
+		}
+		return sqError;
+	}
+	
+	/**
+	 * Sums of z_v of the trustees [vFirst, vFirst + TRUST_TILE), over the terms of all their trusters
+	 */
+	private void trusteeTile(SoRecParams params, TrustPass pass, int vFirst) {
+		
+		int numUser = ds.numUser;
+		int numTopic = params.zMatrix.numFactor();
+		DoubleBuffer theta = params.topicUser.data();
+		SocialGraph graph = ds.edge_weights;
+		TileBuffers buffers = tileBuffers.get();
+		int[] nextEdge = buffers.nextEdge;
+		double[] estimates = buffers.estimates;
+		double[] bounded = buffers.bounded;
+		double[] logisDiffs = buffers.logisDiffs;
+		
+		int vLast = Math.min(vFirst + TRUST_TILE, numUser);
+		for (int v = vFirst; v < vLast; v++) {
+			nextEdge[v - vFirst] = graph.inStart(v);
+		}
+		for (int uFirst = 0; uFirst < numUser; uFirst += TRUST_TILE) {
+			int uLast = Math.min(uFirst + TRUST_TILE, numUser);
+			for (int v = vFirst; v < vLast; v++) {
+				for (int u = uFirst; u < uLast; u++) {
+					estimates[u - uFirst] = params.topicUser.dot(u, params.zMatrix, v);
+				}
+				Sigmoid.eval(estimates, 0, uLast - uFirst, bounded, logisDiffs);
+				
+				int e = nextEdge[v - vFirst];	// trusters of v are in increasing order
+				for (int u = uFirst; u < uLast; u++) {
+					double weight = 0;
+					if (e < graph.inEnd(v) && graph.inNeighbor(e) == u) {
+						weight = graph.inWeight(e);
+						e++;
+					}
+					if (u == v) {
+						continue;
+					}
+					double error = bounded[u - uFirst] - weight;
+					if (error != 0) {
+						Kernels.axpy(error * logisDiffs[u - uFirst], theta, params.topicUser.offset(u), pass.zSums, v * numTopic,
+										numTopic);
+					}
+				}
+				nextEdge[v - vFirst] = e;
+			}
+		}
+	}
+	
+	/**
+	 * Buffers of the tiles computed by one thread, kept across passes
+	 */
+	private static class TileBuffers {
+		
+		// next edge of each user of the tile, as the other users are visited in order
+		final int[] nextEdge = new int[TRUST_TILE];
+		// estimates of a user with the users of the other tile, bounded with their logistic derivatives in one pass
+		final double[] estimates = new double[TRUST_TILE];
+		final double[] bounded = new double[TRUST_TILE];
+		final double[] logisDiffs = new double[TRUST_TILE];
 	}
 	
 	RealMatrix calEdgeWeightErrors(SoRecParams params) {
-		RealMatrix estimated_weights = estWeights(params);
-		RealMatrix bounded_weights = UtilFuncs.cutoff(estimated_weights);
+		RealMatrix bounded_weights = cutoff(estWeights(params));
 		RealMatrix edge_weight_errors = ErrorCal.edgeWeightErrors(bounded_weights, ds.edge_weights);
 		return edge_weight_errors;
 	}
@@ -62,11 +359,15 @@ class SoRec_Cal extends RecSysCal {
 	private double sqFrobNorm(RealMatrix matrix) {
 		return UtilFuncs.square(matrix.getFrobeniusNorm());
 	}
+	
+	private double sqFrobNorm(FactorMatrix feats) {
+		return UtilFuncs.square(feats.getFrobeniusNorm());
+	}
 
-	public RealMatrix calRatingErrors(RealMatrix estimated_ratings, RealMatrix ratings) {
+	public RealMatrix calRatingErrors(RealMatrix estimated_ratings, SparseRatings ratings) {
 		
-		RealMatrix bounded_ratings = UtilFuncs.cutoff(estimated_ratings);
-		RealMatrix rating_errors = ErrorCal.ratingErrors(bounded_ratings, ds.ratings);
+		RealMatrix bounded_ratings = cutoff(estimated_ratings);
+		RealMatrix rating_errors = ErrorCal.ratingErrors(bounded_ratings, ratings);
 		return rating_errors;
 	}
 
@@ -1,123 +1,175 @@
 package core;
 
-import helpers.UtilFuncs;
+import helpers.Kernels;
 
-import org.apache.commons.math3.linear.ArrayRealVector;
-import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.RealVector;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
 
+import defs.FactorMatrix;
 import defs.Params;
 import defs.SoRecParams;
 
 public class SoRec_GradCal extends GradCal {
 
-	private SoRec_Cal calculator;
-	private RealMatrix estimated_weights;
-	private RealMatrix edge_weight_errors;
+	private SoRec_Cal calculator;	// the trainer's one, so that evaluations of the params are shared with the objective
+	// per observed rating (user-major order), from the evaluation context of the params
+	private WeightedResiduals residuals;
+	// trust part, from the evaluation context of the params: per term of the trust sample if one is used, else the
+	// sums of the users over all user pairs (see TrustPass)
+	private double[] trust_term_errors;
+	private double[] trust_term_logis_diffs;
+	private double[] trust_topic_sums;
+	private double[] trust_z_sums;
+	// costs of the user gradients with the exact and with the sampled trust loss, see GradCal#forEachEntity
+	private long[] userCosts;
+	private long[] sampledUserCosts;
+	private TrustSample costSample;	// sample of sampledUserCosts
+	private long[] zCosts;
 	
 	public SoRec_GradCal(Trainer trainer) {
 		
 		numTopic = trainer.numTopic;
 		ds = trainer.ds;
 		hypers = trainer.hypers;
-		calculator = new SoRec_Cal(ds, hypers);
+		calculator = (SoRec_Cal) trainer.calculator;
+		residuals = new WeightedResiduals(ds.ratings);
+		zCosts = GradCal.costPrefix(ds.numUser, u -> 1);
+	}
+
+	@Override
+	Params newGradient() {
+		return SoRecParams.zeros(ds.numUser, ds.numItem, numTopic);
 	}
 
 	@Override
 	Params calculate(Params params) {
 		
 		SoRecParams soRecParams = (SoRecParams) params;
-		estimated_ratings = calculator.estRatings(soRecParams);
-		rating_errors = calculator.calRatingErrors(soRecParams);
-		estimated_weights = calculator.estWeights(soRecParams);
-		edge_weight_errors = calculator.calEdgeWeightErrors(soRecParams);
+		EvalContext context = calculator.evalRatings(soRecParams);
+		residuals.set(context.errors, context.logisDiffs);
+		TrustPass trust = calculator.evalTrust(soRecParams, true);
+		trust_term_errors = trust.errors;
+		trust_term_logis_diffs = trust.logisDiffs;
+		trust_topic_sums = trust.topicSums;
+		trust_z_sums = trust.zSums;
 		
-		SoRecParams grad = new SoRecParams(ds.numUser, ds.numItem, this.numTopic);
-		for (int i = 0; i < ds.numItem; i++) {
-			grad.topicItem.setColumnVector(i, calItemTopicGrad(params, i));
-		}
+		SoRecParams grad = (SoRecParams) workspace();
+		forEachItem((i, sums) -> calItemTopicGrad(params, i, grad.topicItem, sums));
 		
-		for (int u = 0; u < ds.numUser; u++) {
-			grad.topicUser.setColumnVector(u, calUserTopicGrad(params, u));
-			grad.zMatrix.setColumnVector(u, calZGrad(soRecParams, u));
+		forEachEntity(userCosts(), (u, sums) -> calUserTopicGrad(params, u, grad.topicUser, sums));
+		if (trustSample != null) {
+			calSampledZGrad(soRecParams, grad.zMatrix);	// scattered to the trustees, sequential
+		} else {
+			forEachEntity(zCosts, (u, sums) -> calZGrad(soRecParams, u, grad.zMatrix, sums));
 		}
 		
 		return grad;
 	}
-
-	private RealVector calZGrad(SoRecParams params, int u) {
-		
-		RealVector zVector = params.zMatrix.getColumnVector(u);
-		RealVector zGrad = zVector.mapMultiply(hypers.topicLambda);
-		
-		RealVector sum = new ArrayRealVector(numTopic);
-		for (int v = 0; v < ds.numUser; v++) {
-			double trustErr = edge_weight_errors.getEntry(v, u);
-			if (trustErr != 0) {
-				RealVector vTopicFeats = params.topicUser.getColumnVector(v);
-				double estTrust = estimated_weights.getEntry(v, u);
-				double logisDiff = UtilFuncs.logisDiff(estTrust);
-				RealVector modifiedFeats = vTopicFeats.mapMultiply(trustErr*logisDiff);
-				sum = sum.add(modifiedFeats);
+	
+	// ratings of the user plus its sampled trust terms, the sums of the exact loss are already computed
+	private long[] userCosts() {
+		if (trustSample == null) {
+			if (userCosts == null) {
+				userCosts = GradCal.costPrefix(ds.numUser, u -> 1 + ds.ratings.userEnd(u) - ds.ratings.userStart(u));
 			}
+			return userCosts;
 		}
-		
-		zGrad = zGrad.add(sum.mapMultiply(hypers.weightLambda));
-		return zGrad;
+		if (costSample != trustSample) {
+			TrustSample sample = trustSample;
+			sampledUserCosts = GradCal.costPrefix(ds.numUser,
+									u -> 1 + ds.ratings.userEnd(u) - ds.ratings.userStart(u) + sample.end(u) - sample.start(u));
+			costSample = sample;
+		}
+		return sampledUserCosts;
 	}
-
-	@Override
-	RealVector calItemTopicGrad(Params params, int itemIndex) {
-		
-		double topicLambda = hypers.topicLambda;
-		RealVector itemTopicFeats = params.topicItem.getColumnVector(itemIndex);
-		RealVector topicGrad = itemTopicFeats.mapMultiply(topicLambda);
+	
+	/**
+	 * z_v gets the trust errors of its trusters, as the sampled terms are grouped by truster they are scattered to the
+	 * gradient of their trustee, which then holds the sum until it is combined with the regularizer
+	 */
+	private void calSampledZGrad(SoRecParams params, FactorMatrix grad) {
 		
-		RealVector sum = new ArrayRealVector(numTopic);
+		DoubleBuffer theta = params.topicUser.data();
+		DoubleBuffer g = grad.data();
+		for (int n = 0; n < g.capacity(); n++) {
+			g.put(n, 0);
+		}
 		for (int u = 0; u < ds.numUser; u++) {
-			double rating_err = rating_errors.getEntry(u, itemIndex);
-			if (rating_err != 0) {
-				RealVector userTopicFeat = params.topicUser.getColumnVector(u);
-				double logisDiff = UtilFuncs.logisDiff(estimated_ratings.getEntry(u, itemIndex));
-				sum = sum.add(userTopicFeat.mapMultiply(rating_err*logisDiff));
+			int uOff = params.topicUser.offset(u);
+			for (int t = trustSample.start(u); t < trustSample.end(u); t++) {
+				double trustErr = trust_term_errors[t];
+				if (trustErr != 0) {
+					double c = trustSample.scale(t) * trustErr * trust_term_logis_diffs[t];
+					int gOff = grad.offset(trustSample.target(t));
+					for (int k = 0; k < numTopic; k++) {
+						g.put(gOff + k, g.get(gOff + k) + theta.get(uOff + k) * c);
+					}
+				}
 			}
 		}
 		
-		topicGrad = topicGrad.add(sum);
-		return topicGrad;
+		DoubleBuffer z = params.zMatrix.data();
+		for (int n = 0; n < g.capacity(); n++) {
+			g.put(n, z.get(n) * hypers.topicLambda + g.get(n) * hypers.weightLambda);
+		}
+	}
+
+	private void calZGrad(SoRecParams params, int u, FactorMatrix grad, Sums sums) {
+		
+		double[] edge_weight_sum = sums.topicEdge;
+		System.arraycopy(trust_z_sums, u * numTopic, edge_weight_sum, 0, numTopic);
+		
+		Kernels.scaledAccumulate(hypers.topicLambda, params.zMatrix.data(), params.zMatrix.offset(u), hypers.weightLambda,
+									edge_weight_sum, grad.data(), grad.offset(u), numTopic);
 	}
 
 	@Override
-	RealVector calUserTopicGrad(Params params, int u) {
+	void calItemTopicGrad(Params params, int itemIndex, FactorMatrix grad, Sums sums) {
 		
-		RealVector topicFeats = params.topicUser.getColumnVector(u);
-		RealVector userTopicGrad = topicFeats.mapMultiply(hypers.topicLambda);
+		double[] rating_sum = sums.topicRating;
+		Arrays.fill(rating_sum, 0);
+		// only users who rated the item contribute
+		residuals.columnProduct(itemIndex, null, params.topicUser, rating_sum, 0);
 		
-		RealVector rating_sum = new ArrayRealVector(numTopic);
-		for (int i = 0; i < ds.numItem; i++) {
-			double rError = rating_errors.getEntry(u, i);
-			if (rError != 0) {
-				RealVector curItemTopicFeat = params.topicItem.getColumnVector(i);
-				double ratingLogisDiff = UtilFuncs.logisDiff(estimated_ratings.getEntry(u, i));
-				RealVector modified_topicFeat = curItemTopicFeat.mapMultiply(rError*ratingLogisDiff);
-				rating_sum = rating_sum.add(modified_topicFeat);
-			}
-		}
+		Kernels.scaledAccumulate(hypers.topicLambda, params.topicItem.data(), params.topicItem.offset(itemIndex), 1,
+									rating_sum, grad.data(), grad.offset(itemIndex), numTopic);
+	}
+
+	@Override
+	void calUserTopicGrad(Params params, int u, FactorMatrix grad, Sums sums) {
+		
+		double[] rating_sum = sums.topicRating;
+		double[] edge_weight_sum = sums.topicEdge;
+		Arrays.fill(rating_sum, 0);
+		residuals.rowProduct(u, params.topicItem, rating_sum, 0);
 		
 		SoRecParams soRecParams = (SoRecParams) params;
-		RealVector edge_weight_sum = new ArrayRealVector(numTopic);
-		for (int v = 0; v < ds.numUser; v++) {
-			double trustErr = edge_weight_errors.getEntry(u, v);
-			if (trustErr != 0) {
-				RealVector zOfFriend = soRecParams.zMatrix.getColumnVector(v);
-				double weightLogisDiff = UtilFuncs.logisDiff(estimated_weights.getEntry(u, v));
-				RealVector modified_topicFeat = zOfFriend.mapMultiply(trustErr*weightLogisDiff);
-				edge_weight_sum = edge_weight_sum.add(modified_topicFeat);
+		DoubleBuffer z = soRecParams.zMatrix.data();
+		Arrays.fill(edge_weight_sum, 0);
+		if (trustSample != null) {
+			for (int t = trustSample.start(u); t < trustSample.end(u); t++) {
+				double trustErr = trust_term_errors[t];
+				if (trustErr != 0) {
+					addScaled(edge_weight_sum, z, soRecParams.zMatrix.offset(trustSample.target(t)),
+								trustSample.scale(t) * trustErr * trust_term_logis_diffs[t]);
+				}
 			}
+		} else {
+			System.arraycopy(trust_topic_sums, u * numTopic, edge_weight_sum, 0, numTopic);
 		}
 		
-		userTopicGrad = userTopicGrad.add(rating_sum).add(edge_weight_sum.mapMultiply(hypers.weightLambda));
-		return userTopicGrad;
+		DoubleBuffer theta = params.topicUser.data();
+		int uOff = params.topicUser.offset(u);
+		DoubleBuffer g = grad.data();
+		int gOff = grad.offset(u);
+		for (int k = 0; k < numTopic; k++) {
+			g.put(gOff + k, theta.get(uOff + k) * hypers.topicLambda + rating_sum[k] + edge_weight_sum[k] * hypers.weightLambda);
+		}
+	}
+	
+	// sum[k] += data[offset + k] * c
+	private static void addScaled(double[] sum, DoubleBuffer data, int offset, double c) {
+		Kernels.axpy(c, data, offset, sum, 0, sum.length);
 	}
 
 }
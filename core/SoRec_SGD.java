@@ -0,0 +1,70 @@
+package core;
+
+import helpers.Sigmoid;
+
+import defs.Params;
+import defs.SoRecParams;
+import defs.SparseRatings;
+
+/**
+ * Stochastic steps of soRec, with the same parts of the gradient as {@link SoRec_GradCal}: a rating (u, i) involves
+ * theta_u and theta_i, a trust term (u, v) involves theta_u and z_v
+ */
+class SoRec_SGD extends SGD {
+
+	private LazyL2 userReg;
+	private LazyL2 itemReg;
+	private LazyL2 zReg;
+
+	SoRec_SGD(Trainer trainer) {
+		super(trainer);
+		userReg = new LazyL2(hypers.topicLambda, ds.numUser);
+		itemReg = new LazyL2(hypers.topicLambda, ds.numItem);
+		zReg = new LazyL2(hypers.topicLambda, ds.numUser);
+	}
+
+	@Override
+	void ratingStep(Params params, int u, int k, double rate) {
+
+		SparseRatings ratings = ds.ratings;
+		int i = ratings.itemAt(k);
+		userReg.catchUp(params.topicUser, u);
+		itemReg.catchUp(params.topicItem, i);
+
+		double estimate = params.topicUser.dot(u, params.topicItem, i);
+		double c = (Sigmoid.value(estimate) - ratings.valueAt(k)) * Sigmoid.diff(estimate);
+		if (c != 0) {
+			crossStep(params.topicUser, u, rate, params.topicItem, i, rate, c);
+		}
+	}
+
+	@Override
+	void trustStep(Params params, int u, int t, double rate) {
+
+		SoRecParams castParams = (SoRecParams) params;
+		int v = trustSample.target(t);
+		userReg.catchUp(params.topicUser, u);
+		zReg.catchUp(castParams.zMatrix, v);
+
+		double estimate = params.topicUser.dot(u, castParams.zMatrix, v);
+		double error = Sigmoid.value(estimate) - trustSample.weight(t);
+		double c = hypers.weightLambda * trustSample.scale(t) * error * Sigmoid.diff(estimate);
+		if (c != 0) {
+			crossStep(params.topicUser, u, rate, castParams.zMatrix, v, rate, c);
+		}
+	}
+
+	@Override
+	void shrink(double rate) {
+		userReg.shrink(rate);
+		itemReg.shrink(rate);
+		zReg.shrink(rate);
+	}
+
+	@Override
+	void catchUpAll(Params params) {
+		userReg.catchUpAll(params.topicUser);
+		itemReg.catchUpAll(params.topicItem);
+		zReg.catchUpAll(((SoRecParams) params).zMatrix);
+	}
+}
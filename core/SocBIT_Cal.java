@@ -1,83 +1,463 @@
 package core;
 
+import helpers.Kernels;
+import helpers.Sigmoid;
 import helpers.UtilFuncs;
 
-import org.apache.commons.math3.linear.*;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
 
 import defs.Dataset;
+import defs.FactorMatrix;
 import defs.Hypers;
+import defs.ItemBrandFeats;
 import defs.Params;
 import defs.SocBIT_Params;
+import defs.SocialGraph;
+import defs.SparseRatings;
 
 class SocBIT_Cal extends RecSysCal {
 	
 	Dataset ds; 
 	Hypers hypers;
-	private RealMatrix idMat;
+	
+	// buffers of the exact trust pass, per thread as its tiles of trusters may run in parallel
+	private final ThreadLocal<TileBuffers> tileBuffers = ThreadLocal.withInitial(TileBuffers::new);
+	// buffers of the sampled trust pass, per term of the trust sample
+	private double[] sampleTopicSims;
+	private double[] sampleBrandSims;
+	private double[] sampleEstimates;
+	private double[] sampleBounded;
+	private double[] sampleLogisDiffs;
 
 	public SocBIT_Cal(Dataset ds, Hypers hypers) {
 		super(ds);
 		this.ds = ds;
 		this.hypers = hypers;
-		idMat = MatrixUtils.createRealIdentityMatrix(ds.numUser);
 	}
 	
 	@Override
 	double objValue(Params params) {
 
 		SocBIT_Params castParams = (SocBIT_Params) params;
-		estimated_ratings = estRatings(castParams);
-		RealMatrix rating_errors = calRatingErrors(castParams);
-		RealMatrix edge_weight_errors = calEdgeWeightErrors(castParams);
+		EvalContext context = context(castParams);
+		if (context.objValue != null) {
+			return context.objValue;
+		}
 
-		double val = sqFrobNorm(rating_errors);
-		val += hypers.weightLambda * sqFrobNorm(edge_weight_errors);
+		double val = evalRatings(castParams).sqRatingError;
+		val += hypers.weightLambda * evalTrust(castParams, false).sqError;
 		val += hypers.topicLambda * ( sqFrobNorm(castParams.topicUser) + sqFrobNorm(castParams.topicItem) );
 		val += hypers.brandLambda * ( sqFrobNorm(castParams.brandUser) + sqFrobNorm(castParams.brandItem) );
 		for (int u = 0; u < ds.numUser; u++) {
 			val += hypers.decisionLambda * UtilFuncs.square(castParams.userDecisionPrefs[u] - 0.5);
 		}
+		context.objValue = val;
 		return val;
 	}
 	
+	/**
+	 * r_{u,i} = p_u * theta_u . theta_i + (1 - p_u) * beta_u . beta_i, where only brands producing i are in beta_u . beta_i
+	 */
 	@Override
 	RealMatrix estRatings(Params params) {// 
 		
 		SocBIT_Params castParams = (SocBIT_Params) params;
-		DiagonalMatrix decisionPrefs = new DiagonalMatrix(castParams.userDecisionPrefs);
-		RealMatrix topicRatings = decisionPrefs.multiply(castParams.topicUser.transpose()).multiply(castParams.topicItem);
-		RealMatrix brandRatings = idMat.subtract(decisionPrefs).multiply(castParams.brandUser.transpose()).multiply(castParams.brandItem);
-//		this.estimated_ratings =  topicRatings.add(brandRatings); 
-		return topicRatings.add(brandRatings);
+		int numBrand = castParams.brandUser.numFactor();
+		DoubleBuffer beta = castParams.brandUser.data();
+		
+		// topic parts p_u * theta_u . theta_i as one product, then the brand parts which are sparse in the items
+		double[][] estimated = new double[ds.numUser][ds.numItem];
+		getLinAlg().gemmTN(castParams.userDecisionPrefs, castParams.topicUser, castParams.topicItem, estimated, false);
+		double[] brandPart = new double[numBrand];	// (1 - p_u) * beta_u
+		for (int u = 0; u < ds.numUser; u++) {
+			scale(1 - castParams.userDecisionPrefs[u], beta, castParams.brandUser.offset(u), brandPart);
+			double[] row = estimated[u];
+			for (int i = 0; i < ds.numItem; i++) {
+				row[i] += castParams.brandItem.dotProduct(i, brandPart, 0);
+			}
+		}
+		return new Array2DRowRealMatrix(estimated, false);
 	}
 
+	/**
+	 * Same value as the squared Frobenius norm of {@link #calRatingErrors(Params)}, but only observed ratings are visited,
+	 * see {@link #evalRatings(SocBIT_Params)}
+	 */
+	@Override
+	double sqRatingError(Params params) {
+		return evalRatings((SocBIT_Params) params).sqRatingError;
+	}
+	
+	/**
+	 * Estimates and errors of the observed ratings, computed once per params version: each estimate is blended from its
+	 * topic and brand sims, which are kept for the gradients, and cut off in the same pass, in O(nnz * numTopic) time and
+	 * without any numUser x numItem matrix. Errors are summed in the user-major order of the dense norm, so the squared
+	 * error is bit-identical to it
+	 */
+	EvalContext evalRatings(SocBIT_Params params) {
+		
+		EvalContext context = context(params);
+		if (context.errors != null) {
+			return context;
+		}
+		
+		SparseRatings ratings = ds.ratings;
+		DoubleBuffer beta = params.brandUser.data();
+		
+		double[] topicSims = newArray(ratings.nnz());
+		double[] brandSims = newArray(ratings.nnz());
+		double[] estimates = newArray(ratings.nnz());
+		double[] errors = newArray(ratings.nnz());
+		double[] logisDiffs = newArray(ratings.nnz());
+		double sum = 0;
+		for (int u = 0; u < ds.numUser; u++) {
+			if (ratings.userStart(u) == ratings.userEnd(u)) {
+				continue;
+			}
+			double decPref = params.userDecisionPrefs[u];
+			int uBrandOff = params.brandUser.offset(u);
+			for (int k = ratings.userStart(u); k < ratings.userEnd(u); k++) {
+				int i = ratings.itemAt(k);
+				topicSims[k] = params.topicUser.dot(u, params.topicItem, i);
+				brandSims[k] = params.brandItem.dotProduct(i, beta, uBrandOff);
+				estimates[k] = decPref * topicSims[k] + (1 - decPref) * brandSims[k];
+			}
+			// bounded estimates are written in place of the errors
+			Sigmoid.eval(estimates, ratings.userStart(u), ratings.userEnd(u), errors, logisDiffs);
+			for (int k = ratings.userStart(u); k < ratings.userEnd(u); k++) {
+				errors[k] = errors[k] - ratings.valueAt(k);
+				sum += errors[k] * errors[k];
+			}
+		}
+		context.topicSims = topicSims;
+		context.brandSims = brandSims;
+		context.estimates = estimates;
+		context.errors = errors;
+		context.logisDiffs = logisDiffs;
+		context.sqRatingError = UtilFuncs.square(Math.sqrt(sum));	// as for the norm of the dense errors
+		return context;
+	}
+	
+	/**
+	 * Everything the gradients need, computed once per params version: the rating evaluations (with their logistic
+	 * derivatives and unweighted topic/brand similarities), and the trust pass with its gradient sums
+	 */
+	EvalContext evalForGrads(SocBIT_Params params) {
+		EvalContext context = evalRatings(params);
+		evalTrust(params, true);
+		return context;
+	}
+	
+	/**
+	 * Trust pass of the params version, recomputed only if the gradient sums are asked for but missing. The objective's
+	 * pass has no sums: most objective values are those of line search candidates whose gradient is never taken, and
+	 * the sums cost about twice the pass itself, so only the version whose gradient is asked for gets a second pass
+	 * with them (which also gives its loss)
+	 */
+	TrustPass evalTrust(SocBIT_Params params, boolean withGrads) {
+		EvalContext context = context(params);
+		if (context.trust == null || (withGrads && !context.trust.hasGrads())) {
+			context.trust = trustPass(params, withGrads);
+		}
+		return context.trust;
+	}
+	
+	/**
+	 * Topic and brand parts of the ratings and of the sampled trust terms are quadratic in the step, and weighted by the
+	 * stepped decision prefs p_u - s q_u and 1 - p_u + s q_u: the estimates are cubic in the step
+	 */
+	@Override
+	StepObjective stepObjective(Params params, Params dir) {
+		
+		if (trustSample == null) {
+			return null;
+		}
+		SocBIT_Params castParams = (SocBIT_Params) params;
+		SocBIT_Params castDir = (SocBIT_Params) dir;
+		double[] prefs = castParams.userDecisionPrefs;
+		double[] prefDirs = castDir.userDecisionPrefs;
+		StepObjective objective = new StepObjective(ds.ratings);
+		double[] topicDot = new double[3];
+		double[] brandDot = new double[3];
+		SparseRatings ratings = ds.ratings;
+		for (int u = 0; u < ds.numUser; u++) {
+			for (int k = ratings.userStart(u); k < ratings.userEnd(u); k++) {
+				int i = ratings.itemAt(k);
+				StepObjective.dotPoly(params.topicUser, dir.topicUser, u, params.topicItem, dir.topicItem, i, topicDot);
+				StepObjective.dotPoly(castParams.brandUser, castDir.brandUser, u, castParams.brandItem, castDir.brandItem, i, brandDot);
+				objective.addRatingTerm(k, prefs[u], prefDirs[u], topicDot);
+				objective.addRatingTerm(k, 1 - prefs[u], -prefDirs[u], brandDot);
+			}
+		}
+		
+		objective.useTrustSample(trustSample, hypers.weightLambda);
+		for (int u = 0; u < ds.numUser; u++) {
+			for (int t = trustSample.start(u); t < trustSample.end(u); t++) {
+				int v = trustSample.target(t);
+				StepObjective.dotPoly(params.topicUser, dir.topicUser, u, params.topicUser, dir.topicUser, v, topicDot);
+				StepObjective.dotPoly(castParams.brandUser, castDir.brandUser, u, castParams.brandUser, castDir.brandUser, v, brandDot);
+				objective.addTrustTerm(t, prefs[u], prefDirs[u], topicDot);
+				objective.addTrustTerm(t, 1 - prefs[u], -prefDirs[u], brandDot);
+			}
+		}
+		
+		objective.addReg(hypers.topicLambda, params.topicUser, dir.topicUser);
+		objective.addReg(hypers.topicLambda, params.topicItem, dir.topicItem);
+		objective.addReg(hypers.brandLambda, castParams.brandUser, castDir.brandUser);
+		objective.addReg(hypers.brandLambda, castParams.brandItem, castDir.brandItem);
+		objective.addReg(hypers.decisionLambda, prefs, prefDirs, 0.5);
+		return objective;
+	}
+	
 	RealMatrix calRatingErrors(Params params) {
 		
 		RealMatrix estRatings = estRatings(params);
-		RealMatrix bounded_ratings = UtilFuncs.cutoff(estRatings);
+		RealMatrix bounded_ratings = cutoff(estRatings);
 		RealMatrix rating_errors = ErrorCal.ratingErrors(bounded_ratings, ds.ratings);
 		return rating_errors;
 	}
 	
-	public RealMatrix calRatingErrors(RealMatrix estRatings, RealMatrix ratings) {
+	public RealMatrix calRatingErrors(RealMatrix estRatings, SparseRatings ratings) {
 		
-		RealMatrix bounded_ratings = UtilFuncs.cutoff(estRatings);
+		RealMatrix bounded_ratings = cutoff(estRatings);
 		RealMatrix rating_errors = ErrorCal.ratingErrors(bounded_ratings, ratings);
 		return rating_errors;
 	}
 	
+	/**
+	 * w_{u,v} = p_u * theta_u . theta_v + (1 - p_u) * beta_u . beta_v
+	 */
 	RealMatrix estWeights(SocBIT_Params params) {
 
-		DiagonalMatrix decisionPrefs = new DiagonalMatrix(params.userDecisionPrefs);
-		RealMatrix topicWeights = decisionPrefs.multiply(params.topicUser.transpose()).multiply(params.topicUser);
-		RealMatrix brandWeights = idMat.subtract(decisionPrefs).multiply(params.brandUser.transpose()).multiply(params.brandUser);
-		RealMatrix est_edge_weights = topicWeights.add(brandWeights);
-		return est_edge_weights;
+		double[] brandPrefs = new double[ds.numUser];
+		for (int u = 0; u < ds.numUser; u++) {
+			brandPrefs[u] = 1 - params.userDecisionPrefs[u];
+		}
+		double[][] est_edge_weights = new double[ds.numUser][ds.numUser];
+		getLinAlg().gemmTN(params.userDecisionPrefs, params.topicUser, params.topicUser, est_edge_weights, false);
+		getLinAlg().gemmTN(brandPrefs, params.brandUser, params.brandUser, est_edge_weights, true);
+		return new Array2DRowRealMatrix(est_edge_weights, false);
+	}
+	
+	/**
+	 * One pass over the trust terms which gives the trust loss and, if {@code withGrads}, the trust parts of the user
+	 * gradients. Terms are those of the trust sample if one is used, otherwise all pairs of different users: they are
+	 * then streamed tile by tile (see {@link #TRUST_TILE}) with no numUser x numUser matrix, and the sums of each user
+	 * are accumulated over its trustees in increasing order, the same as in the dense calculation
+	 */
+	TrustPass trustPass(SocBIT_Params params, boolean withGrads) {
+		
+		TrustPass pass = new TrustPass();
+		if (withGrads) {
+			pass.topicSums = newZeros(ds.numUser * params.topicUser.numFactor());
+			pass.brandSums = newZeros(ds.numUser * params.brandUser.numFactor());
+			pass.prefSums = newZeros(ds.numUser);
+		}
+		if (trustSample != null) {
+			sampledTrustPass(params, pass);
+		} else {
+			tiledTrustPass(params, pass);
+		}
+		return pass;
+	}
+	
+	/**
+	 * Exact trust pass by tiles of trusters, run in parallel on the pool if one is set: the sums of a truster are only
+	 * written by the task of its tile, and the squared errors of each tile are added up in tile order, so that results
+	 * are the same, bit for bit, whatever the number of threads
+	 */
+	private void tiledTrustPass(SocBIT_Params params, TrustPass pass) {
+		
+		int numTile = (ds.numUser + TRUST_TILE - 1) / TRUST_TILE;
+		double[] tileErrors = new double[numTile];
+		if (pool == null) {
+			for (int tile = 0; tile < numTile; tile++) {
+				tileErrors[tile] = trusterTile(params, pass, tile * TRUST_TILE);
+			}
+		} else {
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(numTile);
+			for (int tile = 0; tile < numTile; tile++) {
+				int t = tile;
+				tasks.add(() -> {
+					tileErrors[t] = trusterTile(params, pass, t * TRUST_TILE);
+					return null;
+				});
+			}
+			runAll(tasks);
+		}
+		
+		double sqError = 0;
+		for (int tile = 0; tile < numTile; tile++) {
+			sqError += tileErrors[tile];
+		}
+		pass.sqError = sqError;
+	}
+	
+	/**
+	 * Terms of the trusters [uFirst, uFirst + TRUST_TILE) with all their trustees, on the buffers of the current thread
+	 * @return squared errors of these terms
+	 */
+	private double trusterTile(SocBIT_Params params, TrustPass pass, int uFirst) {
+		
+		int numUser = ds.numUser;
+		DoubleBuffer theta = params.topicUser.data();
+		DoubleBuffer beta = params.brandUser.data();
+		SocialGraph graph = ds.edge_weights;
+		TileBuffers buffers = tileBuffers.get().fit(params.topicUser.numFactor(), params.brandUser.numFactor());
+		double[][] topicFeats = buffers.topicFeats;
+		double[][] brandFeats = buffers.brandFeats;
+		int[] nextEdge = buffers.nextEdge;
+		double[] topicSims = buffers.topicSims;
+		double[] brandSims = buffers.brandSims;
+		double[] estimates = buffers.estimates;
+		double[] bounded = buffers.bounded;
+		double[] logisDiffs = buffers.logisDiffs;
+		
+		double sqError = 0;
+		int uLast = Math.min(uFirst + TRUST_TILE, numUser);
+		for (int u = uFirst; u < uLast; u++) {
+			scale(1, theta, params.topicUser.offset(u), topicFeats[u - uFirst]);	// copies
+			scale(1, beta, params.brandUser.offset(u), brandFeats[u - uFirst]);
+			nextEdge[u - uFirst] = graph.outStart(u);
+		}
+		// the factors of a tile of trustees are reused by all users of the tile while they are in cache
+		for (int vFirst = 0; vFirst < numUser; vFirst += TRUST_TILE) {
+			int vLast = Math.min(vFirst + TRUST_TILE, numUser);
+			for (int u = uFirst; u < uLast; u++) {
+				double decPref = params.userDecisionPrefs[u];
+				for (int v = vFirst; v < vLast; v++) {
+					topicSims[v - vFirst] = dot(topicFeats[u - uFirst], theta, params.topicUser.offset(v));
+					brandSims[v - vFirst] = dot(brandFeats[u - uFirst], beta, params.brandUser.offset(v));
+					estimates[v - vFirst] = decPref * topicSims[v - vFirst] + (1 - decPref) * brandSims[v - vFirst];
+				}
+				Sigmoid.eval(estimates, 0, vLast - vFirst, bounded, logisDiffs);
+				
+				int e = nextEdge[u - uFirst];
+				for (int v = vFirst; v < vLast; v++) {
+					double weight = 0;
+					if (e < graph.outEnd(u) && graph.outNeighbor(e) == v) {
+						weight = graph.outWeight(e);
+						e++;
+					}
+					if (v == u) {
+						continue;	// w_{u, u} does not exist
+					}
+					double error = bounded[v - vFirst] - weight;
+					sqError += error * error;
+					if (pass.topicSums != null && error != 0) {
+						addTrustTerm(params, pass, u, v, topicSims[v - vFirst], brandSims[v - vFirst], logisDiffs[v - vFirst],
+										error);
+					}
+				}
+				nextEdge[u - uFirst] = e;
+			}
+		}
+		return sqError;
+	}
+	
+	/**
+	 * Buffers of the tiles computed by one thread, kept across passes
+	 */
+	private static class TileBuffers {
+		
+		double[][] topicFeats = new double[TRUST_TILE][0];	// theta_u of the users of the tile
+		double[][] brandFeats = new double[TRUST_TILE][0];	// beta_u
+		final int[] nextEdge = new int[TRUST_TILE];	// next trustee of each user of the tile, as trustees v are visited in order
+		// sims of a user with the trustees of the tile, kept for the gradient of p_u, and the estimates they blend to,
+		// bounded with their logistic derivatives in one pass
+		final double[] topicSims = new double[TRUST_TILE];
+		final double[] brandSims = new double[TRUST_TILE];
+		final double[] estimates = new double[TRUST_TILE];
+		final double[] bounded = new double[TRUST_TILE];
+		final double[] logisDiffs = new double[TRUST_TILE];
+		
+		TileBuffers fit(int numTopic, int numBrand) {
+			if (topicFeats[0].length != numTopic || brandFeats[0].length != numBrand) {
+				topicFeats = new double[TRUST_TILE][numTopic];
+				brandFeats = new double[TRUST_TILE][numBrand];
+			}
+			return this;
+		}
+	}
+	
+	private void sampledTrustPass(SocBIT_Params params, TrustPass pass) {
+		
+		if (sampleEstimates == null || sampleEstimates.length != trustSample.numTerm()) {
+			sampleTopicSims = new double[trustSample.numTerm()];
+			sampleBrandSims = new double[trustSample.numTerm()];
+			sampleEstimates = new double[trustSample.numTerm()];
+			sampleBounded = new double[trustSample.numTerm()];
+			sampleLogisDiffs = new double[trustSample.numTerm()];
+		}
+		double[] topicSims = sampleTopicSims;
+		double[] brandSims = sampleBrandSims;
+		double[] estimates = sampleEstimates;
+		double[] bounded = sampleBounded;
+		double[] logisDiffs = sampleLogisDiffs;
+		double sqError = 0;
+		for (int u = 0; u < ds.numUser; u++) {
+			double decPref = params.userDecisionPrefs[u];
+			for (int t = trustSample.start(u); t < trustSample.end(u); t++) {
+				int v = trustSample.target(t);
+				topicSims[t] = params.topicUser.dot(u, params.topicUser, v);
+				brandSims[t] = params.brandUser.dot(u, params.brandUser, v);
+				estimates[t] = decPref * topicSims[t] + (1 - decPref) * brandSims[t];
+			}
+			Sigmoid.eval(estimates, trustSample.start(u), trustSample.end(u), bounded, logisDiffs);
+			for (int t = trustSample.start(u); t < trustSample.end(u); t++) {
+				double error = bounded[t] - trustSample.weight(t);
+				sqError += trustSample.scale(t) * error * error;
+				if (pass.topicSums != null && error != 0) {
+					addTrustTerm(params, pass, u, trustSample.target(t), topicSims[t], brandSims[t], logisDiffs[t],
+									trustSample.scale(t) * error);
+				}
+			}
+		}
+		pass.sqError = sqError;
+	}
+	
+	// add the term (u, v) to the gradient sums of u (see TrustPass), with the sims theta_u . theta_v and beta_u . beta_v
+	// its estimate was blended from
+	private static void addTrustTerm(SocBIT_Params params, TrustPass pass, int u, int v, double topicSim, double brandSim,
+										double weightLogisDiff, double error) {
+		
+		int numTopic = params.topicUser.numFactor();
+		int numBrand = params.brandUser.numFactor();
+		DoubleBuffer theta = params.topicUser.data();
+		DoubleBuffer beta = params.brandUser.data();
+		int vTopicOff = params.topicUser.offset(v);
+		int vBrandOff = params.brandUser.offset(v);
+		
+		Kernels.axpy(error * weightLogisDiff, theta, vTopicOff, pass.topicSums, u * numTopic, numTopic);
+		Kernels.axpy(error, weightLogisDiff, beta, vBrandOff, pass.brandSums, u * numBrand, numBrand);
+		pass.prefSums[u] += error * (topicSim - brandSim) * weightLogisDiff;
+	}
+	
+	/**
+	 * @return squared Frobenius norm of the edge weight errors over all user pairs, estimated on the trust sample if one is used
+	 */
+	double sqEdgeWeightError(SocBIT_Params params) {
+		return evalTrust(params, false).sqError;
+	}
+	
+	// scaled[k] = c * data[offset + k]
+	private static void scale(double c, DoubleBuffer data, int offset, double[] scaled) {
+		Kernels.scale(c, data, offset, scaled, 0, scaled.length);
+	}
+	
+	private static double dot(double[] vector, DoubleBuffer data, int offset) {
+		return Kernels.dot(vector, 0, data, offset, vector.length);
 	}
 	
 	RealMatrix calEdgeWeightErrors(SocBIT_Params params) {
 		RealMatrix estimated_weights = estWeights(params);
-		RealMatrix bounded_weights = UtilFuncs.cutoff(estimated_weights);
+		RealMatrix bounded_weights = cutoff(estimated_weights);
 		RealMatrix edge_weight_errors = ErrorCal.edgeWeightErrors(bounded_weights, ds.edge_weights);
 		return edge_weight_errors;
 	}
@@ -86,6 +466,14 @@ class SocBIT_Cal extends RecSysCal {
 	private double sqFrobNorm(RealMatrix matrix) {
 		return UtilFuncs.square(matrix.getFrobeniusNorm());
 	}
+	
+	private double sqFrobNorm(FactorMatrix feats) {
+		return UtilFuncs.square(feats.getFrobeniusNorm());
+	}
+	
+	private double sqFrobNorm(ItemBrandFeats feats) {
+		return UtilFuncs.square(feats.getFrobeniusNorm());
+	}
 
 	
 
@@ -1,208 +1,166 @@
 package core;
 
-import helpers.UtilFuncs;
+import helpers.Kernels;
 
-import org.apache.commons.math3.linear.ArrayRealVector;
-import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.RealVector;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
 
+import defs.FactorMatrix;
+import defs.ItemBrandFeats;
+import defs.ItemBrands;
 import defs.Params;
 import defs.SocBIT_Params;
 
 public class SocBIT_GradCal extends GradCal {
 
-	private SocBIT_Cal calculator;
-	private RealMatrix estimated_weights;
-	private RealMatrix edge_weight_errors;
+	private SocBIT_Cal calculator;	// the trainer's one, so that evaluations of the params are shared with the objective
+	private TrustPass trust;	// trust parts of the user gradients
 	
+	// per observed rating (user-major order), from the evaluation context of the params
+	private WeightedResiduals residuals;
+	private double[] topic_sims;
+	private double[] brand_sims;
+	private double[] brand_prefs;	// 1 - decision pref of each user, weight of the brand part in its ratings
+
 	public SocBIT_GradCal(Trainer trainer) {
 		numTopic = trainer.numTopic;
 		ds = trainer.ds;
 		hypers = trainer.hypers;
-		calculator = new SocBIT_Cal(ds, hypers);
+		calculator = (SocBIT_Cal) trainer.calculator;
+		residuals = new WeightedResiduals(ds.ratings);
+		brand_prefs = new double[ds.numUser];
 	}
-	
+
+	@Override
+	Params newGradient() {
+		return SocBIT_Params.zeros(ds.numUser, ds.numItem, ds.itemBrands, numTopic);
+	}
+
 	@Override
 	Params calculate(Params params) {
-		
+
 		SocBIT_Params castParams = (SocBIT_Params) params;
-		
-		estimated_ratings = calculator.estRatings(castParams);
-		rating_errors = calculator.calRatingErrors(castParams);
-		
-		estimated_weights = calculator.estWeights(castParams);
-		RealMatrix bounded_weights = UtilFuncs.cutoff(estimated_weights);
-		edge_weight_errors = ErrorCal.edgeWeightErrors(bounded_weights, ds.edge_weights);	// estimated_weights
-		
-		SocBIT_Params grad = new SocBIT_Params(ds.numUser, ds.numItem, ds.numBrand, this.numTopic);
-		// gradients for users
+
+		EvalContext context = calculator.evalForGrads(castParams);
+		residuals.set(context.errors, context.logisDiffs);
 		for (int u = 0; u < ds.numUser; u++) {
-			grad.userDecisionPrefs[u] = userDecisionPrefDiff(castParams, u);
-			grad.topicUser.setColumnVector(u, calUserTopicGrad(params, u));
-			grad.brandUser.setColumnVector(u, userBrandGrad(castParams, u));
-			// do smth here to debug
+			brand_prefs[u] = 1 - castParams.userDecisionPrefs[u];
 		}
-		
+		topic_sims = context.topicSims;
+		brand_sims = context.brandSims;
+		trust = context.trust;
+
+		SocBIT_Params grad = (SocBIT_Params) workspace();
+		// gradients for users
+		forEachUser((u, sums) -> {
+			grad.userDecisionPrefs[u] = userDecisionPrefDiff(castParams, u);
+			calUserTopicGrad(params, u, grad.topicUser, sums);
+			userBrandGrad(castParams, u, grad.brandUser, sums);
+		});
+
 		// gradients for items
-		for (int i = 0; i < ds.numItem; i++) {
-			grad.topicItem.setColumnVector(i, calItemTopicGrad(params, i));
-			grad.brandItem.setColumnVector(i, itemBrandGrad(castParams, i));
-		}
-		
+		forEachItem((i, sums) -> {
+			calItemTopicGrad(params, i, grad.topicItem, sums);
+			itemBrandGrad(castParams, i, grad.brandItem);
+		});
+
 		return grad;
 	}
-	
+
 	@Override
-	RealVector calItemTopicGrad(Params params, int itemIndex) {
-		
+	void calItemTopicGrad(Params params, int itemIndex, FactorMatrix grad, Sums sums) {
+
 		SocBIT_Params castParams = (SocBIT_Params) params;
-		RealVector itemTopicFeats = castParams.topicItem.getColumnVector(itemIndex);
-		double topicLambda = hypers.topicLambda;
-		RealVector topicGrad = itemTopicFeats.mapMultiply(topicLambda);
-		
-		RealVector sum = new ArrayRealVector(numTopic);
-		for (int u = 0; u < ds.numUser; u++) {
-			double w = castParams.userDecisionPrefs[u];
-			double weighted_rating_err = w * rating_errors.getEntry(u, itemIndex);
-			RealVector userTopicFeat = castParams.topicUser.getColumnVector(u);
-			double logisDiff = UtilFuncs.logisDiff(estimated_ratings.getEntry(u, itemIndex));
-			sum = sum.add(userTopicFeat.mapMultiply(weighted_rating_err).mapMultiply(logisDiff));
-		}
-		
-		topicGrad = topicGrad.add(sum);
-		return topicGrad;
+		double[] topic_rating_sum = sums.topicRating;
+		Arrays.fill(topic_rating_sum, 0);
+
+		// only users who rated the item contribute, weighted by their decision prefs
+		residuals.columnProduct(itemIndex, castParams.userDecisionPrefs, castParams.topicUser, topic_rating_sum, 0);
+
+		Kernels.scaledAccumulate(hypers.topicLambda, castParams.topicItem.data(), castParams.topicItem.offset(itemIndex),
+									1, topic_rating_sum, grad.data(), grad.offset(itemIndex), numTopic);
 	}
-	
+
 	@Override
-	RealVector calUserTopicGrad(Params params, int u) {
-		
-		RealVector userTopicFeats = params.topicUser.getColumnVector(u);
-		double topicLambda = hypers.topicLambda;
-		RealVector topicGrad = userTopicFeats.mapMultiply(topicLambda);
-		
+	void calUserTopicGrad(Params params, int u, FactorMatrix grad, Sums sums) {
+
+		DoubleBuffer theta = params.topicUser.data();
+		double[] topic_rating_sum = sums.topicRating;
+		double[] topic_edge_weight_sum = sums.topicEdge;
+		Arrays.fill(topic_rating_sum, 0);
+
 		// component wrt rating errors
-		RealVector rating_sum = new ArrayRealVector(numTopic);
-		for (int i = 0; i < ds.numItem; i++) {
-			double rError = rating_errors.getEntry(u, i);
-			if (rError != 0) {
-				RealVector curItemTopicFeat = params.topicItem.getColumnVector(i);
-				double ratingLogisDiff = UtilFuncs.logisDiff(estimated_ratings.getEntry(u, i));
-				RealVector modified_topicFeat = curItemTopicFeat.mapMultiply(rError*ratingLogisDiff);
-				rating_sum = rating_sum.add(modified_topicFeat);
-			}
-		}
-		
-		// component wrt error of edge weight estimation 
-		RealVector edge_weight_sum = new ArrayRealVector(numTopic);
-		for (int v = 0; v < ds.numUser; v++) {
-			double trustErr = edge_weight_errors.getEntry(u, v);
-			if (trustErr != 0) {
-				RealVector curUserTopicFeat = params.topicUser.getColumnVector(v);
-				double weightLogisDiff = UtilFuncs.logisDiff(estimated_weights.getEntry(u, v));
-				RealVector modified_topicFeat = curUserTopicFeat.mapMultiply(trustErr*weightLogisDiff);
-				edge_weight_sum = edge_weight_sum.add(modified_topicFeat);
-			}
-		}
+		residuals.rowProduct(u, params.topicItem, topic_rating_sum, 0);
+
+		// component wrt error of edge weight estimation, from the trust pass
+		System.arraycopy(trust.topicSums, u * numTopic, topic_edge_weight_sum, 0, numTopic);
 
-		double weightLambda = hypers.weightLambda;
-		RealVector bigSum = rating_sum.add(edge_weight_sum.mapMultiply(weightLambda));
 		SocBIT_Params castParams = (SocBIT_Params) params;
 		double uDecPref = castParams.userDecisionPrefs[u];
-		topicGrad = topicGrad.add(bigSum.mapMultiply(uDecPref)); 	// see Eqn. 26
-		return topicGrad;
+		combine(theta, params.topicUser.offset(u), hypers.topicLambda, topic_rating_sum, topic_edge_weight_sum,
+				uDecPref, grad.data(), grad.offset(u));	// see Eqn. 26
 	}
 
-	RealVector itemBrandGrad(SocBIT_Params params, int itemIndex) {
+	/**
+	 * Gradient of the brand feats of an item, only on the brands producing the item (the other entries are fixed at 0).
+	 * Written into the pairs of {@code itemIndex} in {@code grad}
+	 */
+	void itemBrandGrad(SocBIT_Params params, int itemIndex, ItemBrandFeats grad) {
 
-		RealVector curBrandGrad = params.brandItem.getColumnVector(itemIndex);
-		double brandLambda = hypers.brandLambda;
-		RealVector nextBrandGrad = curBrandGrad.mapMultiply(brandLambda);
+		ItemBrands pairs = params.brandItem.pairs;
+		int start = pairs.brandStart(itemIndex);
+		int end = pairs.brandEnd(itemIndex);
 
-		RealVector sum = new ArrayRealVector(ds.numBrand);
-		for (int u = 0; u < ds.numUser; u++) {
-			double w = 1 - params.userDecisionPrefs[u];
-			double weighted_rating_err = w * rating_errors.getEntry(u, itemIndex);
-			RealVector userBrandFeat = params.brandUser.getColumnVector(u);
-			double logisDiff = UtilFuncs.logisDiff(estimated_ratings.getEntry(u, itemIndex));
-			sum = sum.add(userBrandFeat.mapMultiply(weighted_rating_err).mapMultiply(logisDiff));
+		// the sum is built in place of the gradient
+		for (int k = start; k < end; k++) {
+			grad.setValue(k, 0);
 		}
-		nextBrandGrad = nextBrandGrad.add(sum);
-		return nextBrandGrad;
-	}
-	
-	RealVector userBrandGrad(SocBIT_Params params, int u) {
-		
-		RealVector curUserBrandFeat = params.brandUser.getColumnVector(u);
-		double brandLambda = hypers.brandLambda;
-		RealVector nextBrandGrad = curUserBrandFeat.mapMultiply(brandLambda);
-		// component wrt rating errors
-		RealVector rating_sum = calRatingSum(params, u);
-		
-		// component wrt error of edge weight estimation
-		RealVector edge_weight_sum = calEdgeWeightSum(params, u);
-		
-		double weightLambda = hypers.weightLambda;
-		RealVector bigSum = rating_sum.add(edge_weight_sum.mapMultiply(weightLambda));
-		
-		nextBrandGrad = nextBrandGrad.add(bigSum.mapMultiply(1 - params.userDecisionPrefs[u]));	// see Eqn. 27
-		return nextBrandGrad;
-	}
+		residuals.columnProduct(itemIndex, brand_prefs, params.brandUser, grad);
 
-	private RealVector calEdgeWeightSum(SocBIT_Params params, int u) {
-		RealVector edge_weight_sum = new ArrayRealVector(ds.numBrand);
-		for (int v = 0; v < ds.numUser; v++) {
-			RealVector vBrandFeat = params.brandUser.getColumnVector(v);
-			double weightLogisDiff = UtilFuncs.logisDiff(estimated_weights.getEntry(u, v));
-			RealVector modified_BrandFeat = vBrandFeat.mapMultiply(edge_weight_errors.getEntry(u, v)).mapMultiply(weightLogisDiff);
-			edge_weight_sum = edge_weight_sum.add(modified_BrandFeat);
+		double brandLambda = hypers.brandLambda;
+		for (int k = start; k < end; k++) {
+			grad.setValue(k, params.brandItem.getValue(k) * brandLambda + grad.getValue(k));
 		}
-		return edge_weight_sum;
 	}
 
-	private RealVector calRatingSum(SocBIT_Params params, int u) {
-		RealVector rating_sum = new ArrayRealVector(ds.numBrand);
-		for (int i = 0; i < ds.numItem; i++) {
-			RealVector curItemBrandFeat = params.brandItem.getColumnVector(i);
-			double ratingLogisDiff = UtilFuncs.logisDiff(estimated_ratings.getEntry(u, i));
-			RealVector modified_brandFeat = curItemBrandFeat.mapMultiply(rating_errors.getEntry(u, i)).mapMultiply(ratingLogisDiff);
-			rating_sum = rating_sum.add(modified_brandFeat);
-		}
-		return rating_sum;
+	void userBrandGrad(SocBIT_Params params, int u, FactorMatrix grad, Sums sums) {
+
+		// component wrt rating errors, only brands producing the rated items
+		Arrays.fill(sums.brandRating, 0);
+		residuals.rowProduct(u, params.brandItem, sums.brandRating);
+
+		// component wrt error of edge weight estimation, from the trust pass
+		System.arraycopy(trust.brandSums, u * ds.numBrand, sums.brandEdge, 0, ds.numBrand);
+
+		combine(params.brandUser.data(), params.brandUser.offset(u), hypers.brandLambda, sums.brandRating, sums.brandEdge,
+				1 - params.userDecisionPrefs[u], grad.data(), grad.offset(u));	// see Eqn. 27
 	}
-	
+
 	double userDecisionPrefDiff(SocBIT_Params params, int u) {
-		
+
 		double userDecisionPref = params.userDecisionPrefs[u];
 		double decisionLambda = hypers.decisionLambda;
 		double decisionPrefDiff = decisionLambda * (userDecisionPref - 0.5);
-		
-		RealVector theta_u = params.topicUser.getColumnVector(u);
-		RealVector beta_u = params.brandUser.getColumnVector(u);
-		
+
 		double rating_sum = 0;
-		for (int i = 0; i < ds.numItem; i++) {
-			RealVector theta_i = params.topicItem.getColumnVector(i);
-			RealVector beta_i = params.brandItem.getColumnVector(i);
-			double topicSim = theta_u.dotProduct(theta_i);
-			double brandSim = beta_u.dotProduct(beta_i);
-			double entry = estimated_ratings.getEntry(u, i);
-			double ratingLogisDiff = UtilFuncs.logisDiff(entry);
-			rating_sum += rating_errors.getEntry(u, i) * (topicSim - brandSim) * ratingLogisDiff;
+		for (int k = ds.ratings.userStart(u); k < ds.ratings.userEnd(u); k++) {
+			rating_sum += residuals.valueAt(k) * (topic_sims[k] - brand_sims[k]);
 		}
-		
-		double edge_weight_sum = 0;
-		for (int v = 0; v < ds.numUser; v++) {
-			RealVector theta_v = params.topicUser.getColumnVector(v);
-			RealVector beta_v = params.brandUser.getColumnVector(v);
-			double topicSim = theta_u.dotProduct(theta_v);
-			double brandSim = beta_u.dotProduct(beta_v);
-			double weightLogisDiff = UtilFuncs.logisDiff(estimated_weights.getEntry(u, v));
-			edge_weight_sum += edge_weight_errors.getEntry(u, v) * (topicSim - brandSim) * weightLogisDiff;
-		}
-		
+
+		double edge_weight_sum = trust.prefSums[u];
+
 		double weightLambda = hypers.weightLambda;
 		double bigSum = rating_sum + weightLambda * edge_weight_sum;
 		decisionPrefDiff += bigSum;
 		return decisionPrefDiff;
 	}
+
+	// grad = feats * lambda + (rating_sum + edge_weight_sum * weightLambda) * pref, rating_sum is overwritten
+	private void combine(DoubleBuffer feats, int offset, double lambda, double[] rating_sum, double[] edge_weight_sum,
+							double pref, DoubleBuffer grad, int gOff) {
+
+		int n = rating_sum.length;
+		Kernels.axpy(hypers.weightLambda, edge_weight_sum, 0, rating_sum, 0, n);	// the big sum
+		Kernels.scaledAccumulate(lambda, feats, offset, pref, rating_sum, grad, gOff, n);
+	}
 }
@@ -0,0 +1,116 @@
+package core;
+
+import helpers.Sigmoid;
+
+import java.nio.DoubleBuffer;
+
+import defs.ItemBrandFeats;
+import defs.ItemBrands;
+import defs.Params;
+import defs.SocBIT_Params;
+import defs.SparseRatings;
+
+/**
+ * Stochastic steps of socBIT, with the same parts of the gradient as {@link SocBIT_GradCal}: a rating (u, i) involves
+ * p_u, theta_u, theta_i, beta_u on the brands producing i and the brand feats of i; a trust term (u, v) involves the
+ * truster's p_u, theta_u and beta_u (the trustee's feats are only read, as in the gradients of the trust pass)
+ */
+class SocBIT_SGD extends SGD {
+
+	private LazyL2 userTopicReg;
+	private LazyL2 itemTopicReg;
+	private LazyL2 userBrandReg;
+	private LazyL2 itemBrandReg;
+	private LazyL2 prefReg;
+
+	SocBIT_SGD(Trainer trainer) {
+		super(trainer);
+		userTopicReg = new LazyL2(hypers.topicLambda, ds.numUser);
+		itemTopicReg = new LazyL2(hypers.topicLambda, ds.numItem);
+		userBrandReg = new LazyL2(hypers.brandLambda, ds.numUser);
+		itemBrandReg = new LazyL2(hypers.brandLambda, ds.numItem);
+		prefReg = new LazyL2(hypers.decisionLambda, ds.numUser);
+	}
+
+	@Override
+	void ratingStep(Params params, int u, int k, double rate) {
+
+		SocBIT_Params castParams = (SocBIT_Params) params;
+		SparseRatings ratings = ds.ratings;
+		int i = ratings.itemAt(k);
+		userTopicReg.catchUp(params.topicUser, u);
+		itemTopicReg.catchUp(params.topicItem, i);
+		userBrandReg.catchUp(castParams.brandUser, u);
+		itemBrandReg.catchUp(castParams.brandItem, i);
+		prefReg.catchUp(castParams.userDecisionPrefs, u, 0.5);
+
+		double pref = castParams.userDecisionPrefs[u];
+		double topicSim = params.topicUser.dot(u, params.topicItem, i);
+		double brandSim = castParams.brandItem.dotProduct(i, castParams.brandUser.data(), castParams.brandUser.offset(u));
+		double estimate = pref * topicSim + (1 - pref) * brandSim;
+		double c = (Sigmoid.value(estimate) - ratings.valueAt(k)) * Sigmoid.diff(estimate);
+		if (c == 0) {
+			return;
+		}
+		castParams.userDecisionPrefs[u] = pref - rate * c * (topicSim - brandSim);
+		crossStep(params.topicUser, u, rate * pref, params.topicItem, i, rate * pref, c);
+
+		// brand parts, only on the brands producing i
+		ItemBrandFeats brandItem = castParams.brandItem;
+		ItemBrands pairs = brandItem.pairs;
+		DoubleBuffer beta = castParams.brandUser.data();
+		int uOff = castParams.brandUser.offset(u);
+		double brandRate = rate * (1 - pref) * c;
+		for (int p = pairs.brandStart(i); p < pairs.brandEnd(i); p++) {
+			int b = pairs.brandAt(p);
+			double userFeat = beta.get(uOff + b);
+			double itemFeat = brandItem.getValue(p);
+			beta.put(uOff + b, userFeat - brandRate * itemFeat);
+			brandItem.setValue(p, itemFeat - brandRate * userFeat);
+		}
+	}
+
+	@Override
+	void trustStep(Params params, int u, int t, double rate) {
+
+		SocBIT_Params castParams = (SocBIT_Params) params;
+		int v = trustSample.target(t);
+		userTopicReg.catchUp(params.topicUser, u);
+		userTopicReg.catchUp(params.topicUser, v);
+		userBrandReg.catchUp(castParams.brandUser, u);
+		userBrandReg.catchUp(castParams.brandUser, v);
+		prefReg.catchUp(castParams.userDecisionPrefs, u, 0.5);
+
+		double pref = castParams.userDecisionPrefs[u];
+		double topicSim = params.topicUser.dot(u, params.topicUser, v);
+		double brandSim = castParams.brandUser.dot(u, castParams.brandUser, v);
+		double estimate = pref * topicSim + (1 - pref) * brandSim;
+		double error = Sigmoid.value(estimate) - trustSample.weight(t);
+		double c = hypers.weightLambda * trustSample.scale(t) * error * Sigmoid.diff(estimate);
+		if (c == 0) {
+			return;
+		}
+		castParams.userDecisionPrefs[u] = pref - rate * c * (topicSim - brandSim);
+		step(params.topicUser, u, rate * pref, params.topicUser, v, c);
+		step(castParams.brandUser, u, rate * (1 - pref), castParams.brandUser, v, c);
+	}
+
+	@Override
+	void shrink(double rate) {
+		userTopicReg.shrink(rate);
+		itemTopicReg.shrink(rate);
+		userBrandReg.shrink(rate);
+		itemBrandReg.shrink(rate);
+		prefReg.shrink(rate);
+	}
+
+	@Override
+	void catchUpAll(Params params) {
+		SocBIT_Params castParams = (SocBIT_Params) params;
+		userTopicReg.catchUpAll(params.topicUser);
+		itemTopicReg.catchUpAll(params.topicItem);
+		userBrandReg.catchUpAll(castParams.brandUser);
+		itemBrandReg.catchUpAll(castParams.brandItem);
+		prefReg.catchUpAll(castParams.userDecisionPrefs, 0.5);
+	}
+}
@@ -0,0 +1,168 @@
+package core;
+
+import helpers.Sigmoid;
+
+import java.nio.DoubleBuffer;
+
+import defs.FactorMatrix;
+import defs.ItemBrandFeats;
+import defs.SparseRatings;
+
+/**
+ * Objective along a descent direction, f(s) = objValue(params - s * dir), from polynomials in the step s computed once
+ * per direction (see {@link RecSysCal#stepObjective}). Before the logistic, each estimate is made of dot products of
+ * two stepped vectors, (x - s g) . (y - s h) = x.y - s (g.y + x.h) + s^2 g.h, which socBIT models weight by a stepped
+ * decision pref p - s q: estimates are then polynomials of degree 3 at most. Regularizers are quadratic in s.
+ * A trial step costs one pass over the observed terms (polynomial, logistic, squared error), with no candidate params.
+ *
+ * Values differ from the evaluation of the candidate params by rounding only, differences f(s) - f(0) should be
+ * compared with each other rather than with a value of the calculator.
+ */
+class StepObjective {
+	
+	static final int NUM_COEF = 4;	// s^0 to s^3
+	
+	private final SparseRatings ratings;
+	private final double[][] ratingCoefs;	// coefficient of s^d of the k-th observed rating at [d][k]
+	
+	// terms of the trust sample, null if the model has no trust loss
+	private TrustSample trustSample;
+	private double[][] trustCoefs;
+	private double weightLambda;
+	
+	private final double[] regCoefs = new double[3];
+	private double dirSqNorm;	// squared norm of the direction, over all params
+	
+	// estimates and their bounds of the current trial
+	private double[] estimates;
+	private double[] bounded;
+	
+	StepObjective(SparseRatings ratings) {
+		this.ratings = ratings;
+		ratingCoefs = new double[NUM_COEF][ratings.nnz()];
+		estimates = new double[ratings.nnz()];
+		bounded = new double[ratings.nnz()];
+	}
+	
+	void useTrustSample(TrustSample sample, double weightLambda) {
+		trustSample = sample;
+		this.weightLambda = weightLambda;
+		trustCoefs = new double[NUM_COEF][sample.numTerm()];
+		if (sample.numTerm() > estimates.length) {
+			estimates = new double[sample.numTerm()];
+			bounded = new double[sample.numTerm()];
+		}
+	}
+	
+	/**
+	 * Polynomial of the k-th observed rating += (c0 - s c1) * dot, where dot is given by {@link #dotPoly}
+	 */
+	void addRatingTerm(int k, double c0, double c1, double[] dot) {
+		addProduct(ratingCoefs, k, c0, c1, dot);
+	}
+	
+	void addTrustTerm(int t, double c0, double c1, double[] dot) {
+		addProduct(trustCoefs, t, c0, c1, dot);
+	}
+	
+	private static void addProduct(double[][] coefs, int k, double c0, double c1, double[] dot) {
+		coefs[0][k] += c0 * dot[0];
+		coefs[1][k] += c0 * dot[1] - c1 * dot[0];
+		coefs[2][k] += c0 * dot[2] - c1 * dot[1];
+		coefs[3][k] -= c1 * dot[2];
+	}
+	
+	/**
+	 * dot = coefficients of (x_e - s g_e) . (y_f - s h_f): x_e . y_f, -(g_e . y_f + x_e . h_f), g_e . h_f
+	 */
+	static void dotPoly(FactorMatrix x, FactorMatrix g, int e, FactorMatrix y, FactorMatrix h, int f, double[] dot) {
+		dot[0] = x.dot(e, y, f);
+		dot[1] = -(g.dot(e, y, f) + x.dot(e, h, f));
+		dot[2] = g.dot(e, h, f);
+	}
+	
+	/**
+	 * Same as {@link #dotPoly(FactorMatrix, FactorMatrix, int, FactorMatrix, FactorMatrix, int, double[])} for the brand
+	 * feats of user u and of item i, on the brands producing i
+	 */
+	static void dotPoly(FactorMatrix x, FactorMatrix g, int u, ItemBrandFeats y, ItemBrandFeats h, int i, double[] dot) {
+		int off = x.offset(u);
+		dot[0] = y.dotProduct(i, x.data(), off);
+		dot[1] = -(y.dotProduct(i, g.data(), off) + h.dotProduct(i, x.data(), off));
+		dot[2] = h.dotProduct(i, g.data(), off);
+	}
+	
+	/**
+	 * Add lambda * ||x - s g||^2 to the regularizers. Every param is regularized, so the direction g is also added to
+	 * the squared norm of the direction
+	 */
+	void addReg(double lambda, FactorMatrix x, FactorMatrix g) {
+		addReg(lambda, x.data(), g.data(), x.numFactor() * x.numEntity(), 0);
+	}
+	
+	void addReg(double lambda, ItemBrandFeats x, ItemBrandFeats g) {
+		addReg(lambda, x.values(), g.values(), x.values().capacity(), 0);
+	}
+	
+	/**
+	 * Add lambda * sum_u (x_u - s g_u - center)^2, e.g. for the decision prefs
+	 */
+	void addReg(double lambda, double[] x, double[] g, double center) {
+		addReg(lambda, DoubleBuffer.wrap(x), DoubleBuffer.wrap(g), x.length, center);
+	}
+	
+	private void addReg(double lambda, DoubleBuffer x, DoubleBuffer g, int n, double center) {
+		double xx = 0;
+		double xg = 0;
+		double gg = 0;
+		for (int k = 0; k < n; k++) {
+			double xk = x.get(k) - center;
+			double gk = g.get(k);
+			xx += xk * xk;
+			xg += xk * gk;
+			gg += gk * gk;
+		}
+		regCoefs[0] += lambda * xx;
+		regCoefs[1] -= 2 * lambda * xg;
+		regCoefs[2] += lambda * gg;
+		dirSqNorm += gg;
+	}
+	
+	/**
+	 * @return squared norm of the step s * dir, i.e. of the difference between the candidate and the current params
+	 */
+	double sqStep(double s) {
+		return s * s * dirSqNorm;
+	}
+	
+	double value(double s) {
+		
+		double value = sqError(ratingCoefs, s, null);
+		if (trustSample != null) {
+			value += weightLambda * sqError(trustCoefs, s, trustSample);
+		}
+		value += (regCoefs[2] * s + regCoefs[1]) * s + regCoefs[0];
+		return value;
+	}
+	
+	// squared errors of the ratings, or of the trust terms if a sample is given
+	private double sqError(double[][] coefs, double s, TrustSample sample) {
+		
+		int n = coefs[0].length;
+		for (int k = 0; k < n; k++) {
+			estimates[k] = ((coefs[3][k] * s + coefs[2][k]) * s + coefs[1][k]) * s + coefs[0][k];
+		}
+		Sigmoid.values(estimates, 0, n, bounded);
+		double sum = 0;
+		for (int k = 0; k < n; k++) {
+			if (sample == null) {
+				double error = bounded[k] - ratings.valueAt(k);
+				sum += error * error;
+			} else {
+				double error = bounded[k] - sample.weight(k);
+				sum += sample.scale(k) * error * error;
+			}
+		}
+		return sum;
+	}
+}
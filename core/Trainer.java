@@ -1,16 +1,22 @@
 package core;
 
 import helpers.Checkers;
+import helpers.LinAlg;
 import helpers.ParamUpdater;
-import helpers.UtilFuncs;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import myUtil.TimeUtil;
 
-import org.apache.commons.math3.linear.RealMatrix;
-
 import defs.Dataset;
 import defs.Hypers;
 import defs.InvalidModelException;
@@ -25,8 +31,29 @@ public class Trainer {
 	
 	private static final double EPSILON = 1;
 //	private static final double INVERSE_STEP = 0.5;
-	private static final double GAMMA = Math.pow(10, -4);
-	private static final double EPSILON_STEP = Math.pow(2, -10);
+	static final double GAMMA = Math.pow(10, -4);
+	static final double EPSILON_STEP = Math.pow(2, -10);
+	static final double MAX_STEP = Math.pow(2, 10);
+	private static final int LBFGS_MEMORY = 5;
+	
+	/**
+	 * Iterations of {@link Trainer#trainByGD}, see {@link Trainer#optimizeBy}
+	 */
+	public enum Method {
+		GRADIENT_DESCENT,
+		NESTEROV,	// see Nesterov_Optimizer
+		LBFGS,		// see LBFGS_Optimizer, with LBFGS_MEMORY pairs
+		STOCHASTIC	// mini-batch stochastic gradient epochs, see SGD and Trainer#stochasticBatches
+	}
+	
+	/**
+	 * First step size tried by the line search of an iteration, see {@link Trainer#stepSizes}
+	 */
+	public enum StepRule {
+		HALVING,			// 1/2 each iteration
+		WARM_START,			// the step accepted at the previous iteration, twice it if it was the first one tried
+		BARZILAI_BORWEIN	// <dx, dx> / <dx, dg> from the last step if longer than the warm start, else the warm start
+	}
 	
 	Dataset ds;
 	
@@ -36,9 +63,48 @@ public class Trainer {
 	Hypers hypers;
 	private int maxIter;
 	private double stepSize;
-	private RecSysCal calculator;
+	RecSysCal calculator;	// shared with the gradient calculator, with the evaluations it caches
 	private int numRating;
 	
+	// negative-sampled trust loss, off (exact loss over all user pairs) when numNonEdgeSample = 0
+	private int numNonEdgeSample;
+	private Random sampleRandom;
+	private TrustSample trustSample;
+	
+	// pool of the gradients of users and items, null to compute them sequentially
+	private ForkJoinPool gradPool;
+	
+	// line search on the polynomials of StepObjective instead of candidate params, when the calculator gives them
+	private boolean closedFormSteps;
+	
+	// parallel line search: pool of the trials and one calculator per trial of a batch, null to try steps one by one
+	private ForkJoinPool searchPool;
+	private int numParallelStep;
+	private RecSysCal[] searchCalculators;
+	
+	// step size selection: first step of each line search, and the reference value of its sufficient reduction test
+	private StepRule stepRule = StepRule.HALVING;
+	private int numRecentValue = 1;	// 1 for the monotone test against the current value
+	private ArrayDeque<Double> recentValues;
+	private double firstStep;
+	private double armijoSlack;		// max of the recent values - current value
+	private double lastStep;		// step accepted at the previous iteration, 0 if none
+	private boolean lastCut;		// whether the previous line search had to cut its first step
+	private Params lastGrad;		// gradient of the previous iteration, kept for Barzilai-Borwein steps
+	
+	private Method method = Method.GRADIENT_DESCENT;
+	
+	// backend of the dense products of the calculators, null for the default one
+	private LinAlg linAlg;
+	
+	// stochastic epochs: entries per batch, schedule of the learning rate, non-edges drawn per user each epoch, and draws
+	// of the shuffles and trust samples
+	int batchSize = 1000;
+	double learningRate = 0.5;
+	double learningRateDecay = 0.1;
+	private int numEpochNonEdge = 20;
+	private Random sgdRandom = new Random(1);
+	
 	public Trainer(String model, Dataset ds, int numTopic, Hypers hypers, int maxIter) throws InvalidModelException {
 		this.model = model;
 		this.ds = ds;
@@ -46,8 +112,121 @@ public class Trainer {
 		this.hypers = hypers;
 		this.maxIter = maxIter;
 		calculator = buildCalculator(model);
-		int na_marker = -1;
-		numRating = UtilFuncs.numNeq(ds.ratings, na_marker);
+		numRating = ds.ratings.nnz();
+	}
+	
+	/**
+	 * Use a negative-sampled trust loss instead of the exact one over all numUser^2 user pairs: each iteration, the trust
+	 * loss of the objective and of the gradients is taken on all observed edges plus {@code numNonEdgeSample} non-edges
+	 * drawn per user, reweighted so that the loss stays unbiased (see {@link TrustSample}). Cost then grows with the
+	 * number of edges instead of numUser^2
+	 * @param numNonEdgeSample: number of non-edges drawn per user, 0 to go back to the exact loss
+	 * @param seed: seed of the draws, so that runs can be repeated
+	 */
+	public void sampleTrustLoss(int numNonEdgeSample, long seed) {
+		this.numNonEdgeSample = numNonEdgeSample;
+		sampleRandom = new Random(seed);
+	}
+	
+	/**
+	 * Compute the dense products of the calculators of this trainer (estimated ratings and weights of the learned model,
+	 * dense errors) with {@code backend}, e.g. a {@link helpers.BlockedLinAlg} on a pool of its own
+	 * @param backend: null for the default backend, a BlockedLinAlg on the common pool
+	 */
+	public void denseBackend(LinAlg backend) {
+		linAlg = backend;
+		calculator.useLinAlg(backend);
+	}
+	
+	/**
+	 * Compute the gradients of users and items in parallel, in tasks of about equal numbers of ratings (see
+	 * {@link GradCal#forEachEntity}), and the exact trust passes by tiles of users (see {@link SocBIT_Cal#trustPass} and
+	 * {@link SoRec_Cal#evalTrust}).
+	 * Gradients and objective values are the same as sequentially, bit for bit
+	 * @param pool: pool of the tasks, null to go back to sequential gradients
+	 */
+	public void parallelGradients(ForkJoinPool pool) {
+		gradPool = pool;
+		calculator.useParallel(pool);
+	}
+	
+	/**
+	 * Take the objective of the line search from polynomials in the step size computed once per iteration on the
+	 * observed terms (see {@link RecSysCal#stepObjective}), so that a trial step costs one pass over the ratings and the
+	 * sampled trust terms instead of a full update and evaluation of candidate params. Only the accepted step is
+	 * materialized. Models with the exact trust loss over all user pairs have no closed form and keep the usual search
+	 * @param on: false to go back to the usual search
+	 */
+	public void closedFormLineSearch(boolean on) {
+		closedFormSteps = on;
+	}
+	
+	/**
+	 * Try the step sizes of the line search by batches of {@code numStep} at the same time, each on its own candidate
+	 * buffer and calculator. The largest step of a batch which passes the test is taken, that is the step the sequential
+	 * search would stop at, and it is evaluated the same way: the learned params are the same, bit for bit
+	 * @param pool: pool of the trials, null to go back to the sequential search
+	 * @param numStep: number of step sizes tried at the same time
+	 */
+	public void parallelLineSearch(ForkJoinPool pool, int numStep) {
+		searchPool = pool;
+		numParallelStep = numStep;
+	}
+	
+	/**
+	 * Choose the first step size of each line search, which then halves it as usual. With {@link StepRule#WARM_START}
+	 * or {@link StepRule#BARZILAI_BORWEIN}, the first trial is usually accepted, instead of halving from 1/2 down to
+	 * about the same step every iteration. First steps are kept within [EPSILON_STEP, MAX_STEP]
+	 * @param rule: {@link StepRule#HALVING} for the usual search
+	 */
+	public void stepSizes(StepRule rule) {
+		stepRule = rule;
+	}
+	
+	/**
+	 * Nonmonotone sufficient reduction test: a step is accepted if it reduces enough the max objective value of the
+	 * last {@code numValue} iterations instead of the current one, so that the first steps of {@link #stepSizes} are
+	 * less often cut when the objective goes up a little. Values of a previous trust sample are dropped when a new
+	 * sample is drawn, as they are not on the same loss
+	 * @param numValue: number of recent values, 1 for the usual (monotone) test
+	 */
+	public void nonmonotoneLineSearch(int numValue) {
+		numRecentValue = Math.max(numValue, 1);
+	}
+	
+	/**
+	 * Choose the iterations of {@link #trainByGD}: gradient descent, or an optimizer over the params seen as one vector
+	 * with the same gradients and objective, which usually needs several times fewer gradients to reach the same
+	 * objective (see {@link Optimizer}). The line search options of gradient descent (closed form, parallel, step rules)
+	 * do not apply to the optimizers, which choose their own steps. {@link Method#STOCHASTIC} replaces the iterations
+	 * with epochs of stochastic steps, see {@link #stochasticBatches}
+	 * @param method: {@link Method#GRADIENT_DESCENT} by default
+	 */
+	public void optimizeBy(Method method) {
+		this.method = method;
+	}
+	
+	/**
+	 * Settings of {@link Method#STOCHASTIC}: each epoch, the observed ratings and the terms of a new trust sample (the
+	 * observed edges plus numNonEdge non-edges drawn per user, see {@link TrustSample}) are shuffled into batches, and
+	 * their parts of the gradient are applied at once, see {@link SGD}. An epoch then moves the params about as far as
+	 * a gradient descent iteration, at the cost of one pass over the entries, i.e. linear in the number of edges whether
+	 * the trust loss of gradient descent is sampled or not (see {@link #sampleTrustLoss}). maxIter is the max number of
+	 * epochs, and the objective before and after each epoch, on the trust sample of the epoch, is tested for
+	 * convergence as in gradient descent. Models with no stochastic steps (the STE models) are trained by gradient
+	 * descent
+	 * @param batchSize: number of entries per batch
+	 * @param learningRate: step size of the first batch
+	 * @param decay: the step size after e epochs is learningRate / (1 + decay * e), 0 for a constant one
+	 * @param numNonEdge: number of non-edges drawn per user each epoch
+	 * @param seed: seed of the shuffles and of the trust samples
+	 */
+	public void stochasticBatches(int batchSize, double learningRate, double decay, int numNonEdge, long seed) {
+		this.batchSize = batchSize;
+		this.learningRate = learningRate;
+		learningRateDecay = decay;
+		numEpochNonEdge = numNonEdge;
+		sgdRandom = new Random(seed);
 	}
 	
 	/**
@@ -59,8 +238,31 @@ public class Trainer {
 	 */
 	Model trainByGD(Params initParams) throws IOException, InvalidModelException, ParamModelMismatchException, NonConvergeException {
 		
+		if (method == Method.STOCHASTIC) {
+			SGD sgd = buildSGD(model);
+			if (sgd != null) {
+				return trainBySGD(initParams, sgd);
+			}
+			System.out.println("No stochastic steps for model " + model + ", training by gradient descent");
+		}
 		int numIter = 0;
 		Params cParams = buildParams(initParams, model);
+		ParamUpdater updater = new ParamUpdater(cParams, model);
+		searchCalculators = null;
+		if (searchPool != null && numParallelStep > 1) {
+			updater.useSlots(numParallelStep);
+			searchCalculators = new RecSysCal[numParallelStep];
+			for (int slot = 0; slot < numParallelStep; slot++) {
+				searchCalculators[slot] = buildCalculator(model);
+			}
+		}
+		GradCal gradCal = buildGradCal(model);
+		gradCal.useParallel(gradPool);
+		recentValues = new ArrayDeque<Double>(numRecentValue);
+		lastStep = 0;
+		lastGrad = null;
+		Optimizer optimizer = buildOptimizer(gradCal);
+		drawTrustSample(gradCal);
 		long beginObjCal = System.currentTimeMillis();
 		double cValue = calculator.objValue(initParams);
 		long elapsedObjCal = System.currentTimeMillis() - beginObjCal;
@@ -73,16 +275,22 @@ public class Trainer {
 		System.out.println(numIter + ", " + cValue + "," + rating_rmse);
 		double difference = Double.POSITIVE_INFINITY;
 		
-		GradCal gradCal = buildGradCal(model);
 		// while not convergence and still can try more
 		while ( isLarge(difference) && (numIter < maxIter) ) {
 			numIter ++;
-			long beginGradCal = System.currentTimeMillis();
-			Params cGrad = gradCal.calculate(cParams);
-			long elapsedGradCal = System.currentTimeMillis() - beginGradCal;
-			System.out.println("computing gradient takes " + TimeUtil.toSecond(elapsedGradCal) + "s");
-			
-			Params nParams = lineSearch(cParams, cGrad, cValue);
+			if (numIter > 1 && drawTrustSample(gradCal)) {
+				cValue = calculator.objValue(cParams);	// on the new sample, as candidates of the line search will be
+				recentValues.clear();
+				if (optimizer != null) {
+					optimizer.restart();
+				}
+			}
+			if (optimizer != null) {
+				optimizer.iterate(updater, cValue);
+			} else {
+				descend(updater, gradCal, cValue);
+			}
+			Params nParams = updater.current();
 			double nValue = calculator.objValue(nParams);
 			
 			difference = nValue - cValue;
@@ -94,6 +302,56 @@ public class Trainer {
 			rating_rmse = toRMSE(totalRatingError);
 			System.out.println(numIter + "," + cValue + ", " + rating_rmse);
 		}
+		gradCal.close();
+		updater.close();
+		if (lastGrad != null) {
+			lastGrad.close();
+		}
+		if (optimizer != null) {
+			optimizer.close();
+		}
+		return toModel(cParams, cValue, difference);
+	}
+	
+	/**
+	 * Epochs of {@link Method#STOCHASTIC} from a copy of the initial params, see {@link #stochasticBatches}
+	 */
+	private Model trainBySGD(Params initParams, SGD sgd) {
+		
+		int numEpoch = 0;
+		Params cParams = copyParams(initParams);
+		// terms of the trust loss of the first epoch, the objective is taken on the same terms
+		sgd.useTrustSample(TrustSample.draw(ds.edge_weights, numEpochNonEdge, sgdRandom));
+		calculator.useTrustSample(sgd.trustSample);
+		double cValue = calculator.objValue(cParams);
+		double rating_rmse = toRMSE(calTotalRatingError(cParams));
+		System.out.println("epoch, objValue, rating_rmse");
+		System.out.println(numEpoch + ", " + cValue + "," + rating_rmse);
+		double difference = Double.POSITIVE_INFINITY;
+		
+		while ( isLarge(difference) && (numEpoch < maxIter) ) {
+			numEpoch ++;
+			if (numEpoch > 1) {
+				sgd.useTrustSample(TrustSample.draw(ds.edge_weights, numEpochNonEdge, sgdRandom));
+				calculator.useTrustSample(sgd.trustSample);
+				cValue = calculator.objValue(cParams);	// on the terms of the epoch, as the next value will be
+			}
+			long beginEpoch = System.currentTimeMillis();
+			sgd.epoch(cParams, sgdRandom);
+			long elapsedEpoch = System.currentTimeMillis() - beginEpoch;
+			System.out.println("stochastic epoch takes " + TimeUtil.toSecond(elapsedEpoch) + "s");
+			
+			double nValue = calculator.objValue(cParams);
+			difference = nValue - cValue;
+			cValue = nValue;
+			rating_rmse = toRMSE(calTotalRatingError(cParams));
+			System.out.println(numEpoch + "," + cValue + ", " + rating_rmse);
+		}
+		return toModel(cParams, cValue, difference);
+	}
+	
+	// learned model, with the errors of the last params
+	private Model toModel(Params cParams, double cValue, double difference) {
 		
 		if (!isLarge(difference)) {
 			printConvergeMsg();
@@ -110,20 +368,42 @@ public class Trainer {
 			System.out.println(msg);
 		}
 		
-		rating_rmse = toRMSE(totalRatingError);
+		double rating_rmse = toRMSE(calTotalRatingError(cParams));
 		
 //		Optional<Double> edgeWeightErr =  Optional.empty();
 //		edgeWeightErr = Optional.of(getEdgeWeightErr(cParams));
 		
-		Double edgeWeightErr = getEdgeWeightErr(cParams);
-		
-		int numUser = ds.numUser;
-		int numWeights = numUser*(numUser - 1);
-		Double trust_rmse = Math.sqrt(edgeWeightErr/numWeights);
+		// STE models do not estimate edge weights
+		Optional<Double> trust_rmse = Optional.empty();
+		if (!(calculator instanceof STE_Cal)) {
+			Double edgeWeightErr = getEdgeWeightErr(cParams);
+			
+			int numUser = ds.numUser;
+			int numWeights = numUser*(numUser - 1);
+			trust_rmse = Optional.of(Math.sqrt(edgeWeightErr/numWeights));
+		}
 		
-		return new Model(cParams, calculator, rating_rmse, Optional.of(trust_rmse), cValue);
+		return new Model(cParams, calculator, rating_rmse, trust_rmse, cValue);
 	}
 
+	/**
+	 * Draw new terms of the sampled trust loss, shared by the objective and the gradients
+	 * @return whether the trust loss is sampled
+	 */
+	private boolean drawTrustSample(GradCal gradCal) {
+		if (numNonEdgeSample > 0) {
+			trustSample = TrustSample.draw(ds.edge_weights, numNonEdgeSample, sampleRandom);
+		}
+		calculator.useTrustSample(trustSample);
+		gradCal.useTrustSample(trustSample);
+		if (searchCalculators != null) {
+			for (RecSysCal searchCalculator : searchCalculators) {
+				searchCalculator.useTrustSample(trustSample);
+			}
+		}
+		return trustSample != null;
+	}
+	
 	private double toRMSE(double sqRatingError) {
 			
 		double train_rmse = Math.sqrt(sqRatingError/numRating);
@@ -133,39 +413,135 @@ public class Trainer {
 
 	private Double getEdgeWeightErr(Params params) {
 		
-		RealMatrix edgeWeightErrors = null;
-		if (params instanceof SocBIT_Params) {
+		// estimated on the last trust sample if the trust loss is sampled
+		double sqError = 0;
+		if (calculator instanceof SocBIT_Cal) {
 			SocBIT_Cal castCal = (SocBIT_Cal) calculator;
-			edgeWeightErrors = castCal.calEdgeWeightErrors((SocBIT_Params) params);
+			sqError = castCal.sqEdgeWeightError((SocBIT_Params) params);
 		}
 		
-		if (params instanceof SoRecParams) {
+		if (calculator instanceof SoRec_Cal) {
 			SoRec_Cal castCal = (SoRec_Cal) calculator;
-			edgeWeightErrors = castCal.calEdgeWeightErrors((SoRecParams) params);
+			sqError = castCal.sqEdgeWeightError((SoRecParams) params);
+		}
+		
+		return sqError;
+	}
+	
+
+	/**
+	 * One iteration of gradient descent: the gradient of the current params, then a line search along it
+	 */
+	private void descend(ParamUpdater updater, GradCal gradCal, double cValue) throws ParamModelMismatchException, InvalidModelException {
+		
+		Params cParams = updater.current();
+		long beginGradCal = System.currentTimeMillis();
+		Params cGrad = gradCal.calculate(cParams);
+		long elapsedGradCal = System.currentTimeMillis() - beginGradCal;
+		System.out.println("computing gradient takes " + TimeUtil.toSecond(elapsedGradCal) + "s");
+		
+		firstStep = firstStep(cGrad);
+		armijoSlack = recentMax(cValue) - cValue;
+		lineSearch(updater, cGrad, cValue);	// cGrad is the workspace of gradCal, kept for the next iteration
+		boolean moved = (updater.current() != cParams);
+		lastStep = moved ? stepSize : 0;
+		lastCut = (stepSize < firstStep);
+		keepGradient(gradCal, cGrad);
+	}
+	
+	// null for gradient descent
+	private Optimizer buildOptimizer(GradCal gradCal) {
+		
+		if (method == Method.NESTEROV) {
+			return new Nesterov_Optimizer(gradCal, calculator);
+		}
+		if (method == Method.LBFGS) {
+			return new LBFGS_Optimizer(gradCal, calculator, LBFGS_MEMORY);
+		}
+		return null;
+	}
+	
+	/**
+	 * @return first step size of the line search, see {@link StepRule}
+	 */
+	private double firstStep(Params cGrad) {
+		
+		if (stepRule == StepRule.HALVING || lastStep == 0) {
+			return 0.5;
 		}
+		double step = lastCut ? lastStep : 2 * lastStep;
+		if (stepRule == StepRule.BARZILAI_BORWEIN) {
+			// the last step was dx = -lastStep * g', so <dx, dx> / <dx, dg> = lastStep * <g', g'> / (<g', g'> - <g', g>)
+			double sqNorm = lastGrad.dot(lastGrad);
+			double curvature = sqNorm - lastGrad.dot(cGrad);
+			// only to lengthen the warm start: a short step where the curvature along dx is high makes the next
+			// difference of the objective small enough to pass the convergence test long before a minimum
+			if (curvature > 0) {
+				step = Math.max(step, lastStep * sqNorm / curvature);
+			}
+		}
+		return Math.min(Math.max(step, EPSILON_STEP), MAX_STEP);
+	}
+	
+	// max of the last numRecentValue objective values, the current one included
+	private double recentMax(double cValue) {
 		
-		return UtilFuncs.sqFrobNorm(edgeWeightErrors);
+		recentValues.addLast(cValue);
+		if (recentValues.size() > numRecentValue) {
+			recentValues.removeFirst();
+		}
+		double max = cValue;
+		for (double value : recentValues) {
+			max = Math.max(max, value);
+		}
+		return max;
 	}
 	
+	// the gradient workspace is overwritten by the next iteration, Barzilai-Borwein steps need a copy
+	private void keepGradient(GradCal gradCal, Params cGrad) {
+		
+		if (stepRule != StepRule.BARZILAI_BORWEIN) {
+			return;
+		}
+		if (lastGrad == null) {
+			lastGrad = gradCal.newGradient();
+		}
+		lastGrad.setValues(cGrad);
+	}
 
 	private double calTotalRatingError(Params params) {
-		RealMatrix rating_errors = calculator.calRatingErrors(params);
-		double sqError = square(rating_errors.getFrobeniusNorm());
-		return sqError;
+		return calculator.sqRatingError(params);	// observed ratings only
 	}
 
-	private Params lineSearch(Params cParams, Params cGrad, double cValue) throws ParamModelMismatchException, InvalidModelException {
+	/**
+	 * Try step sizes firstStep, firstStep/2, ... (1/2, 1/4, ... by default) on the candidate of the updater until one gives
+	 * a sufficient reduction of the objective, which is then accepted. The current params stay if none does
+	 */
+	private void lineSearch(ParamUpdater updater, Params cGrad, double cValue) throws ParamModelMismatchException, InvalidModelException {
+		
+		Params cParams = updater.current();
+		if (closedFormSteps) {
+			StepObjective objective = calculator.stepObjective(cParams, cGrad);
+			if (objective != null) {
+				closedFormLineSearch(updater, cGrad, objective);
+				return;
+			}
+			System.out.println("No closed form of the objective along the gradient (exact trust loss), trying candidate params");
+		}
+		if (searchCalculators != null) {
+			parallelLineSearch(updater, cGrad, cValue);
+			return;
+		}
 		
 		System.out.println("Performing line search ...");
 //		System.out.println("function diff, squared params diff, necessary reduction amount" );
 		
-		stepSize = 1;
-		Params nParams = null;	// buildParams(cParams, this.model)
+		stepSize = 2 * firstStep;
 		boolean sufficentReduction = false;
 			
 		while (!sufficentReduction && (stepSize > EPSILON_STEP)) {
 			stepSize = stepSize/2 ;
-			nParams = ParamUpdater.update(cParams, stepSize, cGrad, this.model);
+			Params nParams = updater.tryStep(stepSize, cGrad);	// overwrites the rejected candidate, if any
 			// todo: may need some projection here to guarantee some constraints
 			double nValue = calculator.objValue(nParams);
 			double funcDiff = nValue - cValue;
@@ -174,22 +550,125 @@ public class Trainer {
 			
 //			System.out.println(funcDiff + ", " + sqParamDiff + "," + reduction);
 			
-			sufficentReduction = (funcDiff < reduction);
+			sufficentReduction = (funcDiff - armijoSlack < reduction);
 			
 			if (funcDiff == 0) {
 				System.out.println("Meet a local minimum !!!");
-				return nParams;
+				updater.accept();
+				return;
 			}
 		}
 		
 		if (sufficentReduction) {
 //			System.out.println("Found new params with sufficient reduction");
-			return nParams;
+			updater.accept();
+		} else {
+			System.out.println("Cannot find better new params  (i.e. with sufficient reduction). "
+								+ "Line search stopped due to step size too small");
+		}
+	}
+	
+	/**
+	 * Same search as {@link #lineSearch} on the values of {@code objective}. Differences are taken from its value at step
+	 * 0 rather than from the evaluated objective, so that they do not mix in the rounding of two calculations
+	 */
+	private void closedFormLineSearch(ParamUpdater updater, Params cGrad, StepObjective objective) {
+		
+		System.out.println("Performing closed-form line search ...");
+		double zeroValue = objective.value(0);
+		stepSize = 2 * firstStep;
+		boolean sufficentReduction = false;
+		boolean localMin = false;
+		
+		while (!sufficentReduction && !localMin && (stepSize > EPSILON_STEP)) {
+			stepSize = stepSize/2 ;
+			double funcDiff = objective.value(stepSize) - zeroValue;
+			double reduction = - GAMMA/stepSize * objective.sqStep(stepSize);
+			sufficentReduction = (funcDiff - armijoSlack < reduction);
+			localMin = (funcDiff == 0);
+		}
+		
+		if (localMin) {
+			System.out.println("Meet a local minimum !!!");
+		}
+		if (sufficentReduction || localMin) {
+			updater.tryStep(stepSize, cGrad);
+			updater.accept();
 		} else {
 			System.out.println("Cannot find better new params  (i.e. with sufficient reduction). "
 								+ "Line search stopped due to step size too small");
+		}
+	}
+	
+	/**
+	 * Same search as {@link #lineSearch} by batches of step sizes: the trials of a batch run on the search pool, each
+	 * with its own slot of the updater and its own calculator, then the batch is scanned from its largest step as the
+	 * sequential search would. The calculator of the trainer adopts the evaluations of the accepted candidate, which
+	 * the next gradients use
+	 */
+	private void parallelLineSearch(ParamUpdater updater, Params cGrad, double cValue) throws InvalidModelException {
+		
+		System.out.println("Performing parallel line search ...");
+		Params cParams = updater.current();
+		double[] steps = new double[numParallelStep];
+		double[] funcDiffs = new double[numParallelStep];
+		boolean[] sufficient = new boolean[numParallelStep];
+		stepSize = 2 * firstStep;
+		
+		while (stepSize > EPSILON_STEP) {
+			// the next steps of the sequential search
+			int numTrial = 0;
+			for (double step = stepSize; numTrial < numParallelStep && step > EPSILON_STEP; numTrial++) {
+				step = step/2;
+				steps[numTrial] = step;
+			}
+			
+			List<Callable<Void>> trials = new ArrayList<Callable<Void>>(numTrial);
+			for (int k = 0; k < numTrial; k++) {
+				int slot = k;
+				trials.add(() -> {
+					Params nParams = updater.tryStep(slot, steps[slot], cGrad);
+					double nValue = searchCalculators[slot].objValue(nParams);
+					funcDiffs[slot] = nValue - cValue;
+					double reduction = - GAMMA/steps[slot] * sqDiff(nParams, cParams);
+					sufficient[slot] = (funcDiffs[slot] - armijoSlack < reduction);
+					return null;
+				});
+			}
+			runAll(trials);
 			
-			return cParams;
+			for (int slot = 0; slot < numTrial; slot++) {
+				stepSize = steps[slot];
+				if (funcDiffs[slot] == 0) {
+					System.out.println("Meet a local minimum !!!");
+				}
+				if (sufficient[slot] || funcDiffs[slot] == 0) {
+					updater.accept(slot);
+					calculator.adoptContext(searchCalculators[slot], updater.current());
+					return;
+				}
+			}
+		}
+		System.out.println("Cannot find better new params  (i.e. with sufficient reduction). "
+							+ "Line search stopped due to step size too small");
+	}
+	
+	// run the trials on the search pool and wait for all of them
+	private void runAll(List<Callable<Void>> trials) throws InvalidModelException {
+		
+		List<Future<Void>> futures = searchPool.invokeAll(trials);
+		for (Future<Void> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof InvalidModelException) {
+					throw (InvalidModelException) e.getCause();
+				}
+				throw new IllegalStateException(e.getCause());
+			}
 		}
 	}
 	
@@ -202,19 +681,43 @@ public class Trainer {
 		if (model.equalsIgnoreCase("soRec")) {
 			gradCal = new SoRec_GradCal(this);
 		}
-		
-//		if (model.equalsIgnoreCase("STE")) {
-//			gradCal = new STE_GradCal(this);
-//		}
-//		if (model.equalsIgnoreCase("bSTE")) {
-//			gradCal = new BrandSTE_GradCal(this);
-//		}
+		if (model.equalsIgnoreCase("STE")) {
+			gradCal = new STE_GradCal(this);
+		}
+		if (model.equalsIgnoreCase("bSTE")) {
+			gradCal = new BrandSTE_GradCal(this);
+		}
 		return gradCal;
 	}
 
+	// null for the STE models, whose feats of a user are mixed with those of its trusters in every rating
+	private SGD buildSGD(String model) {
+		
+		if (model.equalsIgnoreCase("socBIT")) {
+			return new SocBIT_SGD(this);
+		}
+		if (model.equalsIgnoreCase("soRec")) {
+			return new SoRec_SGD(this);
+		}
+		return null;
+	}
+	
+	// the stochastic steps write the params in place, not the caller's ones
+	private Params copyParams(Params params) {
+		
+		if (model.equalsIgnoreCase("socBIT") || model.equalsIgnoreCase("bSTE")) {
+			return new SocBIT_Params((SocBIT_Params) params);
+		}
+		if (model.equalsIgnoreCase("soRec")) {
+			return new SoRecParams((SoRecParams) params);
+		}
+		return new Params(params);
+	}
+
 	private RecSysCal buildCalculator(String model) throws InvalidModelException {
 		
 		if (Checkers.isValid(model)) {
+			RecSysCal calculator = null;
 			if (model.equalsIgnoreCase("socBIT")) {
 				calculator = new SocBIT_Cal(ds, hypers);
 			} 
@@ -223,14 +726,15 @@ public class Trainer {
 				calculator = new SoRec_Cal(ds, hypers);
 			}
 			
-//			if (model.equalsIgnoreCase("STE")) {
-//				calculator = new STE_Cal(ds, hypers);
-//			}
-//			
-//			if (model.equalsIgnoreCase("bSTE")) {
-//				calculator = new BrandSTE_Cal(ds, hypers);
-//			}
+			if (model.equalsIgnoreCase("STE")) {
+				calculator = new STE_Cal(ds, hypers);
+			}
 			
+			if (model.equalsIgnoreCase("bSTE")) {
+				calculator = new BrandSTE_Cal(ds, hypers);
+			}
+			
+			calculator.useLinAlg(linAlg);
 			return calculator;
 		}
 		
@@ -247,10 +751,14 @@ public class Trainer {
 				castParams = (SoRecParams) params; 
 			}
 			
-			if (model.equalsIgnoreCase("socBIT") ) {
+			if (model.equalsIgnoreCase("socBIT") || model.equalsIgnoreCase("bSTE")) {
 				castParams =  (SocBIT_Params) params;
 			}
 			
+			if (model.equalsIgnoreCase("STE")) {
+				castParams = params;
+			}
+			
 			return castParams;
 		}
 		
@@ -265,14 +773,13 @@ public class Trainer {
 //		String msg = "Input params type and model mismatch!!!";
 //		throw new ParamModelMismatchException(msg);
 //	}
-		// model.equalsIgnoreCase("bSTE"), model.equalsIgnoreCase("STE")
 	}
 
 	// wrapper for computing squared difference bw two parameters where the computation depends on specific model
 	private double sqDiff(Params p1, Params p2) throws InvalidModelException {
 		
 		double diff = 0;
-		if (model.equalsIgnoreCase("socBIT") ) {// model.equalsIgnoreCase("bSTE")
+		if (model.equalsIgnoreCase("socBIT") || model.equalsIgnoreCase("bSTE")) {
 			SocBIT_Params cast_p1 = (SocBIT_Params) p1;
 			SocBIT_Params cast_p2 = (SocBIT_Params) p2;
 			diff = cast_p1.sqDiff(cast_p2);
@@ -284,15 +791,11 @@ public class Trainer {
 			diff = soRecParams1.sqDiff(soRecParams2);
 		}
 		
-		return diff;
-		
-//		if (model.equalsIgnoreCase("STE")) {
-//			diff = p1.topicDiff(p2);
-//		} else {
-//			throw new InvalidModelException();
-//		}
-		
+		if (model.equalsIgnoreCase("STE")) {
+			diff = p1.topicDiff(p2);
+		}
 		
+		return diff;
 	}
 
 	private void printConvergeMsg() {
@@ -304,8 +807,4 @@ public class Trainer {
 	private boolean isLarge(double difference) {
 		return Math.abs(difference) > EPSILON;
 	}
-
-	private double square(double d) {
-		return Math.pow(d, 2);
-	}
 }
@@ -0,0 +1,26 @@
+package core;
+
+/**
+ * Trust part of the objective and of the user gradients for one version of params, see {@link SocBIT_Cal#trustPass}
+ * and {@link SoRec_Cal#evalTrust}
+ */
+class TrustPass {
+	
+	double sqError;		// sum over user pairs of the squared edge weight errors, estimated on the trust sample if any
+	
+	// sums over the trustees v of each user u, i.e. the parts of the user gradients due to trust errors,
+	// null if not asked for. With err = cutoff(w^_{u,v}) - w_{u,v} and s = logisDiff(w^_{u,v}):
+	double[] topicSums;	// numUser x numTopic (user-major), sum_v theta_v * err * s (soRec: sum_v z_v * err * s)
+	double[] brandSums;	// numUser x numBrand (user-major), sum_v beta_v * err * s
+	double[] prefSums;	// numUser, sum_v err * (theta_u . theta_v - beta_u . beta_v) * s
+	double[] zSums;		// soRec, numUser x numTopic (user-major), sum over the trusters u of v of theta_u * err * s
+	
+	// soRec with a trust sample: per term t of the sample, see SoRec_Cal#evalTrust. The gradients are taken from these,
+	// there are no sums then
+	double[] errors;		// cutoff(w^_{u,v}) - w_{u,v}, with w^_{u,v} = theta_u . z_v
+	double[] logisDiffs;	// logisDiff(w^_{u,v}), from the same sigmoid pass as the errors
+	
+	boolean hasGrads() {
+		return topicSums != null;
+	}
+}
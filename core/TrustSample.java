@@ -0,0 +1,181 @@
+package core;
+
+import helpers.Sigmoid;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import defs.SocialGraph;
+
+/**
+ * Terms of a negative-sampled trust loss: for each user u (truster), all observed edges (u, v) plus {@code numSample}
+ * non-edges (u, v) drawn uniformly, with replacement, among the users v != u that u does not trust. Each drawn non-edge
+ * stands for numNonEdge(u) / numSample of them, so that
+ * 		sum_{terms t of u} scale(t) * (cutoff(w^_{u,v}) - weight(t))^2
+ * is an unbiased estimate of the exact sum over all v != u, at a cost linear in the number of edges.
+ * Users with at most numSample non-edges get all of them with scale 1, i.e. their terms are exact.
+ *
+ * Terms of u: 	for (int t = start(u); t < end(u); t++) { target(t), weight(t), scale(t) }
+ *
+ * A sample is drawn once per iteration and used by both the objective and the gradients (see {@link Trainer}).
+ */
+class TrustSample {
+
+	final int numUser;
+
+	private final int[] ptr;	// size numUser + 1, terms of u are in [ptr[u], ptr[u+1])
+	private final int[] targets;
+	private final double[] weights;	// observed weight, 0 for non-edges
+	private final double[] scales;
+
+	private TrustSample(int numUser, int[] ptr, int[] targets, double[] weights, double[] scales) {
+		this.numUser = numUser;
+		this.ptr = ptr;
+		this.targets = targets;
+		this.weights = weights;
+		this.scales = scales;
+	}
+
+	static TrustSample draw(SocialGraph graph, int numSample, Random random) {
+
+		int numUser = graph.numUser;
+		int[] ptr = new int[numUser + 1];
+		long numTerm = 0;
+		for (int u = 0; u < numUser; u++) {
+			int degree = degree(graph, u);
+			numTerm += degree + Math.min(numSample, numUser - 1 - degree);
+			if (numTerm > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("a trust sample of " + numSample + " non-edges per user has more than "
+						+ Integer.MAX_VALUE + " terms over " + numUser + " users");
+			}
+			ptr[u + 1] = (int) numTerm;
+		}
+
+		int[] targets = new int[ptr[numUser]];
+		double[] weights = new double[ptr[numUser]];
+		double[] scales = new double[ptr[numUser]];
+		int[] ranks = new int[numSample];
+		for (int u = 0; u < numUser; u++) {
+			int t = ptr[u];
+			for (int k = graph.outStart(u); k < graph.outEnd(u); k++) {
+				if (graph.outNeighbor(k) == u) {
+					continue;	// as in the exact loss, w_{u,u} does not exist
+				}
+				targets[t] = graph.outNeighbor(k);
+				weights[t] = graph.outWeight(k);
+				scales[t] = 1;
+				t++;
+			}
+
+			int numNonEdge = numUser - 1 - degree(graph, u);
+			if (numNonEdge <= numSample) {
+				// all non-edges, exact
+				for (int r = 0; r < numNonEdge; r++) {
+					ranks[r] = r;
+				}
+				t = toNonEdges(graph, u, ranks, numNonEdge, targets, t);
+				Arrays.fill(scales, t - numNonEdge, t, 1);
+			} else {
+				for (int r = 0; r < numSample; r++) {
+					ranks[r] = random.nextInt(numNonEdge);
+				}
+				Arrays.sort(ranks);
+				t = toNonEdges(graph, u, ranks, numSample, targets, t);
+				Arrays.fill(scales, t - numSample, t, (double) numNonEdge / numSample);
+			}
+		}
+		return new TrustSample(numUser, ptr, targets, weights, scales);
+	}
+
+	// number of trustees of u, not counting u itself
+	private static int degree(SocialGraph graph, int u) {
+		int degree = 0;
+		for (int k = graph.outStart(u); k < graph.outEnd(u); k++) {
+			if (graph.outNeighbor(k) != u) {
+				degree++;
+			}
+		}
+		return degree;
+	}
+
+	/**
+	 * Map sorted ranks among the non-edges of u to users, by merging them with the (sorted) trustees of u and u itself
+	 * @return position after the last written target
+	 */
+	private static int toNonEdges(SocialGraph graph, int u, int[] ranks, int numRank, int[] targets, int t) {
+
+		int k = graph.outStart(u);
+		int end = graph.outEnd(u);
+		boolean selfPassed = false;
+		int numSkipped = 0;	// users before the current candidate which are not non-edges
+		for (int r = 0; r < numRank; r++) {
+			int v = ranks[r] + numSkipped;
+			// skip every excluded user up to v, each one shifts v by one
+			while (true) {
+				if (!selfPassed && u <= v) {
+					selfPassed = true;
+					numSkipped++;
+					v++;
+				} else if (k < end && graph.outNeighbor(k) == u) {
+					k++;	// already skipped as u itself
+				} else if (k < end && graph.outNeighbor(k) <= v) {
+					k++;
+					numSkipped++;
+					v++;
+				} else {
+					break;
+				}
+			}
+			targets[t++] = v;
+		}
+		return t;
+	}
+
+	int numTerm() {
+		return targets.length;
+	}
+
+	int start(int u) {
+		return ptr[u];
+	}
+
+	int end(int u) {
+		return ptr[u + 1];
+	}
+
+	int target(int t) {
+		return targets[t];
+	}
+
+	double weight(int t) {
+		return weights[t];
+	}
+
+	double scale(int t) {
+		return scales[t];
+	}
+
+	/**
+	 * @param estimated: estimated weight of each term
+	 * @param errors: gets the error of each term, i.e. cutoff(estimated) - weight, may be estimated itself
+	 * @param logisDiffs: gets logisDiff(estimated) of each term, from the same sigmoid pass as the errors
+	 */
+	void errors(double[] estimated, double[] errors, double[] logisDiffs) {
+		Sigmoid.eval(estimated, 0, targets.length, errors, logisDiffs);
+		for (int t = 0; t < targets.length; t++) {
+			errors[t] = errors[t] - weights[t];
+		}
+	}
+
+	/**
+	 * @param errors: error of each term, see {@link #errors}
+	 * @return estimate of the squared Frobenius norm of the edge weight errors over all user pairs
+	 */
+	double sqError(double[] errors) {
+		double sum = 0;
+		for (int t = 0; t < targets.length; t++) {
+			sum += scales[t] * errors[t] * errors[t];
+		}
+		return sum;
+	}
+}
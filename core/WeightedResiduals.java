@@ -0,0 +1,117 @@
+package core;
+
+import helpers.Kernels;
+
+import java.nio.DoubleBuffer;
+
+import defs.FactorMatrix;
+import defs.ItemBrandFeats;
+import defs.ItemBrands;
+import defs.SparseRatings;
+
+/**
+ * Sparse numUser x numItem matrix G of the rating errors weighted by the logistic derivatives,
+ * g_{u,i} = (cutoff(r^_{u,i}) - r_{u,i}) * logisDiff(r^_{u,i}), on the observed ratings (user-major, as in {@link EvalContext}).
+ * The rating parts of the factor gradients are products of G with the factors: rows of G feats_I for users and rows of
+ * G^T feats_U for items, the rows of G being scaled by the weight of the part in the estimate of each user (e.g. the
+ * decision pref for topics and 1 - pref for brands in socBIT). G is set once per gradient, and each product is
+ * computed one row at a time, so that entities can be computed in parallel (see {@link GradCal#forEachEntity}).
+ * Products accumulate into their output, zero residuals are skipped.
+ */
+class WeightedResiduals {
+	
+	private final SparseRatings ratings;
+	private final double[] values;
+	
+	WeightedResiduals(SparseRatings ratings) {
+		this.ratings = ratings;
+		values = new double[ratings.nnz()];
+	}
+	
+	/**
+	 * Set G from the evaluation of some params, in place
+	 */
+	void set(double[] errors, double[] logisDiffs) {
+		for (int k = 0; k < values.length; k++) {
+			values[k] = errors[k] * logisDiffs[k];
+		}
+	}
+	
+	// g of the k-th observed rating
+	double valueAt(int k) {
+		return values[k];
+	}
+	
+	/**
+	 * out[outOff, outOff + numFactor) += sum_{i rated by u} g_{u,i} * feats_i, i.e. row u of G feats_I
+	 */
+	void rowProduct(int u, FactorMatrix itemFeats, double[] out, int outOff) {
+		
+		DoubleBuffer data = itemFeats.data();
+		int numFactor = itemFeats.numFactor();
+		for (int k = ratings.userStart(u); k < ratings.userEnd(u); k++) {
+			double g = values[k];
+			if (g != 0) {
+				Kernels.axpy(g, data, itemFeats.offset(ratings.itemAt(k)), out, outOff, numFactor);
+			}
+		}
+	}
+	
+	/**
+	 * out[b] += sum_{i rated by u} g_{u,i} * beta_{b,i} over the brands b producing i, i.e. row u of G B_I^T
+	 */
+	void rowProduct(int u, ItemBrandFeats itemFeats, double[] out) {
+		
+		ItemBrands pairs = itemFeats.pairs;
+		for (int k = ratings.userStart(u); k < ratings.userEnd(u); k++) {
+			double g = values[k];
+			if (g != 0) {
+				int i = ratings.itemAt(k);
+				for (int kb = pairs.brandStart(i); kb < pairs.brandEnd(i); kb++) {
+					out[pairs.brandAt(kb)] += itemFeats.getValue(kb) * g;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * out[outOff, outOff + numFactor) += sum_{u rated i} rowScale_u * g_{u,i} * feats_u, i.e. row i of (diag(rowScale) G)^T feats_U
+	 * @param rowScale: null for no scaling
+	 */
+	void columnProduct(int i, double[] rowScale, FactorMatrix userFeats, double[] out, int outOff) {
+		
+		DoubleBuffer data = userFeats.data();
+		int numFactor = userFeats.numFactor();
+		for (int p = ratings.itemStart(i); p < ratings.itemEnd(i); p++) {
+			int u = ratings.userAt(p);
+			double g = values[ratings.entryAt(p)];
+			if (g != 0) {
+				double c = (rowScale == null) ? g : rowScale[u] * g;
+				Kernels.axpy(c, data, userFeats.offset(u), out, outOff, numFactor);
+			}
+		}
+	}
+	
+	/**
+	 * Same as {@link #columnProduct(int, double[], FactorMatrix, double[], int)} on the brands producing i only: the sum
+	 * of brand b is added to the value of the pair (i, b) in {@code out}
+	 */
+	void columnProduct(int i, double[] rowScale, FactorMatrix userFeats, ItemBrandFeats out) {
+		
+		ItemBrands pairs = out.pairs;
+		DoubleBuffer data = userFeats.data();
+		int start = pairs.brandStart(i);
+		int end = pairs.brandEnd(i);
+		for (int p = ratings.itemStart(i); p < ratings.itemEnd(i); p++) {
+			int u = ratings.userAt(p);
+			double g = values[ratings.entryAt(p)];
+			if (g != 0) {
+				double c = (rowScale == null) ? g : rowScale[u] * g;
+				int uOff = userFeats.offset(u);
+				for (int kb = start; kb < end; kb++) {
+					out.setValue(kb, out.getValue(kb) + data.get(uOff + pairs.brandAt(kb)) * c);
+				}
+			}
+		}
+	}
+}
@@ -1,12 +1,10 @@
 package defs;
 
-import org.apache.commons.math3.linear.NonSquareMatrixException;
-import org.apache.commons.math3.linear.RealMatrix;
-
-public class Dataset {
+public class Dataset implements AutoCloseable {
 	
-	public RealMatrix ratings;		// user-item
-	public RealMatrix edge_weights;	// user-user square matrix, for any two unconnected users the weight is 0
+	public SparseRatings ratings;	// user-item, only observed ratings are stored
+	public SocialGraph edge_weights;	// user-user adjacency lists, for any two unconnected users the weight is 0
+	public ItemBrands itemBrands;	// (item, brand) pairs such that the brand produces the item
 	
 	// derived fields
 	public int numUser;
@@ -14,31 +12,57 @@ public class Dataset {
 	public int numBrand;
 	
 	/**
-	 * Precond: {@code edge_weight} is a square matrix and {@code nrow(edge_weight) = nrow(rating)} 
+	 * Every brand is assumed to produce every item
+	 * Precond: {@code edge_weights.numUser = ratings.numUser} 
+	 * @param ratings
+	 * @param edge_weights
+	 */
+	public Dataset(SparseRatings ratings, SocialGraph edge_weights, int numBrand) {// String itemInfo
+		this(ratings, edge_weights, ItemBrands.full(ratings.numItem, numBrand));
+	}
+	
+	/**
+	 * Precond: {@code edge_weights.numUser = ratings.numUser} and {@code itemBrands.numItem = ratings.numItem} 
 	 * @param ratings
 	 * @param edge_weights
+	 * @param itemBrands
 	 */
-	public Dataset(RealMatrix ratings, RealMatrix edge_weights, int numBrand) {// String itemInfo
+	public Dataset(SparseRatings ratings, SocialGraph edge_weights, ItemBrands itemBrands) {
 		
 		super();
 		
-		if (! edge_weights.isSquare()) {
-			System.out.println("the edge weight matrix is NOT square!!!");
-			throw new NonSquareMatrixException(edge_weights.getColumnDimension(), edge_weights.getRowDimension());
+		if (edge_weights.numUser != ratings.numUser) {
+			System.out.println("The social graph and the rating matrix must have the same number of users");
+		} else if (itemBrands.numItem != ratings.numItem) {
+			System.out.println("The item-brand pairs and the rating matrix must have the same number of items");
 		} else {
-			if (edge_weights.getRowDimension() != ratings.getRowDimension()) {
-				System.out.println("The edge weight matrix and the rating matrix must have the same number of rows "
-									+ "(the number of users)");
-			} else {
-				this.ratings = ratings;
-				this.edge_weights = edge_weights;
-				numUser = ratings.getRowDimension();
-				numItem = ratings.getColumnDimension();
-				this.numBrand = numBrand; 
-//				numBrand = getNumBrand(itemInfo);
-			}
+			this.ratings = ratings;
+			this.edge_weights = edge_weights;
+			this.itemBrands = itemBrands;
+			numUser = ratings.numUser;
+			numItem = ratings.numItem;
+			numBrand = itemBrands.numBrand; 
+//			numBrand = getNumBrand(itemInfo);
 		}
 	}
 	
+	/**
+	 * Move ratings and edge weights off-heap, so that a large data set does not weigh on garbage collections.
+	 * Their heap (or mapped) buffers are dropped; call {@link #close()} when done with the data set
+	 */
+	public void moveOffHeap() {
+		
+		SparseRatings offHeapRatings = ratings.toOffHeap();
+		SocialGraph offHeapGraph = edge_weights.toOffHeap();
+		ratings.close();
+		edge_weights.close();
+		ratings = offHeapRatings;
+		edge_weights = offHeapGraph;
+	}
 	
+	@Override
+	public void close() {
+		ratings.close();
+		edge_weights.close();
+	}
 }
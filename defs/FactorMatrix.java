@@ -0,0 +1,288 @@
+package defs;
+
+import helpers.DirectMemory;
+import helpers.Kernels;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+
+/**
+ * Latent factors of a set of entities (users or items), seen as a numFactor x numEntity matrix whose column e is the
+ * factor vector of entity e.
+ * Factors are stored in one flat buffer laid out entity by entity: factor k of entity e is at {@code offset(e) + k}.
+ * Hot loops read and write an entity's vector directly in {@link #data()}, without copying it into a vector object:
+ *
+ * 		DoubleBuffer theta = topicUser.data();
+ * 		for (int k = 0, off = topicUser.offset(u); k < numFactor; k++) { theta.get(off + k) }
+ *
+ * The buffer is either on the heap or off-heap (see {@link Storage}). Off-heap factors are not scanned nor copied by
+ * the garbage collector; their memory is released by {@link #close()}, or by the collector if close is never called.
+ * The RealMatrix-like methods (getColumnVector, subtract, ...) are kept for code outside the hot loops.
+ */
+public class FactorMatrix implements AutoCloseable {
+
+	public enum Storage { HEAP, OFF_HEAP }
+
+	// storage of factor matrices created without an explicit one, e.g. params and gradients built during training
+	private static Storage defaultStorage = Storage.HEAP;
+
+	private final int numFactor;
+	private final int numEntity;
+	private final Storage storage;
+	private ByteBuffer memory;	// owner of the off-heap memory, null on the heap
+	private DoubleBuffer data;
+
+	public FactorMatrix(int numFactor, int numEntity) {
+		this(numFactor, numEntity, defaultStorage);
+	}
+
+	public FactorMatrix(int numFactor, int numEntity, Storage storage) {
+		this.numFactor = numFactor;
+		this.numEntity = numEntity;
+		this.storage = storage;
+		int size = numFactor * numEntity;
+		if (storage == Storage.OFF_HEAP) {
+			memory = DirectMemory.allocate(8L * size);
+			data = memory.asDoubleBuffer();
+		} else {
+			data = DoubleBuffer.allocate(size);
+		}
+	}
+
+	/**
+	 * Copy the columns of a numFactor x numEntity matrix
+	 */
+	public FactorMatrix(RealMatrix matrix) {
+		this(matrix.getRowDimension(), matrix.getColumnDimension());
+		for (int e = 0; e < numEntity; e++) {
+			for (int k = 0; k < numFactor; k++) {
+				data.put(e * numFactor + k, matrix.getEntry(k, e));
+			}
+		}
+	}
+
+	public static Storage getDefaultStorage() {
+		return defaultStorage;
+	}
+
+	public static void setDefaultStorage(Storage storage) {
+		defaultStorage = storage;
+	}
+
+	public int numFactor() {
+		return numFactor;
+	}
+
+	public int numEntity() {
+		return numEntity;
+	}
+
+	public Storage storage() {
+		return storage;
+	}
+
+	/**
+	 * @return the underlying buffer (no copy), factor k of entity e is at {@code offset(e) + k}. Use absolute get/put only
+	 */
+	public DoubleBuffer data() {
+		return data;
+	}
+
+	public int offset(int e) {
+		return e * numFactor;
+	}
+
+	/**
+	 * @return dot product of the vector of entity e and the vector of entity f of {@code other}
+	 */
+	public double dot(int e, FactorMatrix other, int f) {
+		return Kernels.dot(data, e * numFactor, other.data, f * other.numFactor, numFactor);
+	}
+
+	/**
+	 * In place: this = this - d * other
+	 */
+	public void subtractScaled(FactorMatrix other, double d) {
+		checkSameDimension(other);
+		for (int n = 0; n < data.capacity(); n++) {
+			data.put(n, data.get(n) - other.data.get(n) * d);
+		}
+	}
+
+	/**
+	 * In place: this = from - d * other, e.g. a gradient step written into a reused buffer. Same values as a copy of
+	 * {@code from} followed by {@link #subtractScaled(FactorMatrix, double)}
+	 */
+	public void subtractScaled(FactorMatrix from, FactorMatrix other, double d) {
+		checkSameDimension(from);
+		checkSameDimension(other);
+		for (int n = 0; n < data.capacity(); n++) {
+			data.put(n, from.data.get(n) - other.data.get(n) * d);
+		}
+	}
+
+	/**
+	 * In place: this = other, e.g. to keep the values of a reused buffer
+	 */
+	public void setValues(FactorMatrix other) {
+		checkSameDimension(other);
+		for (int n = 0; n < data.capacity(); n++) {
+			data.put(n, other.data.get(n));
+		}
+	}
+
+	/**
+	 * In place: this = a * x + b * y, where x or y may be this
+	 */
+	public void setCombination(double a, FactorMatrix x, double b, FactorMatrix y) {
+		checkSameDimension(x);
+		checkSameDimension(y);
+		for (int n = 0; n < data.capacity(); n++) {
+			data.put(n, a * x.data.get(n) + b * y.data.get(n));
+		}
+	}
+
+	/**
+	 * @return sum of the products of the entries of this and {@code other} (Frobenius inner product)
+	 */
+	public double dot(FactorMatrix other) {
+		checkSameDimension(other);
+		return Kernels.dot(data, 0, other.data, 0, numFactor * numEntity);
+	}
+
+	/**
+	 * Release off-heap memory right away, the matrix (and any buffer got from {@link #data()}) must not be used afterwards.
+	 * Nothing to do on the heap
+	 */
+	@Override
+	public void close() {
+		if (memory != null) {
+			data = DoubleBuffer.allocate(0);	// later accesses fail instead of reading freed memory
+			DirectMemory.free(memory);
+			memory = null;
+		}
+	}
+
+	// ------------------------------------------------------------------ RealMatrix-like methods
+
+	public int getRowDimension() {
+		return numFactor;
+	}
+
+	public int getColumnDimension() {
+		return numEntity;
+	}
+
+	public double getEntry(int k, int e) {
+		return data.get(e * numFactor + k);
+	}
+
+	public void setEntry(int k, int e, double value) {
+		data.put(e * numFactor + k, value);
+	}
+
+	/**
+	 * @return a copy of the vector of entity e
+	 */
+	public RealVector getColumnVector(int e) {
+		double[] vector = new double[numFactor];
+		for (int k = 0; k < numFactor; k++) {
+			vector[k] = data.get(e * numFactor + k);
+		}
+		return new ArrayRealVector(vector, false);
+	}
+
+	public void setColumnVector(int e, RealVector vector) {
+		int off = e * numFactor;
+		for (int k = 0; k < numFactor; k++) {
+			data.put(off + k, vector.getEntry(k));
+		}
+	}
+
+	/**
+	 * @return a copy with the same storage
+	 */
+	public FactorMatrix copy() {
+		FactorMatrix copy = new FactorMatrix(numFactor, numEntity, storage);
+		copy.data.put(data.duplicate().clear());
+		copy.data.clear();
+		return copy;
+	}
+
+	public FactorMatrix subtract(FactorMatrix other) {
+		checkSameDimension(other);
+		FactorMatrix diff = new FactorMatrix(numFactor, numEntity, storage);
+		for (int n = 0; n < data.capacity(); n++) {
+			diff.data.put(n, data.get(n) - other.data.get(n));
+		}
+		return diff;
+	}
+
+	public FactorMatrix scalarMultiply(double d) {
+		FactorMatrix prod = new FactorMatrix(numFactor, numEntity, storage);
+		for (int n = 0; n < data.capacity(); n++) {
+			prod.data.put(n, data.get(n) * d);
+		}
+		return prod;
+	}
+
+	/**
+	 * Entries are summed factor by factor, the same order as the row-major walk of a numFactor x numEntity RealMatrix
+	 */
+	public double getFrobeniusNorm() {
+		double sum = 0;
+		for (int k = 0; k < numFactor; k++) {
+			for (int n = k; n < data.capacity(); n += numFactor) {
+				double value = data.get(n);
+				sum += value * value;
+			}
+		}
+		return Math.sqrt(sum);
+	}
+
+	/**
+	 * @return Frobenius norm of this - other, with the same value as {@code subtract(other).getFrobeniusNorm()} but
+	 * without the difference matrix
+	 */
+	public double distance(FactorMatrix other) {
+		checkSameDimension(other);
+		double sum = 0;
+		for (int k = 0; k < numFactor; k++) {
+			for (int n = k; n < data.capacity(); n += numFactor) {
+				double value = data.get(n) - other.data.get(n);
+				sum += value * value;
+			}
+		}
+		return Math.sqrt(sum);
+	}
+
+	public RealMatrix toRealMatrix() {
+		RealMatrix matrix = new Array2DRowRealMatrix(numFactor, numEntity);
+		for (int e = 0; e < numEntity; e++) {
+			for (int k = 0; k < numFactor; k++) {
+				matrix.setEntry(k, e, data.get(e * numFactor + k));
+			}
+		}
+		return matrix;
+	}
+
+	/**
+	 * Same string as for the numFactor x numEntity RealMatrix, so saved params keep their format
+	 */
+	@Override
+	public String toString() {
+		return toRealMatrix().toString();
+	}
+
+	private void checkSameDimension(FactorMatrix other) {
+		if (numFactor != other.numFactor || numEntity != other.numEntity) {
+			throw new IllegalArgumentException("factor matrices of different dimensions: " + numFactor + "x" + numEntity
+												+ " and " + other.numFactor + "x" + other.numEntity);
+		}
+	}
+}
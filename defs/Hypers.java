@@ -32,46 +32,16 @@ public class Hypers {
 	}
 
 	
-//	public Hypers(double topicLambda, double alpha) {
-//	this.topicLambda = topicLambda;
-//	this.alpha = alpha;
-//}
-
-//public Hypers(double topicLambda, double brandLambda, double weightLambda, double decisionLambda, double alpha) {
-//
-//this.topicLambda = topicLambda;
-//this.brandLambda = brandLambda;
-//this.weightLambda = weightLambda;
-//this.decisionLambda = decisionLambda;
-//this.alpha = alpha;
-//}
-	
-//	private static Hypers setBySTE(double topicLambda, double alpha) {
-//	return new Hypers(topicLambda, alpha);
-//}
-//
-//private static Hypers setByBSTE(double topicLambda, double brandLambda, double weightLambda, double decisionLambda, double alpha) {
-//	
-//	return new Hypers(topicLambda, brandLambda, weightLambda, decisionLambda, alpha);
-//}
-	
-//	public static Hypers assignBySTE() {
-//		double topicLambda = 10;
-//		double alpha = 0.5;
-//		return new Hypers(topicLambda, alpha);
-//	}
-//	
-//	public static Hypers assignByBSTE() {
-//		double topicLambda = 1;
-//		double brandLambda = 0.5;
-//		double weightLambda = 0.001;
-//		double decisionLambda = 0.1;
-//		double alpha = 0.5;
-//		Hypers hypers = setByBSTE(topicLambda, brandLambda, weightLambda, decisionLambda, alpha);
-//		return hypers;
-//	}
-
-	
-
+	public static Hypers setBySTE(double topicLambda, double alpha) {
+		Hypers hypers = new Hypers(topicLambda, 0);
+		hypers.alpha = alpha;
+		return hypers;
+	}
 	
+	// no weightLambda, as STE models do not estimate edge weights
+	public static Hypers setByBSTE(double topicLambda, double brandLambda, double decisionLambda, double alpha) {
+		Hypers hypers = new Hypers(topicLambda, brandLambda, 0, decisionLambda);
+		hypers.alpha = alpha;
+		return hypers;
+	}
 }
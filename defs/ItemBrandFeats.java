@@ -0,0 +1,229 @@
+package defs;
+
+import java.nio.DoubleBuffer;
+
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+
+/**
+ * Brand features of items (popularity of an item under each of its producing brands), stored only on the
+ * (item, brand) pairs of {@link ItemBrands}. Seen as a numBrand x numItem matrix, an entry (b, i) is simply 0 when
+ * brand b does not produce item i, and it stays 0 during training.
+ * Values are in the item-major order of the pairs: value k belongs to item i and brand brandAt(k) for k in [brandStart(i), brandEnd(i)).
+ */
+public class ItemBrandFeats {
+
+	public final ItemBrands pairs;
+	private final double[] values;
+
+	public ItemBrandFeats(ItemBrands pairs) {
+		this.pairs = pairs;
+		values = new double[pairs.numEntry()];
+	}
+
+	/**
+	 * Take the entries of a dense numBrand x numItem matrix which are on the given pairs, other entries are dropped
+	 */
+	public ItemBrandFeats(ItemBrands pairs, RealMatrix dense) {
+		this(pairs);
+		for (int i = 0; i < pairs.numItem; i++) {
+			for (int k = pairs.brandStart(i); k < pairs.brandEnd(i); k++) {
+				values[k] = dense.getEntry(pairs.brandAt(k), i);
+			}
+		}
+	}
+
+	public ItemBrandFeats copy() {
+		ItemBrandFeats copy = new ItemBrandFeats(pairs);
+		System.arraycopy(values, 0, copy.values, 0, values.length);
+		return copy;
+	}
+
+	public int getRowDimension() {
+		return pairs.numBrand;
+	}
+
+	public int getColumnDimension() {
+		return pairs.numItem;
+	}
+
+	// value of the k-th pair
+	public double getValue(int k) {
+		return values[k];
+	}
+
+	public void setValue(int k, double value) {
+		values[k] = value;
+	}
+
+	/**
+	 * @return the values in the order of the pairs (no copy), e.g. to snapshot them in binary form
+	 */
+	public DoubleBuffer values() {
+		return DoubleBuffer.wrap(values);
+	}
+
+	public double getEntry(int b, int i) {
+		int k = pairs.find(i, b);
+		return (k == -1) ? 0 : values[k];
+	}
+
+	/**
+	 * @return brand features of item i as a dense vector of size numBrand
+	 */
+	public RealVector getColumnVector(int i) {
+		RealVector col = new ArrayRealVector(pairs.numBrand);
+		for (int k = pairs.brandStart(i); k < pairs.brandEnd(i); k++) {
+			col.setEntry(pairs.brandAt(k), values[k]);
+		}
+		return col;
+	}
+
+	/**
+	 * Set brand features of item i from a dense vector of size numBrand, entries of brands not producing i are ignored
+	 */
+	public void setColumnVector(int i, RealVector col) {
+		for (int k = pairs.brandStart(i); k < pairs.brandEnd(i); k++) {
+			values[k] = col.getEntry(pairs.brandAt(k));
+		}
+	}
+
+	/**
+	 * @return dot product of the brand feats of item i with the numBrand values of {@code vector} from {@code offset},
+	 * e.g. brand feats of a user in {@link FactorMatrix#data()}
+	 */
+	public double dotProduct(int i, DoubleBuffer vector, int offset) {
+		double dot = 0;
+		for (int k = pairs.brandStart(i); k < pairs.brandEnd(i); k++) {
+			dot += vector.get(offset + pairs.brandAt(k)) * values[k];
+		}
+		return dot;
+	}
+	
+	public double dotProduct(int i, double[] vector, int offset) {
+		double dot = 0;
+		for (int k = pairs.brandStart(i); k < pairs.brandEnd(i); k++) {
+			dot += vector[offset + pairs.brandAt(k)] * values[k];
+		}
+		return dot;
+	}
+
+	public ItemBrandFeats subtract(ItemBrandFeats other) {
+		checkSamePairs(other);
+		ItemBrandFeats diff = new ItemBrandFeats(pairs);
+		for (int k = 0; k < values.length; k++) {
+			diff.values[k] = values[k] - other.values[k];
+		}
+		return diff;
+	}
+
+	/**
+	 * In place: this = this - d * other
+	 */
+	public void subtractScaled(ItemBrandFeats other, double d) {
+		checkSamePairs(other);
+		for (int k = 0; k < values.length; k++) {
+			values[k] = values[k] - other.values[k] * d;
+		}
+	}
+
+	/**
+	 * In place: this = from - d * other, e.g. a gradient step written into a reused buffer
+	 */
+	public void subtractScaled(ItemBrandFeats from, ItemBrandFeats other, double d) {
+		checkSamePairs(from);
+		checkSamePairs(other);
+		for (int k = 0; k < values.length; k++) {
+			values[k] = from.values[k] - other.values[k] * d;
+		}
+	}
+
+	/**
+	 * In place: this = other, e.g. to keep the values of a reused buffer
+	 */
+	public void setValues(ItemBrandFeats other) {
+		checkSamePairs(other);
+		System.arraycopy(other.values, 0, values, 0, values.length);
+	}
+
+	/**
+	 * In place: this = a * x + b * y, where x or y may be this
+	 */
+	public void setCombination(double a, ItemBrandFeats x, double b, ItemBrandFeats y) {
+		checkSamePairs(x);
+		checkSamePairs(y);
+		for (int k = 0; k < values.length; k++) {
+			values[k] = a * x.values[k] + b * y.values[k];
+		}
+	}
+
+	/**
+	 * @return sum of the products of the entries of this and {@code other} on the pairs
+	 */
+	public double dot(ItemBrandFeats other) {
+		checkSamePairs(other);
+		double sum = 0;
+		for (int k = 0; k < values.length; k++) {
+			sum += values[k] * other.values[k];
+		}
+		return sum;
+	}
+
+	public ItemBrandFeats scalarMultiply(double d) {
+		ItemBrandFeats prod = new ItemBrandFeats(pairs);
+		for (int k = 0; k < values.length; k++) {
+			prod.values[k] = values[k] * d;
+		}
+		return prod;
+	}
+
+	/**
+	 * Same as the Frobenius norm of the dense matrix, entries are summed brand by brand as in a row-major walk of it
+	 */
+	public double getFrobeniusNorm() {
+		double sum = 0;
+		for (int b = 0; b < pairs.numBrand; b++) {
+			for (int p = pairs.itemStart(b); p < pairs.itemEnd(b); p++) {
+				double value = values[pairs.entryAt(p)];
+				sum += value * value;
+			}
+		}
+		return Math.sqrt(sum);
+	}
+
+	/**
+	 * @return Frobenius norm of this - other, same value as {@code subtract(other).getFrobeniusNorm()}
+	 */
+	public double distance(ItemBrandFeats other) {
+		checkSamePairs(other);
+		double sum = 0;
+		for (int b = 0; b < pairs.numBrand; b++) {
+			for (int p = pairs.itemStart(b); p < pairs.itemEnd(b); p++) {
+				int k = pairs.entryAt(p);
+				double value = values[k] - other.values[k];
+				sum += value * value;
+			}
+		}
+		return Math.sqrt(sum);
+	}
+
+	/**
+	 * @return one line "item_index,brand_index,value" per pair, in item-major order
+	 */
+	public String toCsv() {
+		StringBuilder sb = new StringBuilder("item_index,brand_index,value\n");
+		for (int i = 0; i < pairs.numItem; i++) {
+			for (int k = pairs.brandStart(i); k < pairs.brandEnd(i); k++) {
+				sb.append(i).append(',').append(pairs.brandAt(k)).append(',').append(values[k]).append('\n');
+			}
+		}
+		return sb.toString();
+	}
+
+	private void checkSamePairs(ItemBrandFeats other) {
+		if (!pairs.samePairs(other.pairs)) {
+			throw new IllegalArgumentException("brand features of items are on different (item, brand) pairs");
+		}
+	}
+}
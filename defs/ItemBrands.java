@@ -0,0 +1,171 @@
+package defs;
+
+import helpers.UtilFuncs;
+
+import java.util.Arrays;
+
+/**
+ * Which brands produce which items, i.e. the (item, brand) pairs on which an item can have a brand feature.
+ * Pairs are kept in item-major order (brands of each item increasing), together with a brand-major view which points
+ * back into the item-major arrays.
+ *
+ * Brands of item i: 	for (int k = brandStart(i); k < brandEnd(i); k++) { brandAt(k) }
+ * Items of brand b: 	for (int p = itemStart(b); p < itemEnd(b); p++) { itemAt(p), entryAt(p) }
+ */
+public class ItemBrands {
+
+	public final int numItem;
+	public final int numBrand;
+
+	// item-major layout
+	private final int[] itemPtr;	// size numItem + 1, brands of item i are in [itemPtr[i], itemPtr[i+1])
+	private final int[] brandIdx;
+
+	// brand-major layout
+	private final int[] brandPtr;	// size numBrand + 1, items of brand b are in [brandPtr[b], brandPtr[b+1])
+	private final int[] itemIdx;
+	private final int[] entryPos;	// position of each pair in the item-major arrays
+
+	private ItemBrands(int numItem, int numBrand, int[] itemPtr, int[] brandIdx) {
+
+		this.numItem = numItem;
+		this.numBrand = numBrand;
+		this.itemPtr = itemPtr;
+		this.brandIdx = brandIdx;
+
+		int numEntry = brandIdx.length;
+		brandPtr = new int[numBrand + 1];
+		itemIdx = new int[numEntry];
+		entryPos = new int[numEntry];
+		for (int k = 0; k < numEntry; k++) {
+			brandPtr[brandIdx[k] + 1]++;
+		}
+		for (int b = 0; b < numBrand; b++) {
+			brandPtr[b + 1] += brandPtr[b];
+		}
+		int[] next = Arrays.copyOf(brandPtr, numBrand);
+		for (int i = 0; i < numItem; i++) {
+			for (int k = itemPtr[i]; k < itemPtr[i + 1]; k++) {
+				int p = next[brandIdx[k]]++;
+				itemIdx[p] = i;
+				entryPos[p] = k;
+			}
+		}
+	}
+
+	/**
+	 * Every brand produces every item, used when no item-brand membership is available (e.g. on synthetic data).
+	 * Brand features are then the same as a dense numBrand x numItem matrix.
+	 */
+	public static ItemBrands full(int numItem, int numBrand) {
+
+		int[] itemPtr = new int[numItem + 1];
+		int[] brandIdx = new int[numItem * numBrand];
+		for (int i = 0; i < numItem; i++) {
+			itemPtr[i + 1] = itemPtr[i] + numBrand;
+			for (int b = 0; b < numBrand; b++) {
+				brandIdx[itemPtr[i] + b] = b;
+			}
+		}
+		return new ItemBrands(numItem, numBrand, itemPtr, brandIdx);
+	}
+
+	public int numEntry() {
+		return brandIdx.length;
+	}
+
+	public int brandStart(int i) {
+		return itemPtr[i];
+	}
+
+	public int brandEnd(int i) {
+		return itemPtr[i + 1];
+	}
+
+	public int brandAt(int k) {
+		return brandIdx[k];
+	}
+
+	public int itemStart(int b) {
+		return brandPtr[b];
+	}
+
+	public int itemEnd(int b) {
+		return brandPtr[b + 1];
+	}
+
+	public int itemAt(int p) {
+		return itemIdx[p];
+	}
+
+	public int entryAt(int p) {
+		return entryPos[p];
+	}
+
+	/**
+	 * @return position of the pair (i, b) in the item-major arrays, or -1 if brand b does not produce item i
+	 */
+	public int find(int i, int b) {
+		int k = Arrays.binarySearch(brandIdx, itemPtr[i], itemPtr[i + 1], b);
+		return (k >= 0) ? k : -1;
+	}
+
+	public boolean samePairs(ItemBrands other) {
+		return this == other || (numItem == other.numItem && numBrand == other.numBrand
+				&& Arrays.equals(itemPtr, other.itemPtr) && Arrays.equals(brandIdx, other.brandIdx));
+	}
+
+	/**
+	 * Collects (item, brand) pairs while a membership file is parsed, duplicated pairs are kept once
+	 */
+	public static class Builder {
+
+		private final int numItem;
+		private final int numBrand;
+
+		private int size;
+		private int[] items = new int[1024];
+		private int[] brands = new int[1024];
+
+		public Builder(int numItem, int numBrand) {
+			this.numItem = numItem;
+			this.numBrand = numBrand;
+		}
+
+		public void add(int i, int b) {
+			if (size == items.length) {
+				items = Arrays.copyOf(items, 2 * size);
+				brands = Arrays.copyOf(brands, 2 * size);
+			}
+			items[size] = i;
+			brands[size] = b;
+			size++;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public ItemBrands build() {
+
+			int[] byBrand = UtilFuncs.countingSort(UtilFuncs.identity(size), brands, numBrand);
+			int[] order = UtilFuncs.countingSort(byBrand, items, numItem);
+
+			int[] itemPtr = new int[numItem + 1];
+			int[] brandIdx = new int[size];
+			int numEntry = 0;
+			for (int n = 0; n < size; n++) {
+				int t = order[n];
+				boolean duplicate = (n > 0) && items[order[n - 1]] == items[t] && brandIdx[numEntry - 1] == brands[t];
+				if (!duplicate) {
+					brandIdx[numEntry++] = brands[t];
+					itemPtr[items[t] + 1]++;
+				}
+			}
+			for (int i = 0; i < numItem; i++) {
+				itemPtr[i + 1] += itemPtr[i];
+			}
+			return new ItemBrands(numItem, numBrand, itemPtr, Arrays.copyOf(brandIdx, numEntry));
+		}
+	}
+}
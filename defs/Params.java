@@ -2,24 +2,35 @@ package defs;
 
 import helpers.UtilFuncs;
 
-import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.apache.commons.math3.linear.ArrayRealVector;
 import org.apache.commons.math3.linear.RealMatrix;
 import org.apache.commons.math3.linear.RealVector;
 
-public class Params {
+public class Params implements AutoCloseable {
 
-	public RealMatrix topicUser;
-	public RealMatrix topicItem;
+	// numTopic x numUser and numTopic x numItem, stored entity by entity (see FactorMatrix)
+	public FactorMatrix topicUser;
+	public FactorMatrix topicItem;
+	
+	private static final AtomicLong lastVersion = new AtomicLong();
+	private long version = lastVersion.incrementAndGet();
 
 	public Params(int numUser, int numItem, int numTopic) {
 
-		topicUser = new Array2DRowRealMatrix(numTopic, numUser);
-		topicItem = new Array2DRowRealMatrix(numTopic, numItem);
+		topicUser = new FactorMatrix(numTopic, numUser);
+		topicItem = new FactorMatrix(numTopic, numItem);
 	}
 
 	Params(RealMatrix topicUser, RealMatrix topicItem) {
 
+		this.topicItem = new FactorMatrix(topicItem);
+		this.topicUser = new FactorMatrix(topicUser);
+	}
+
+	Params(FactorMatrix topicUser, FactorMatrix topicItem) {
+
 		this.topicItem = topicItem.copy();
 		this.topicUser = topicUser.copy();
 	}
@@ -29,6 +40,21 @@ public class Params {
 		topicUser = params.topicUser.copy();
 	}
 
+	/**
+	 * @return id of the current values of the params, unique across all params. Evaluations of the same version
+	 * (estimated ratings, errors, ...) can be reused, see core.EvalContext
+	 */
+	public long version() {
+		return version;
+	}
+	
+	/**
+	 * Give the params a new version, to be called after their values are changed in place
+	 */
+	public void touch() {
+		version = lastVersion.incrementAndGet();
+	}
+
 	protected void initItemTopicFeats(int numItem, int numTopic) {
 
 		// RealVector unitVector = unitVector(numTopic);
@@ -82,19 +108,46 @@ public class Params {
 		return unitVector;
 	}
 
+	/**
+	 * In place: copy the values of params of the same model and dimensions, e.g. to keep a gradient of a reused buffer
+	 */
+	public void setValues(Params other) {
+		topicUser.setValues(other.topicUser);
+		topicItem.setValues(other.topicItem);
+		touch();
+	}
+
+	/**
+	 * In place: this = a * x + b * y for params of the same model and dimensions seen as vectors, x or y may be this
+	 */
+	public void setCombination(double a, Params x, double b, Params y) {
+		topicUser.setCombination(a, x.topicUser, b, y.topicUser);
+		topicItem.setCombination(a, x.topicItem, b, y.topicItem);
+		touch();
+	}
+
+	/**
+	 * @return inner product of the params seen as one vector, with params of the same model and dimensions
+	 */
+	public double dot(Params other) {
+		return topicUser.dot(other.topicUser) + topicItem.dot(other.topicItem);
+	}
+
 	public double topicDiff(Params other) {
 		
 		double topicDiff = 0;
-		RealMatrix userTopicDiff = this.topicUser.subtract(other.topicUser);
-		topicDiff += sqFrobNorm(userTopicDiff);
-		RealMatrix itemTopicDiff = this.topicItem.subtract(other.topicItem);
-		topicDiff += sqFrobNorm(itemTopicDiff);
+		topicDiff += UtilFuncs.square(this.topicUser.distance(other.topicUser));
+		topicDiff += UtilFuncs.square(this.topicItem.distance(other.topicItem));
 		return topicDiff;
 	}
 
-	private double sqFrobNorm(RealMatrix mat) {
-		return UtilFuncs.square(mat.getFrobeniusNorm());
+	/**
+	 * Release the off-heap memory of the factors, if any. The params must not be used afterwards
+	 */
+	@Override
+	public void close() {
+		topicUser.close();
+		topicItem.close();
 	}
-	
-	
+
 }
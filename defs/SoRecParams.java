@@ -2,24 +2,34 @@ package defs;
 
 import helpers.UtilFuncs;
 
-import org.apache.commons.math3.linear.Array2DRowRealMatrix;
-import org.apache.commons.math3.linear.RealMatrix;
 import org.apache.commons.math3.linear.RealVector;
 
 public class SoRecParams extends Params {
 
-	public RealMatrix zMatrix;
+	public FactorMatrix zMatrix;
 	
 	public SoRecParams(int numUser, int numItem, int numTopic) {
+		this(numUser, numItem, numTopic, true);
+	}
+
+	/**
+	 * @return params with all values at 0, e.g. a gradient whose values are all written afterwards
+	 */
+	public static SoRecParams zeros(int numUser, int numItem, int numTopic) {
+		return new SoRecParams(numUser, numItem, numTopic, false);
+	}
+	
+	private SoRecParams(int numUser, int numItem, int numTopic, boolean init) {
 		super(numUser, numItem, numTopic);
-		initUserTopicFeats(numUser, numTopic);
-		initItemTopicFeats(numItem, numTopic);
-		
-		initUnifZ(numUser, numTopic);
+		zMatrix = new FactorMatrix(numTopic, numUser);
+		if (init) {
+			initUserTopicFeats(numUser, numTopic);
+			initItemTopicFeats(numItem, numTopic);
+			initUnifZ(numUser, numTopic);
+		}
 	}
 
 	private void initUnifZ(int numUser, int numTopic) {
-		zMatrix = new Array2DRowRealMatrix(numTopic, numUser);
 		RealVector uniformVector = uniformVector(numTopic);
 		for (int u = 0; u < numUser; u++) {
 			zMatrix.setColumnVector(u, uniformVector);
@@ -28,12 +38,35 @@ public class SoRecParams extends Params {
 
 	public SoRecParams(SoRecParams params) {
 		super(params);
-		this.zMatrix = params.zMatrix;
+		this.zMatrix = params.zMatrix.copy();
+	}
+	
+	@Override
+	public void close() {
+		super.close();
+		zMatrix.close();
+	}
+
+	@Override
+	public void setValues(Params other) {
+		zMatrix.setValues(((SoRecParams) other).zMatrix);
+		super.setValues(other);
+	}
+
+	@Override
+	public void setCombination(double a, Params x, double b, Params y) {
+		zMatrix.setCombination(a, ((SoRecParams) x).zMatrix, b, ((SoRecParams) y).zMatrix);
+		super.setCombination(a, x, b, y);
+	}
+
+	@Override
+	public double dot(Params other) {
+		return super.dot(other) + zMatrix.dot(((SoRecParams) other).zMatrix);
 	}
 
 	public double sqDiff(SoRecParams other) {
 		double topicDiff = topicDiff(other);
-		double zDiff = UtilFuncs.sqFrobNorm(this.zMatrix.subtract(other.zMatrix));
+		double zDiff = UtilFuncs.square(this.zMatrix.distance(other.zMatrix));
 		return topicDiff + zDiff;
 	}
 
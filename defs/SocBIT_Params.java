@@ -4,14 +4,13 @@ import helpers.UtilFuncs;
 
 import java.util.Arrays;
 
-import org.apache.commons.math3.linear.Array2DRowRealMatrix;
 import org.apache.commons.math3.linear.RealMatrix;
 
 public class SocBIT_Params extends Params {
 	
-	public RealMatrix brandUser;	// represent brand interests of users, later need to normalize for each user
-	public RealMatrix brandItem;	// represent an item's popularity under each of its producing brand 
-									// 	if a brand b does not produce an item i then the entry (i,b) is simply 0	
+	public FactorMatrix brandUser;	// represent brand interests of users, later need to normalize for each user
+	public ItemBrandFeats brandItem;	// represent an item's popularity under each of its producing brand 
+									// 	if a brand b does not produce an item i then the entry (i,b) is simply 0, and not stored	
 	
 	/**
 	 * represent decision preference of users i.e. whether a user prefers brand-based or topic-based adopts
@@ -25,27 +24,56 @@ public class SocBIT_Params extends Params {
 		super(topicUser, topicItem);
 		
 		this.userDecisionPrefs = copyOf(userDecisionPrefs);
-		this.brandUser = brandUser.copy();
-		this.brandItem = brandItem.copy();
+		this.brandUser = new FactorMatrix(brandUser);
+		// every brand may produce every item, as no item-brand membership comes with the given matrix
+		this.brandItem = new ItemBrandFeats(ItemBrands.full(brandItem.getColumnDimension(), brandItem.getRowDimension()), brandItem);
 	}
 
 	/**
-	 * return default params with correct {@link dimensions}
+	 * return default params with correct {@link dimensions}, where every brand may produce every item
 	 * @param numUser
 	 * @param numItem
 	 * @param numTopic
 	 * @param numBrand
 	 */
 	public SocBIT_Params(int numUser, int numItem, int numBrand, int numTopic) {
+		this(numUser, numItem, ItemBrands.full(numItem, numBrand), numTopic);
+	}
+	
+	/**
+	 * return default params with correct {@link dimensions}, item brand feats only exist on the given (item, brand) pairs 
+	 * @param numUser
+	 * @param numItem
+	 * @param itemBrands
+	 * @param numTopic
+	 */
+	public SocBIT_Params(int numUser, int numItem, ItemBrands itemBrands, int numTopic) {
+		this(numUser, numItem, itemBrands, numTopic, true);
+	}
+
+	/**
+	 * @return params with all values at 0, e.g. a gradient whose values are all written afterwards
+	 */
+	public static SocBIT_Params zeros(int numUser, int numItem, ItemBrands itemBrands, int numTopic) {
+		return new SocBIT_Params(numUser, numItem, itemBrands, numTopic, false);
+	}
+	
+	private SocBIT_Params(int numUser, int numItem, ItemBrands itemBrands, int numTopic, boolean init) {
 		
 		super(numUser, numItem, numTopic);
+		brandUser = new FactorMatrix(itemBrands.numBrand, numUser);
+		brandItem = new ItemBrandFeats(itemBrands);
+		userDecisionPrefs = new double[numUser];
+		if (!init) {
+			return;
+		}
+		
 		initUserTopicFeats(numUser, numTopic);
 		initItemTopicFeats(numItem, numTopic);
 
-		initUserBrandFeats(numUser, numBrand);
-		initItemBrandFeats(numItem, numBrand);
+		initUserBrandFeats(numUser, itemBrands.numBrand);
+		initItemBrandFeats(itemBrands);
 		
-		userDecisionPrefs = new double[numUser];
 		// as we expect that most users are neutral, neither brand-based nor topic-based extreme, 
 		// we initialize all decision prefs as 0.5
 		Arrays.fill(userDecisionPrefs, 0.5);	
@@ -60,22 +88,60 @@ public class SocBIT_Params extends Params {
 		brandItem = params.brandItem.copy();
 	}
 
-	private void initItemBrandFeats(int numItem, int numBrand) {
+	private void initItemBrandFeats(ItemBrands itemBrands) {
 		
-		brandItem = new Array2DRowRealMatrix(numBrand, numItem);
-		for (int i = 0; i < numItem; i++) {
-			brandItem.setColumnVector(i, uniformVector(numBrand));	 
+		for (int k = 0; k < itemBrands.numEntry(); k++) {
+			brandItem.setValue(k, 1.0 / itemBrands.numBrand);	 
 		}
 	}
 
 	private void initUserBrandFeats(int numUser, int numBrand) {
 		
-		brandUser = new Array2DRowRealMatrix(numBrand, numUser);
 		for (int u = 0; u < numUser; u++) {
 			brandUser.setColumnVector(u, uniformVector(numBrand));	 
 		}
 	}
 
+	@Override
+	public void close() {
+		super.close();
+		brandUser.close();
+	}
+
+	@Override
+	public void setValues(Params other) {
+		
+		SocBIT_Params castOther = (SocBIT_Params) other;
+		brandUser.setValues(castOther.brandUser);
+		brandItem.setValues(castOther.brandItem);
+		System.arraycopy(castOther.userDecisionPrefs, 0, userDecisionPrefs, 0, userDecisionPrefs.length);
+		super.setValues(other);
+	}
+
+	@Override
+	public void setCombination(double a, Params x, double b, Params y) {
+		
+		SocBIT_Params castX = (SocBIT_Params) x;
+		SocBIT_Params castY = (SocBIT_Params) y;
+		brandUser.setCombination(a, castX.brandUser, b, castY.brandUser);
+		brandItem.setCombination(a, castX.brandItem, b, castY.brandItem);
+		for (int u = 0; u < userDecisionPrefs.length; u++) {
+			userDecisionPrefs[u] = a * castX.userDecisionPrefs[u] + b * castY.userDecisionPrefs[u];
+		}
+		super.setCombination(a, x, b, y);
+	}
+
+	@Override
+	public double dot(Params other) {
+		
+		SocBIT_Params castOther = (SocBIT_Params) other;
+		double sum = super.dot(other) + brandUser.dot(castOther.brandUser) + brandItem.dot(castOther.brandItem);
+		for (int u = 0; u < userDecisionPrefs.length; u++) {
+			sum += userDecisionPrefs[u] * castOther.userDecisionPrefs[u];
+		}
+		return sum;
+	}
+
 	public double sqDiff(SocBIT_Params other) {
 		double topicDiff = this.topicDiff(other);
 		double brandDiff = this.brandDiff(other);
@@ -95,8 +161,8 @@ public class SocBIT_Params extends Params {
 	}
 
 	private double brandDiff(SocBIT_Params other) {
-		double brandDiff = UtilFuncs.square(this.brandUser.subtract(other.brandUser).getFrobeniusNorm());
-		brandDiff += UtilFuncs.square(this.brandItem.subtract(other.brandItem).getFrobeniusNorm());
+		double brandDiff = UtilFuncs.square(this.brandUser.distance(other.brandUser));
+		brandDiff += UtilFuncs.square(this.brandItem.distance(other.brandItem));
 		return brandDiff;
 	}
 	
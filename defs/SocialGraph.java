@@ -0,0 +1,255 @@
+package defs;
+
+import helpers.DirectMemory;
+import helpers.UtilFuncs;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Weighted directed user-user graph stored as adjacency lists, only non-zero edge weights are kept.
+ * An edge (u, v) with weight w_{u,v} means u trusts v: v is a trustee (out-neighbor) of u and u is a truster
+ * (in-neighbor) of v. For any two unconnected users the weight is 0.
+ *
+ * Trustees of u: 	for (int k = outStart(u); k < outEnd(u); k++) { outNeighbor(k), outWeight(k) }
+ * Trusters of u: 	for (int p = inStart(u); p < inEnd(u); p++) { inNeighbor(p), inWeight(p) }
+ *
+ * As for {@link SparseRatings}, the arrays are held as primitive buffers over heap arrays, a mapped binary file or
+ * an off-heap copy.
+ */
+public class SocialGraph implements AutoCloseable {
+
+	public final int numUser;
+
+	private final IntBuffer outPtr;		// size numUser + 1, trustees of u are in [outPtr[u], outPtr[u+1])
+	private final IntBuffer outIdx;
+	private final DoubleBuffer outWeights;
+
+	private final IntBuffer inPtr;		// size numUser + 1, trusters of u are in [inPtr[u], inPtr[u+1])
+	private final IntBuffer inIdx;
+	private final DoubleBuffer inWeights;
+
+	private List<ByteBuffer> memory;	// blocks of the off-heap copy, null otherwise
+
+	/**
+	 * Wrap already built buffers, e.g. mapped from a binary file. All buffers must have their data in [0, capacity)
+	 */
+	public SocialGraph(int numUser, IntBuffer outPtr, IntBuffer outIdx, DoubleBuffer outWeights,
+						IntBuffer inPtr, IntBuffer inIdx, DoubleBuffer inWeights) {
+
+		this.numUser = numUser;
+		this.outPtr = outPtr;
+		this.outIdx = outIdx;
+		this.outWeights = outWeights;
+		this.inPtr = inPtr;
+		this.inIdx = inIdx;
+		this.inWeights = inWeights;
+	}
+
+	private SocialGraph(int numUser, int[] outPtr, int[] outIdx, double[] outWeights) {
+
+		this.numUser = numUser;
+		this.outPtr = IntBuffer.wrap(outPtr);
+		this.outIdx = IntBuffer.wrap(outIdx);
+		this.outWeights = DoubleBuffer.wrap(outWeights);
+
+		int numEdge = outIdx.length;
+		int[] inPtr = new int[numUser + 1];
+		int[] inIdx = new int[numEdge];
+		double[] inWeights = new double[numEdge];
+		for (int k = 0; k < numEdge; k++) {
+			inPtr[outIdx[k] + 1]++;
+		}
+		for (int v = 0; v < numUser; v++) {
+			inPtr[v + 1] += inPtr[v];
+		}
+		int[] next = Arrays.copyOf(inPtr, numUser);
+		for (int u = 0; u < numUser; u++) {
+			for (int k = outPtr[u]; k < outPtr[u + 1]; k++) {
+				int p = next[outIdx[k]]++;
+				inIdx[p] = u;
+				inWeights[p] = outWeights[k];
+			}
+		}
+		this.inPtr = IntBuffer.wrap(inPtr);
+		this.inIdx = IntBuffer.wrap(inIdx);
+		this.inWeights = DoubleBuffer.wrap(inWeights);
+	}
+
+	/**
+	 * @return a copy of the graph off-heap, one block per array (see {@link SparseRatings#toOffHeap()}), to be released
+	 * by {@link #close()}
+	 */
+	public SocialGraph toOffHeap() {
+
+		List<ByteBuffer> memory = new ArrayList<ByteBuffer>(6);
+		SocialGraph copy = new SocialGraph(numUser, DirectMemory.copyInts(outPtr, memory),
+				DirectMemory.copyInts(outIdx, memory), DirectMemory.copyDoubles(outWeights, memory),
+				DirectMemory.copyInts(inPtr, memory), DirectMemory.copyInts(inIdx, memory),
+				DirectMemory.copyDoubles(inWeights, memory));
+		copy.memory = memory;
+		return copy;
+	}
+
+	/**
+	 * Release the off-heap copy made by {@link #toOffHeap()}, nothing to do for other graphs
+	 */
+	@Override
+	public void close() {
+		DirectMemory.free(memory);
+		memory = null;
+	}
+
+	public int numEdge() {
+		return outIdx.capacity();
+	}
+
+	public int outStart(int u) {
+		return outPtr.get(u);
+	}
+
+	public int outEnd(int u) {
+		return outPtr.get(u + 1);
+	}
+
+	public int outNeighbor(int k) {
+		return outIdx.get(k);
+	}
+
+	public double outWeight(int k) {
+		return outWeights.get(k);
+	}
+
+	public int inStart(int u) {
+		return inPtr.get(u);
+	}
+
+	public int inEnd(int u) {
+		return inPtr.get(u + 1);
+	}
+
+	public int inNeighbor(int p) {
+		return inIdx.get(p);
+	}
+
+	public double inWeight(int p) {
+		return inWeights.get(p);
+	}
+
+	// read-only views of the underlying buffers, used to write them out in binary form 
+	public IntBuffer outPointers() {
+		return outPtr.asReadOnlyBuffer();
+	}
+
+	public IntBuffer outNeighbors() {
+		return outIdx.asReadOnlyBuffer();
+	}
+
+	public DoubleBuffer outWeights() {
+		return outWeights.asReadOnlyBuffer();
+	}
+
+	public IntBuffer inPointers() {
+		return inPtr.asReadOnlyBuffer();
+	}
+
+	public IntBuffer inNeighbors() {
+		return inIdx.asReadOnlyBuffer();
+	}
+
+	public DoubleBuffer inWeights() {
+		return inWeights.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Collects weighted edges while an edge file is parsed.
+	 * If the same edge is added more than once, the last added weight is kept; edges of weight 0 are dropped.
+	 */
+	public static class Builder {
+
+		private final int numUser;
+
+		private int size;
+		private int[] sources;
+		private int[] targets;
+		private double[] weights;
+
+		public Builder(int numUser) {
+			this.numUser = numUser;
+			sources = new int[1024];
+			targets = new int[1024];
+			weights = new double[1024];
+		}
+
+		public void add(int u, int v, double weight) {
+			if (size == sources.length) {
+				int capacity = 2 * size;
+				sources = Arrays.copyOf(sources, capacity);
+				targets = Arrays.copyOf(targets, capacity);
+				weights = Arrays.copyOf(weights, capacity);
+			}
+			sources[size] = u;
+			targets[size] = v;
+			weights[size] = weight;
+			size++;
+		}
+
+		/**
+		 * Append all edges of {@code other} after the ones of this builder
+		 */
+		public void addAll(Builder other) {
+			for (int t = 0; t < other.size; t++) {
+				add(other.sources[t], other.targets[t], other.weights[t]);
+			}
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public SocialGraph build() {
+
+			int[] byTarget = UtilFuncs.countingSort(UtilFuncs.identity(size), targets, numUser);
+			int[] order = UtilFuncs.countingSort(byTarget, sources, numUser);
+
+			int[] outPtr = new int[numUser + 1];
+			int[] outIdx = new int[size];
+			double[] outWeights = new double[size];
+			int numEdge = 0;
+			for (int n = 0; n < size; n++) {
+				int t = order[n];
+				boolean duplicate = (numEdge > 0) && (n > 0) && sources[order[n - 1]] == sources[t] && outIdx[numEdge - 1] == targets[t];
+				if (duplicate) {
+					outWeights[numEdge - 1] = weights[t];
+				} else {
+					outIdx[numEdge] = targets[t];
+					outWeights[numEdge] = weights[t];
+					outPtr[sources[t] + 1]++;
+					numEdge++;
+				}
+			}
+
+			// drop edges whose (last) weight is 0, they are the same as no edge
+			int kept = 0;
+			int start = 0;
+			for (int u = 0; u < numUser; u++) {
+				int end = start + outPtr[u + 1];
+				for (int k = start; k < end; k++) {
+					if (outWeights[k] != 0) {
+						outIdx[kept] = outIdx[k];
+						outWeights[kept] = outWeights[k];
+						kept++;
+					}
+				}
+				start = end;
+				outPtr[u + 1] = kept;
+			}
+
+			return new SocialGraph(numUser, outPtr, Arrays.copyOf(outIdx, kept), Arrays.copyOf(outWeights, kept));
+		}
+	}
+}
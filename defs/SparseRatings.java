@@ -0,0 +1,267 @@
+package defs;
+
+import helpers.DirectMemory;
+import helpers.UtilFuncs;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Observed ratings of a user-item matrix, only the observed entries are stored.
+ * Entries are kept in compressed sparse row (user-major) order, together with a compressed sparse column (item-major)
+ * view which points back into the user-major arrays, so both per-user and per-item traversal cost O(nnz of the row/col).
+ *
+ * Per-user traversal: 	for (int k = userStart(u); k < userEnd(u); k++) { itemAt(k), valueAt(k) }
+ * Per-item traversal: 	for (int p = itemStart(i); p < itemEnd(i); p++) { userAt(p), valueAt(entryAt(p)) }
+ *
+ * The arrays are held as primitive buffers, either wrapping heap arrays (when ratings are parsed from text files) 
+ * or mapped directly from a binary file (see {@link helpers.BinaryFormat}) without being copied, or copied off-heap
+ * by {@link #toOffHeap()}.
+ */
+public class SparseRatings implements AutoCloseable {
+
+	public final int numUser;
+	public final int numItem;
+
+	// user-major (CSR) layout
+	private final IntBuffer userPtr;	// size numUser + 1, entries of user u are in [userPtr[u], userPtr[u+1])
+	private final IntBuffer itemIdx;	// size nnz, item of each entry
+	private final DoubleBuffer values;	// size nnz, rating of each entry
+
+	// item-major (CSC) layout
+	private final IntBuffer itemPtr;	// size numItem + 1, entries of item i are in [itemPtr[i], itemPtr[i+1])
+	private final IntBuffer userIdx;	// size nnz, user of each entry
+	private final IntBuffer entryPos;	// size nnz, position of each entry in the user-major arrays
+
+	private List<ByteBuffer> memory;	// blocks of the off-heap copy, null otherwise
+
+	/**
+	 * Wrap already built buffers, e.g. mapped from a binary file. All buffers must have their data in [0, capacity)
+	 */
+	public SparseRatings(int numUser, int numItem, IntBuffer userPtr, IntBuffer itemIdx, DoubleBuffer values,
+							IntBuffer itemPtr, IntBuffer userIdx, IntBuffer entryPos) {
+
+		this.numUser = numUser;
+		this.numItem = numItem;
+		this.userPtr = userPtr;
+		this.itemIdx = itemIdx;
+		this.values = values;
+		this.itemPtr = itemPtr;
+		this.userIdx = userIdx;
+		this.entryPos = entryPos;
+	}
+
+	private SparseRatings(int numUser, int numItem, int[] userPtr, int[] itemIdx, double[] values) {
+
+		this.numUser = numUser;
+		this.numItem = numItem;
+		this.userPtr = IntBuffer.wrap(userPtr);
+		this.itemIdx = IntBuffer.wrap(itemIdx);
+		this.values = DoubleBuffer.wrap(values);
+
+		int nnz = values.length;
+		int[] itemPtr = new int[numItem + 1];
+		int[] userIdx = new int[nnz];
+		int[] entryPos = new int[nnz];
+		for (int k = 0; k < nnz; k++) {
+			itemPtr[itemIdx[k] + 1]++;
+		}
+		for (int i = 0; i < numItem; i++) {
+			itemPtr[i + 1] += itemPtr[i];
+		}
+		// as entries are visited in user-major order, users of each item come out in increasing order
+		int[] next = Arrays.copyOf(itemPtr, numItem);
+		for (int u = 0; u < numUser; u++) {
+			for (int k = userPtr[u]; k < userPtr[u + 1]; k++) {
+				int p = next[itemIdx[k]]++;
+				userIdx[p] = u;
+				entryPos[p] = k;
+			}
+		}
+		this.itemPtr = IntBuffer.wrap(itemPtr);
+		this.userIdx = IntBuffer.wrap(userIdx);
+		this.entryPos = IntBuffer.wrap(entryPos);
+	}
+
+	/**
+	 * @return a copy of the ratings off-heap, which the garbage collector neither scans nor moves. Each array gets a block
+	 * of its own, so that the copy is not limited by the size of a single direct buffer. The copy must be released by
+	 * {@link #close()} when no longer used
+	 */
+	public SparseRatings toOffHeap() {
+
+		List<ByteBuffer> memory = new ArrayList<ByteBuffer>(6);
+		SparseRatings copy = new SparseRatings(numUser, numItem, DirectMemory.copyInts(userPtr, memory),
+				DirectMemory.copyInts(itemIdx, memory), DirectMemory.copyDoubles(values, memory),
+				DirectMemory.copyInts(itemPtr, memory), DirectMemory.copyInts(userIdx, memory),
+				DirectMemory.copyInts(entryPos, memory));
+		copy.memory = memory;
+		return copy;
+	}
+
+	/**
+	 * Release the off-heap copy made by {@link #toOffHeap()}, nothing to do for other ratings
+	 */
+	@Override
+	public void close() {
+		DirectMemory.free(memory);
+		memory = null;
+	}
+
+	public int nnz() {
+		return values.capacity();
+	}
+
+	public int userStart(int u) {
+		return userPtr.get(u);
+	}
+
+	public int userEnd(int u) {
+		return userPtr.get(u + 1);
+	}
+
+	public int itemStart(int i) {
+		return itemPtr.get(i);
+	}
+
+	public int itemEnd(int i) {
+		return itemPtr.get(i + 1);
+	}
+
+	/**
+	 * @param k: position in user-major order
+	 */
+	public int itemAt(int k) {
+		return itemIdx.get(k);
+	}
+
+	/**
+	 * @param k: position in user-major order
+	 */
+	public double valueAt(int k) {
+		return values.get(k);
+	}
+
+	/**
+	 * @param p: position in item-major order
+	 */
+	public int userAt(int p) {
+		return userIdx.get(p);
+	}
+
+	/**
+	 * @param p: position in item-major order
+	 * @return position of the same entry in user-major order, to be used with {@link #valueAt(int)}
+	 */
+	public int entryAt(int p) {
+		return entryPos.get(p);
+	}
+
+	// read-only views of the underlying buffers, used to write them out in binary form 
+	public IntBuffer userPointers() {
+		return userPtr.asReadOnlyBuffer();
+	}
+
+	public IntBuffer itemIndices() {
+		return itemIdx.asReadOnlyBuffer();
+	}
+
+	public DoubleBuffer values() {
+		return values.asReadOnlyBuffer();
+	}
+
+	public IntBuffer itemPointers() {
+		return itemPtr.asReadOnlyBuffer();
+	}
+
+	public IntBuffer userIndices() {
+		return userIdx.asReadOnlyBuffer();
+	}
+
+	public IntBuffer entryPositions() {
+		return entryPos.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Collects (user, item, rating) triples in primitive arrays while a rating file is parsed.
+	 * If the same (user, item) pair is added more than once, the last added rating is kept.
+	 */
+	public static class Builder {
+
+		private final int numUser;
+		private final int numItem;
+
+		private int size;
+		private int[] users;
+		private int[] items;
+		private double[] ratings;
+
+		public Builder(int numUser, int numItem) {
+			this.numUser = numUser;
+			this.numItem = numItem;
+			users = new int[1024];
+			items = new int[1024];
+			ratings = new double[1024];
+		}
+
+		public void add(int u, int i, double r) {
+			if (size == users.length) {
+				int capacity = 2 * size;
+				users = Arrays.copyOf(users, capacity);
+				items = Arrays.copyOf(items, capacity);
+				ratings = Arrays.copyOf(ratings, capacity);
+			}
+			users[size] = u;
+			items[size] = i;
+			ratings[size] = r;
+			size++;
+		}
+
+		/**
+		 * Append all triples of {@code other} after the ones of this builder
+		 */
+		public void addAll(Builder other) {
+			for (int t = 0; t < other.size; t++) {
+				add(other.users[t], other.items[t], other.ratings[t]);
+			}
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public SparseRatings build() {
+
+			// two stable counting sorts (by item, then by user) give the triples in (user, item, insertion) order
+			int[] byItem = UtilFuncs.countingSort(UtilFuncs.identity(size), items, numItem);
+			int[] order = UtilFuncs.countingSort(byItem, users, numUser);
+
+			int[] userPtr = new int[numUser + 1];
+			int[] itemIdx = new int[size];
+			double[] values = new double[size];
+			int nnz = 0;
+			for (int n = 0; n < size; n++) {
+				int t = order[n];
+				boolean duplicate = (nnz > 0) && (n > 0) && users[order[n - 1]] == users[t] && itemIdx[nnz - 1] == items[t];
+				if (duplicate) {
+					values[nnz - 1] = ratings[t];	// later ratings override earlier ones
+				} else {
+					itemIdx[nnz] = items[t];
+					values[nnz] = ratings[t];
+					userPtr[users[t] + 1]++;
+					nnz++;
+				}
+			}
+			for (int u = 0; u < numUser; u++) {
+				userPtr[u + 1] += userPtr[u];
+			}
+
+			return new SparseRatings(numUser, numItem, userPtr, Arrays.copyOf(itemIdx, nnz), Arrays.copyOf(values, nnz));
+		}
+
+	}
+}
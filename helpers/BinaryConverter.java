@@ -0,0 +1,48 @@
+package helpers;
+
+import java.io.IOException;
+
+import defs.Dataset;
+import defs.SparseRatings;
+
+/**
+ * One-time conversion of the csv files of a data set into the binary format of {@link BinaryFormat}. 
+ * The binary files are written next to the csv files in the data folder, later runs of {@link DataLoader} 
+ * pick them up instead of parsing the csv files.
+ * 
+ * Usage: BinaryConverter dataDir [graphDir]	(graphDir defaults to dataDir, both end with '/')
+ */
+public class BinaryConverter {
+	
+	public static void main(String[] args) throws IOException {
+		
+		if (args.length < 1) {
+			System.out.println("Usage: BinaryConverter dataDir [graphDir]");
+			return;
+		}
+		String dataDir = args[0];
+		String graphDir = (args.length > 1) ? args[1] : dataDir;
+		convert(dataDir, graphDir);
+	}
+
+	public static void convert(String dataDir, String graphDir) throws IOException {
+		
+		DataLoader loader = new DataLoader(dataDir);
+		BinaryFormat.writeIndex(loader.getUserIndex(), dataDir + "user_index.bin");
+		BinaryFormat.writeIndex(loader.getItemIndex(), dataDir + "item_index.bin");
+		
+		Dataset ds = loader.load(dataDir + "train_ratings.csv", graphDir + "edge_weights.csv");
+		BinaryFormat.writeRatings(ds.ratings, dataDir + "train_ratings.bin");
+		// the graph is restricted to the users of this data set, so its binary file goes to the data folder
+		BinaryFormat.writeGraph(ds.edge_weights, dataDir + "edge_weights.bin");
+		System.out.println("converted train ratings and the graph: " + ds.ratings.nnz() + " ratings, " 
+							+ ds.edge_weights.numEdge() + " edges");
+		
+		String test_file = dataDir + "test_ratings.csv";
+		if (BinaryFormat.exists(test_file)) {
+			SparseRatings test_ratings = loader.loadRatings(test_file);
+			BinaryFormat.writeRatings(test_ratings, BinaryFormat.binaryName(test_file));
+			System.out.println("converted test ratings: " + test_ratings.nnz() + " ratings");
+		}
+	}
+}
@@ -0,0 +1,282 @@
+package helpers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import defs.FactorMatrix;
+import defs.SocialGraph;
+import defs.SparseRatings;
+
+/**
+ * Compact binary layout of a data set, so that it can be opened by {@link FileChannel#map} instead of being parsed.
+ * All numbers are little-endian. Each file starts with a header of {@code HEADER_SIZE} bytes followed by sections,
+ * each section starts at a multiple of 8 bytes:
+ *
+ * index (user_index.bin, item_index.bin):
+ * 		header: magic, version, numEntry, numByte
+ * 		sections: int[numEntry + 1] offsets, byte[numByte] UTF-8 ids, the id of index k is in [offsets[k], offsets[k+1])
+ * ratings (train_ratings.bin, test_ratings.bin):
+ * 		header: magic, version, numUser, numItem, nnz
+ * 		sections: userPtr, itemIdx, itemPtr, userIdx, entryPos, values (see {@link SparseRatings})
+ * graph (edge_weights.bin):
+ * 		header: magic, version, numUser, numEdge
+ * 		sections: outPtr, outIdx, inPtr, inIdx, outWeights, inWeights (see {@link SocialGraph})
+ * factors (snapshot of params, e.g. topic_user.bin):
+ * 		header: magic, version, numFactor, numEntity
+ * 		sections: double[numFactor * numEntity] in the entity-major order of {@link FactorMatrix}
+ * values (snapshot of params, e.g. decision_prefs.bin):
+ * 		header: magic, version, count
+ * 		sections: double[count]
+ */
+public class BinaryFormat {
+
+	static final int INDEX_MAGIC = 0x53424958;		// "SBIX"
+	static final int RATINGS_MAGIC = 0x53425254;	// "SBRT"
+	static final int GRAPH_MAGIC = 0x53424752;		// "SBGR"
+	static final int FACTORS_MAGIC = 0x5342464D;	// "SBFM"
+	static final int VALUES_MAGIC = 0x5342564C;		// "SBVL"
+	static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 64;
+	private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	public static String binaryName(String csvFile) {
+		return csvFile.replaceAll("\\.(csv|tsv)$", "") + ".bin";
+	}
+
+	public static boolean exists(String fname) {
+		return Files.exists(Paths.get(fname));
+	}
+
+	// ------------------------------------------------------------------ writing
+
+	/**
+	 * Write the ids of a dictionary ordered by their index, indices without an id get an empty id
+	 */
+	public static void writeIndex(IdDictionary index, String fname) throws IOException {
+
+		int numEntry = index.numIndex();
+		byte[][] ids = new byte[numEntry][];
+		int[] offsets = new int[numEntry + 1];
+		for (int k = 0; k < numEntry; k++) {
+			byte[] id = index.idBytes(k);
+			ids[k] = (id == null) ? new byte[0] : id;
+			offsets[k + 1] = offsets[k] + ids[k].length;
+		}
+
+		try (FileChannel channel = openForWrite(fname)) {
+			writeHeader(channel, INDEX_MAGIC, numEntry, offsets[numEntry]);
+			long pos = HEADER_SIZE;
+			pos = writeInts(channel, pos, IntBuffer.wrap(offsets));
+			ByteBuffer arena = channel.map(MapMode.READ_WRITE, pos, offsets[numEntry]);
+			for (byte[] id : ids) {
+				arena.put(id);
+			}
+		}
+	}
+
+	public static void writeRatings(SparseRatings ratings, String fname) throws IOException {
+
+		try (FileChannel channel = openForWrite(fname)) {
+			writeHeader(channel, RATINGS_MAGIC, ratings.numUser, ratings.numItem, ratings.nnz());
+			long pos = HEADER_SIZE;
+			pos = writeInts(channel, pos, ratings.userPointers());
+			pos = writeInts(channel, pos, ratings.itemIndices());
+			pos = writeInts(channel, pos, ratings.itemPointers());
+			pos = writeInts(channel, pos, ratings.userIndices());
+			pos = writeInts(channel, pos, ratings.entryPositions());
+			writeDoubles(channel, pos, ratings.values());
+		}
+	}
+
+	public static void writeGraph(SocialGraph graph, String fname) throws IOException {
+
+		try (FileChannel channel = openForWrite(fname)) {
+			writeHeader(channel, GRAPH_MAGIC, graph.numUser, graph.numEdge());
+			long pos = HEADER_SIZE;
+			pos = writeInts(channel, pos, graph.outPointers());
+			pos = writeInts(channel, pos, graph.outNeighbors());
+			pos = writeInts(channel, pos, graph.inPointers());
+			pos = writeInts(channel, pos, graph.inNeighbors());
+			pos = writeDoubles(channel, pos, graph.outWeights());
+			writeDoubles(channel, pos, graph.inWeights());
+		}
+	}
+
+	public static void writeFactors(FactorMatrix factors, String fname) throws IOException {
+
+		try (FileChannel channel = openForWrite(fname)) {
+			writeHeader(channel, FACTORS_MAGIC, factors.numFactor(), factors.numEntity());
+			writeDoubles(channel, HEADER_SIZE, factors.data().asReadOnlyBuffer());
+		}
+	}
+
+	public static void writeValues(DoubleBuffer values, String fname) throws IOException {
+
+		try (FileChannel channel = openForWrite(fname)) {
+			writeHeader(channel, VALUES_MAGIC, values.remaining());
+			writeDoubles(channel, HEADER_SIZE, values);
+		}
+	}
+
+	private static FileChannel openForWrite(String fname) throws IOException {
+		return FileChannel.open(Paths.get(fname), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+								StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	private static void writeHeader(FileChannel channel, int magic, int... dims) throws IOException {
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ORDER);
+		header.putInt(magic).putInt(VERSION);
+		for (int dim : dims) {
+			header.putInt(dim);
+		}
+		header.rewind();
+		channel.write(header, 0);
+	}
+
+	// each section is mapped on its own, so that a file can be larger than what a single mapping can address
+	private static long writeInts(FileChannel channel, long pos, IntBuffer values) throws IOException {
+		long size = 4L * values.remaining();
+		channel.map(MapMode.READ_WRITE, pos, size).order(ORDER).asIntBuffer().put(values);
+		return align(pos + size);
+	}
+
+	private static long writeDoubles(FileChannel channel, long pos, DoubleBuffer values) throws IOException {
+		long size = 8L * values.remaining();
+		channel.map(MapMode.READ_WRITE, pos, size).order(ORDER).asDoubleBuffer().put(values);
+		return align(pos + size);
+	}
+
+	// ------------------------------------------------------------------ reading
+
+	/**
+	 * Read an index file into a dictionary, ids are inserted straight from the mapped bytes (no String per id)
+	 */
+	public static IdDictionary readIndex(String fname) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(Paths.get(fname), StandardOpenOption.READ)) {
+			IntBuffer header = readHeader(channel, INDEX_MAGIC, fname);
+			int numEntry = header.get(2);
+			int numByte = header.get(3);
+			long pos = HEADER_SIZE;
+			IntBuffer offsets = mapInts(channel, pos, numEntry + 1);
+			pos = align(pos + 4L * (numEntry + 1));
+			MappedByteBuffer arena = channel.map(MapMode.READ_ONLY, pos, numByte);
+
+			IdDictionary index = new IdDictionary(numEntry);
+			for (int k = 0; k < numEntry; k++) {
+				int len = offsets.get(k + 1) - offsets.get(k);
+				if (len > 0) {
+					index.put(arena, offsets.get(k), len, k);
+				}
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * Map a ratings file, the returned ratings read directly from the mapped file (no copy, no parsing)
+	 */
+	public static SparseRatings mapRatings(String fname) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(Paths.get(fname), StandardOpenOption.READ)) {
+			IntBuffer header = readHeader(channel, RATINGS_MAGIC, fname);
+			int numUser = header.get(2);
+			int numItem = header.get(3);
+			int nnz = header.get(4);
+
+			long pos = HEADER_SIZE;
+			IntBuffer userPtr = mapInts(channel, pos, numUser + 1); 	pos = align(pos + 4L * (numUser + 1));
+			IntBuffer itemIdx = mapInts(channel, pos, nnz); 			pos = align(pos + 4L * nnz);
+			IntBuffer itemPtr = mapInts(channel, pos, numItem + 1); 	pos = align(pos + 4L * (numItem + 1));
+			IntBuffer userIdx = mapInts(channel, pos, nnz); 			pos = align(pos + 4L * nnz);
+			IntBuffer entryPos = mapInts(channel, pos, nnz); 			pos = align(pos + 4L * nnz);
+			DoubleBuffer values = mapDoubles(channel, pos, nnz);
+
+			return new SparseRatings(numUser, numItem, userPtr, itemIdx, values, itemPtr, userIdx, entryPos);
+		}
+	}
+
+	/**
+	 * Map a graph file, the returned graph reads directly from the mapped file (no copy, no parsing)
+	 */
+	public static SocialGraph mapGraph(String fname) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(Paths.get(fname), StandardOpenOption.READ)) {
+			IntBuffer header = readHeader(channel, GRAPH_MAGIC, fname);
+			int numUser = header.get(2);
+			int numEdge = header.get(3);
+
+			long pos = HEADER_SIZE;
+			IntBuffer outPtr = mapInts(channel, pos, numUser + 1); 		pos = align(pos + 4L * (numUser + 1));
+			IntBuffer outIdx = mapInts(channel, pos, numEdge); 			pos = align(pos + 4L * numEdge);
+			IntBuffer inPtr = mapInts(channel, pos, numUser + 1); 		pos = align(pos + 4L * (numUser + 1));
+			IntBuffer inIdx = mapInts(channel, pos, numEdge); 			pos = align(pos + 4L * numEdge);
+			DoubleBuffer outWeights = mapDoubles(channel, pos, numEdge); 	pos = align(pos + 8L * numEdge);
+			DoubleBuffer inWeights = mapDoubles(channel, pos, numEdge);
+
+			return new SocialGraph(numUser, outPtr, outIdx, outWeights, inPtr, inIdx, inWeights);
+		}
+	}
+
+	/**
+	 * Read a factors file into already allocated factors (on the heap or off-heap) of the same dimensions
+	 */
+	public static void readFactors(String fname, FactorMatrix factors) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(Paths.get(fname), StandardOpenOption.READ)) {
+			IntBuffer header = readHeader(channel, FACTORS_MAGIC, fname);
+			if (header.get(2) != factors.numFactor() || header.get(3) != factors.numEntity()) {
+				throw new IOException(fname + " holds " + header.get(2) + "x" + header.get(3) + " factors, expected "
+										+ factors.numFactor() + "x" + factors.numEntity());
+			}
+			factors.data().duplicate().put(mapDoubles(channel, HEADER_SIZE, header.get(2) * header.get(3)));
+		}
+	}
+
+	/**
+	 * Read a values file into {@code values}, which must have exactly as many remaining values as the file
+	 */
+	public static void readValues(String fname, DoubleBuffer values) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(Paths.get(fname), StandardOpenOption.READ)) {
+			IntBuffer header = readHeader(channel, VALUES_MAGIC, fname);
+			if (header.get(2) != values.remaining()) {
+				throw new IOException(fname + " holds " + header.get(2) + " values, expected " + values.remaining());
+			}
+			values.duplicate().put(mapDoubles(channel, HEADER_SIZE, header.get(2)));
+		}
+	}
+
+	private static IntBuffer readHeader(FileChannel channel, int magic, String fname) throws IOException {
+
+		IntBuffer header = channel.map(MapMode.READ_ONLY, 0, HEADER_SIZE).order(ORDER).asIntBuffer();
+		if (header.get(0) != magic || header.get(1) != VERSION) {
+			throw new IOException(fname + " is not a binary file of the expected kind/version, pls re-run BinaryConverter");
+		}
+		return header;
+	}
+
+	// a mapping stays valid after its channel is closed
+	private static IntBuffer mapInts(FileChannel channel, long pos, int count) throws IOException {
+		return channel.map(MapMode.READ_ONLY, pos, 4L * count).order(ORDER).asIntBuffer();
+	}
+
+	private static DoubleBuffer mapDoubles(FileChannel channel, long pos, int count) throws IOException {
+		return channel.map(MapMode.READ_ONLY, pos, 8L * count).order(ORDER).asDoubleBuffer();
+	}
+
+	private static long align(long pos) {
+		return (pos + 7) & ~7L;
+	}
+}
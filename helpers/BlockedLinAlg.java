@@ -0,0 +1,135 @@
+package helpers;
+
+import java.nio.DoubleBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.DoubleUnaryOperator;
+
+import defs.FactorMatrix;
+
+/**
+ * Pure Java {@link LinAlg}: rows of the result are split into fork-join tasks, and each task walks its rows tile by
+ * tile so that the factors of a tile of columns stay in cache while they are matched with a tile of rows.
+ * Each entry is computed by a single task with the same operations as a plain loop, so results are the same whatever
+ * the number of threads.
+ */
+public class BlockedLinAlg implements LinAlg {
+
+	private static final int TILE = 64;				// entities per tile side
+	private static final int MIN_TASK_ROWS = 64;	// rows under which a task is not split further
+
+	private final ForkJoinPool pool;
+
+	public BlockedLinAlg() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	public BlockedLinAlg(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	@Override
+	public void gemmTN(double[] rowScale, FactorMatrix a, FactorMatrix b, double[][] c, boolean accumulate) {
+
+		if (a.numFactor() != b.numFactor()) {
+			throw new IllegalArgumentException("factor matrices with " + a.numFactor() + " and " + b.numFactor() + " factors");
+		}
+		pool.invoke(new RowTask(0, a.numEntity()) {
+			@Override
+			void compute(int from, int to) {
+				gemmRows(rowScale, a, b, c, accumulate, from, to);
+			}
+		});
+	}
+
+	private static void gemmRows(double[] rowScale, FactorMatrix a, FactorMatrix b, double[][] c, boolean accumulate,
+									int from, int to) {
+
+		int numFactor = a.numFactor();
+		int numCol = b.numEntity();
+		DoubleBuffer aData = a.data();
+		DoubleBuffer bData = b.data();
+		double[] scaled = new double[TILE * numFactor];	// scaled vectors of the current tile of rows
+
+		for (int e0 = from; e0 < to; e0 += TILE) {
+			int e1 = Math.min(e0 + TILE, to);
+			for (int e = e0; e < e1; e++) {
+				int aOff = a.offset(e);
+				int sOff = (e - e0) * numFactor;
+				for (int k = 0; k < numFactor; k++) {
+					scaled[sOff + k] = (rowScale == null) ? aData.get(aOff + k) : rowScale[e] * aData.get(aOff + k);
+				}
+			}
+			for (int f0 = 0; f0 < numCol; f0 += TILE) {
+				int f1 = Math.min(f0 + TILE, numCol);
+				for (int e = e0; e < e1; e++) {
+					double[] row = c[e];
+					int sOff = (e - e0) * numFactor;
+					for (int f = f0; f < f1; f++) {
+						int bOff = b.offset(f);
+						double dot = 0;
+						for (int k = 0; k < numFactor; k++) {
+							dot += scaled[sOff + k] * bData.get(bOff + k);
+						}
+						row[f] = accumulate ? row[f] + dot : dot;
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public void map(double[][] src, DoubleUnaryOperator func, double[][] dst) {
+		pool.invoke(new RowTask(0, src.length) {
+			@Override
+			void compute(int from, int to) {
+				for (int e = from; e < to; e++) {
+					double[] srcRow = src[e];
+					double[] dstRow = dst[e];
+					for (int f = 0; f < srcRow.length; f++) {
+						dstRow[f] = func.applyAsDouble(srcRow[f]);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Splits the rows [from, to) in halves until they are small enough, then computes each part
+	 */
+	private abstract class RowTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int from;
+		private final int to;
+
+		RowTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		abstract void compute(int from, int to);
+
+		@Override
+		protected void compute() {
+			if (to - from <= MIN_TASK_ROWS) {
+				compute(from, to);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			RowTask outer = this;
+			invokeAll(new RowTask(from, mid) {
+				@Override
+				void compute(int from, int to) {
+					outer.compute(from, to);
+				}
+			}, new RowTask(mid, to) {
+				@Override
+				void compute(int from, int to) {
+					outer.compute(from, to);
+				}
+			});
+		}
+	}
+}
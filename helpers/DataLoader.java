@@ -3,38 +3,121 @@ package helpers;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
-
-import org.apache.commons.math3.linear.Array2DRowRealMatrix;
-import org.apache.commons.math3.linear.RealMatrix;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
 
 import defs.Dataset;
+import defs.ItemBrands;
+import defs.SocialGraph;
+import defs.SparseRatings;
 
 public class DataLoader {
 	
-	private Map<String, Integer> userIndex;
-	private Map<String, Integer> itemIndex ;
-	private Map<String, Integer> brandIndex;
+	private IdDictionary userIndex;
+	private IdDictionary itemIndex ;
+	private IdDictionary brandIndex;	// null if the data set comes without brands, e.g. synthetic data
+	private ItemBrands itemBrands;
+	
+	// number of threads to parse csv files, if more than one csv files are read in parallel chunks (see ParallelCsvReader)
+	private int numThread;
 	
 	public DataLoader(String dataDir) throws IOException {
+		this(dataDir, 1);
+	}
+	
+	public DataLoader(String dataDir, int numThread) throws IOException {
+		this.numThread = numThread;
 		loadIndices(dataDir);
+		loadItemBrands(dataDir);
+	}
+	
+	public IdDictionary getUserIndex() {
+		return userIndex;
+	}
+	
+	public IdDictionary getItemIndex() {
+		return itemIndex;
 	}
 
 	private void loadIndices(String dataDir) throws IOException {
-		userIndex = loadIndex(dataDir + "user_index.csv");
+		userIndex = loadIndex(indexFile(dataDir, "user_index"));
 		System.out.println("loaded index of " + userIndex.size() + " users");
-		itemIndex = loadIndex(dataDir + "item_index.csv");
+		itemIndex = loadIndex(indexFile(dataDir, "item_index"));
 		System.out.println("loaded index of " + itemIndex.size() + " items");
 
-		// XXX: on synthetic data, we do not load index of brands, smth is wrong here, tmp turn off this but need to handle later 
-//		brandIndex = loadIndex(dataDir + "brand_index.tsv");
-//		System.out.println("loaded index of " + brandIndex.size() + " brands");
+		// on synthetic data, there is no index of brands
+		String brandIndexFile = brandIndexFile(dataDir);
+		if (brandIndexFile != null) {
+			brandIndex = loadIndex(brandIndexFile);
+			System.out.println("loaded index of " + brandIndex.size() + " brands");
+		}
 	}
 	
-	private Map<String, Integer> loadIndex(String fName) throws IOException {
+	// BinaryConverter does not convert the brands, their files are always parsed
+	private String brandIndexFile(String dataDir) {
+		for (String ext : new String[] {".tsv", ".csv"}) {
+			if (BinaryFormat.exists(dataDir + "brand_index" + ext)) {
+				return dataDir + "brand_index" + ext;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Load which brands produce which items from item_brands.csv (item_id, brand_id), 
+	 * if there is no brand index (synthetic data), every brand is taken to produce every item
+	 */
+	private void loadItemBrands(String dataDir) throws IOException {
 		
-		HashMap<String, Integer> index = new HashMap<String, Integer>();
+		int numItem = itemIndex.size();
+		String fname = dataDir + "item_brands.csv";
+		if (brandIndex == null) {
+			//XXX: use this hard setting only for syn data
+			int numBrand = 46; // 9K + 1
+			itemBrands = ItemBrands.full(numItem, numBrand);
+			return;
+		}
+		if (!BinaryFormat.exists(fname)) {
+			throw new IOException("index of " + brandIndex.size() + " brands without " + fname
+									+ " giving the brands of the items");
+		}
+		
+		ItemBrands.Builder pairs = new ItemBrands.Builder(numItem, brandIndex.size());
+		int numSkip = 0;
+		BufferedReader reader = new BufferedReader(new FileReader(fname));
+		String line = reader.readLine();	// skip header
+		while ((line = reader.readLine()) != null) {
+			String[] fields = line.split(",|\t");
+			int iIndex = itemIndex.get(fields[0]);
+			int bIndex = brandIndex.get(fields[1]);
+			if (iIndex != -1 && bIndex != -1) {
+				pairs.add(iIndex, bIndex);
+			} else {
+				numSkip ++;
+			}
+		}
+		reader.close();
+		itemBrands = pairs.build();
+		System.out.println("loaded " + itemBrands.numEntry() + " item-brand pairs, skipped " + numSkip + " pairs of unknown items or brands");
+	}
+	
+	// prefer the binary index written by BinaryConverter if there is one
+	private String indexFile(String dataDir, String name) {
+		String binFile = dataDir + name + ".bin";
+		return BinaryFormat.exists(binFile) ? binFile : dataDir + name + ".csv";
+	}
+	
+	private IdDictionary loadIndex(String fName) throws IOException {
+		
+		if (isBinary(fName)) {
+			return BinaryFormat.readIndex(fName);
+		}
+		if (isParallel()) {
+			return loadIndexInParallel(fName);
+		}
+		
+		IdDictionary index = new IdDictionary(1024);
 		BufferedReader reader = new BufferedReader(new FileReader(fName));
 		
 		int numFail2Parse = 0;
@@ -57,23 +140,29 @@ public class DataLoader {
 		return index;
 	}
 
+	/**
+	 * Files ending with .bin are in the binary format of {@link BinaryFormat} and are mapped, other files are parsed as csv
+	 */
 	public Dataset load(String rating_file, String graph_file) throws IOException {
 		
-		RealMatrix ratings = loadRatings(rating_file);	// 
+		SparseRatings ratings = loadRatings(rating_file);	// 
 		
-		RealMatrix edge_weights = loadEdgeWeights(graph_file);
-//		int numBrand = brandIndex.size();
-		//XXX: use this hard setting only for syn data
-		int numBrand = 46; // 9K + 1
-		return new Dataset(ratings, edge_weights, numBrand);
+		SocialGraph edge_weights = loadEdgeWeights(graph_file);
+		return new Dataset(ratings, edge_weights, itemBrands);
 	}
 
-	// read edge weights from the file and fill in 0s for user pairs with no connection
-	private RealMatrix loadEdgeWeights(String fname) throws NumberFormatException, IOException {
+	// read edge weights from the file into adjacency lists, user pairs with no connection are not stored
+	private SocialGraph loadEdgeWeights(String fname) throws NumberFormatException, IOException {
 		
+		if (isBinary(fname)) {
+			return BinaryFormat.mapGraph(fname);
+		}
+		if (isParallel()) {
+			return loadEdgeWeightsInParallel(fname);
+		}
 //		System.out.println("loading edge weights...");
 		int numUser = userIndex.size();
-		RealMatrix edge_weights = new Array2DRowRealMatrix(numUser, numUser);
+		SocialGraph.Builder edge_weights = new SocialGraph.Builder(numUser);
 		BufferedReader reader = new BufferedReader(new FileReader(fname));
 		String line = reader.readLine();	// skip header
 		while ((line = reader.readLine()) != null) {
@@ -85,27 +174,32 @@ public class DataLoader {
 			if (inUserIndex(uid) && inUserIndex(vid)) {
 				int uIndex = userIndex.get(uid);
 				int vIndex = userIndex.get(vid);
-				edge_weights.setEntry(uIndex, vIndex, weight);
+				edge_weights.add(uIndex, vIndex, weight);
 			}
 		}
 		reader.close();
 
-		return edge_weights;
+		return edge_weights.build();
 	}
 
 	/**
-	 * read ratings from file and mark missing/NA ratings by -1
+	 * read ratings from file, only observed ratings are kept (see {@link SparseRatings})
 	 * @param fname
 	 * @return
 	 * @throws IOException
 	 */
-	public RealMatrix loadRatings(String fname) throws IOException {
+	public SparseRatings loadRatings(String fname) throws IOException {
 		
+		if (isBinary(fname)) {
+			return BinaryFormat.mapRatings(fname);
+		}
+		if (isParallel()) {
+			return loadRatingsInParallel(fname);
+		}
 //		System.out.println("loading ratings...");
 		int numUser = userIndex.size();
 		int numItem = itemIndex.size();
-		RealMatrix ratings = new Array2DRowRealMatrix(numUser, numItem);
-		ratings = ratings.scalarAdd(-1);	// mark missing ratings by -1
+		SparseRatings.Builder ratings = new SparseRatings.Builder(numUser, numItem);
 		
 		BufferedReader reader = new BufferedReader(new FileReader(fname));
 		String line = reader.readLine();	// skip header
@@ -117,12 +211,148 @@ public class DataLoader {
 			
 			int uIndex = userIndex.get(uid);	// lookUpIndex(uid, userDict);
 			int iIndex = itemIndex.get(itemId);
-			ratings.setEntry(uIndex, iIndex, r);
+			if (uIndex == -1 || iIndex == -1) {
+				reader.close();
+				throw new IOException("unknown user or item in rating " + uid + "," + itemId + " of " + fname);
+			}
+			ratings.add(uIndex, iIndex, r);
 		}
 		
 		reader.close();
 
-		return ratings;
+		return ratings.build();
+	}
+
+	// ------------------------------------------------------------------ parallel csv ingestion
+	// the parallel versions give exactly the same results as the sequential ones above
+	
+	// ids of a chunk, as byte ranges of the chunk buffer, with their indices
+	private static class IndexChunk {
+		ByteBuffer buf;
+		int size = 0;
+		int[] starts = new int[1024];
+		int[] lengths = new int[1024];
+		int[] indices = new int[1024];
+		int numFail2Parse = 0;
+		
+		void add(ByteBuffer buf, int start, int length, int index) {
+			if (size == starts.length) {
+				starts = Arrays.copyOf(starts, 2 * size);
+				lengths = Arrays.copyOf(lengths, 2 * size);
+				indices = Arrays.copyOf(indices, 2 * size);
+			}
+			this.buf = buf;
+			starts[size] = start;
+			lengths[size] = length;
+			indices[size] = index;
+			size++;
+		}
+	}
+	
+	private IdDictionary loadIndexInParallel(String fName) throws IOException {
+		
+		ParallelCsvReader.LineParser<IndexChunk> parser = new ParallelCsvReader.LineParser<IndexChunk>() {
+			
+			public IndexChunk newCollector() {
+				return new IndexChunk();
+			}
+			
+			public void parse(ParallelCsvReader.Line line, IndexChunk chunk) throws IOException {
+				checkNumField(line, 2, fName);
+				try {
+					int ind = toJavaIndex(line.parseInt(1));
+					chunk.add(line.buffer(), line.start(0), line.length(0), ind);
+				} catch (NumberFormatException e) {
+					chunk.numFail2Parse ++;
+				}
+			}
+		};
+		
+		List<IndexChunk> chunks = new ParallelCsvReader(numThread).read(fName, true, parser);
+		int numEntry = 0;
+		for (IndexChunk chunk : chunks) {
+			numEntry += chunk.size;
+		}
+		IdDictionary index = new IdDictionary(numEntry);
+		int numFail2Parse = 0;
+		for (IndexChunk chunk : chunks) {
+			for (int n = 0; n < chunk.size; n++) {
+				index.put(chunk.buf, chunk.starts[n], chunk.lengths[n], chunk.indices[n]);
+			}
+			numFail2Parse += chunk.numFail2Parse;
+		}
+		System.out.println("number of entries of which index cannot be parsed " + numFail2Parse);
+		return index;
+	}
+	
+	private SparseRatings loadRatingsInParallel(String fname) throws IOException {
+		
+		int numUser = userIndex.size();
+		int numItem = itemIndex.size();
+		ParallelCsvReader.LineParser<SparseRatings.Builder> parser = new ParallelCsvReader.LineParser<SparseRatings.Builder>() {
+			
+			public SparseRatings.Builder newCollector() {
+				return new SparseRatings.Builder(numUser, numItem);
+			}
+			
+			public void parse(ParallelCsvReader.Line line, SparseRatings.Builder ratings) throws IOException {
+				checkNumField(line, 3, fname);
+				int uIndex = userIndex.get(line.buffer(), line.start(0), line.length(0));
+				int iIndex = itemIndex.get(line.buffer(), line.start(1), line.length(1));
+				double r = line.parseDouble(2);
+				if (uIndex == -1 || iIndex == -1) {
+					throw new IOException("unknown user or item in rating " + line.text(0) + "," + line.text(1) + " of " + fname);
+				}
+				ratings.add(uIndex, iIndex, r);
+			}
+		};
+		
+		SparseRatings.Builder ratings = new SparseRatings.Builder(numUser, numItem);
+		for (SparseRatings.Builder chunk : new ParallelCsvReader(numThread).read(fname, false, parser)) {
+			ratings.addAll(chunk);
+		}
+		return ratings.build();
+	}
+	
+	private SocialGraph loadEdgeWeightsInParallel(String fname) throws IOException {
+		
+		int numUser = userIndex.size();
+		ParallelCsvReader.LineParser<SocialGraph.Builder> parser = new ParallelCsvReader.LineParser<SocialGraph.Builder>() {
+			
+			public SocialGraph.Builder newCollector() {
+				return new SocialGraph.Builder(numUser);
+			}
+			
+			public void parse(ParallelCsvReader.Line line, SocialGraph.Builder edge_weights) throws IOException {
+				checkNumField(line, 3, fname);
+				double weight = line.parseDouble(2);
+				int uIndex = userIndex.get(line.buffer(), line.start(0), line.length(0));
+				int vIndex = userIndex.get(line.buffer(), line.start(1), line.length(1));
+				if (uIndex != -1 && vIndex != -1) {
+					edge_weights.add(uIndex, vIndex, weight);
+				}
+			}
+		};
+		
+		SocialGraph.Builder edge_weights = new SocialGraph.Builder(numUser);
+		for (SocialGraph.Builder chunk : new ParallelCsvReader(numThread).read(fname, false, parser)) {
+			edge_weights.addAll(chunk);
+		}
+		return edge_weights.build();
+	}
+	
+	private void checkNumField(ParallelCsvReader.Line line, int numField, String fname) throws IOException {
+		if (line.numField() < numField) {
+			throw new IOException("line with less than " + numField + " fields in " + fname);
+		}
+	}
+	
+	private boolean isParallel() {
+		return numThread > 1;
+	}
+
+	private boolean isBinary(String fname) {
+		return fname.endsWith(".bin");
 	}
 
 	private int toJavaIndex(int ind) {
@@ -130,21 +360,21 @@ public class DataLoader {
 	}
 	
 	private boolean inUserIndex(String uid) {
-		return userIndex.keySet().contains(uid);
+		return userIndex.contains(uid);
 	}
 	
 	/**
-	 * Look up the index corresponding to the specified {@link id} if {@link id} can be found in the map {@link id2Index}, 
-	 * Otherwise add the {@link id} to the map and increment the map {@link size} 
+	 * Look up the index corresponding to the specified {@link id} if {@link id} can be found in the dictionary {@link id2Index}, 
+	 * Otherwise add the {@link id} to the dictionary and increment the dictionary {@link size} 
 	 * @param id
 	 * @param id2Index
 	 * @param size
 	 * @return
 	 */
 	@SuppressWarnings("unused")
-	private  int lookUpIndex(String id, Map<String, Integer> id2Index) {
+	private  int lookUpIndex(String id, IdDictionary id2Index) {
 		
-		if (id2Index.containsKey(id)) {
+		if (id2Index.contains(id)) {
 			return id2Index.get(id);
 		} else {
 			int size = id2Index.size() + 1;
@@ -0,0 +1,93 @@
+package helpers;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.List;
+
+/**
+ * Off-heap (direct) buffers whose memory can be released explicitly instead of waiting for the garbage collector.
+ * Only buffers returned by {@link #allocate} (or mapped by a FileChannel) can be freed, not views or slices of them.
+ */
+public class DirectMemory {
+
+	private static final Object UNSAFE;
+	private static final Method INVOKE_CLEANER;
+
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			System.out.println("explicit release of direct memory is not available, it is left to the garbage collector");
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+
+	/**
+	 * @return a zeroed direct buffer of {@code numByte} bytes in the native byte order
+	 */
+	public static ByteBuffer allocate(long numByte) {
+		if (numByte > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("a direct buffer cannot hold " + numByte + " bytes");
+		}
+		return ByteBuffer.allocateDirect((int) numByte).order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * Copy {@code values} into a direct buffer of their own, so that no block is larger than one array. The block is added
+	 * to {@code blocks}, for {@link #free(List)}
+	 * @return the copy, a view of the new block
+	 */
+	public static IntBuffer copyInts(IntBuffer values, List<ByteBuffer> blocks) {
+		ByteBuffer block = allocate(4L * values.capacity());
+		blocks.add(block);
+		IntBuffer copy = block.asIntBuffer();
+		copy.put(values.duplicate().clear()).clear();
+		return copy;
+	}
+
+	public static DoubleBuffer copyDoubles(DoubleBuffer values, List<ByteBuffer> blocks) {
+		ByteBuffer block = allocate(8L * values.capacity());
+		blocks.add(block);
+		DoubleBuffer copy = block.asDoubleBuffer();
+		copy.put(values.duplicate().clear()).clear();
+		return copy;
+	}
+
+	/**
+	 * Release the memory of a direct buffer right away, the buffer and all its views must not be used afterwards.
+	 * Heap buffers and null are ignored.
+	 */
+	public static void free(ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect() || INVOKE_CLEANER == null) {
+			return;
+		}
+		try {
+			INVOKE_CLEANER.invoke(UNSAFE, buffer);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("cannot release direct memory", e);
+		}
+	}
+
+	/**
+	 * Same as {@link #free(ByteBuffer)} for each block, null is ignored
+	 */
+	public static void free(List<ByteBuffer> blocks) {
+		if (blocks == null) {
+			return;
+		}
+		for (ByteBuffer block : blocks) {
+			free(block);
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package helpers;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Dictionary between string ids and dense int indices (users, items or brands).
+ * Ids are stored as UTF-8 bytes in a single arena and found by open addressing over the arena, so an entry costs
+ * its bytes plus a few ints instead of a boxed HashMap node. Ids can be looked up (and added) straight from the bytes
+ * of an input buffer, without creating a String. Reverse lookup gives the id of an index.
+ * Input files are assumed to be UTF-8 (or ASCII) encoded.
+ * Dictionaries are saved/loaded in the index layout of {@link BinaryFormat}.
+ */
+public class IdDictionary {
+
+	private static final int EMPTY = -1;
+
+	private byte[] arena;
+	private int arenaSize;
+	private int[] offsets;		// id of entry e is in arena[offsets[e], offsets[e+1])
+	private int[] indices;		// index of entry e
+	private int numEntry;
+
+	private int[] slots;		// entry stored in each slot of the hash table, EMPTY if none
+	private int mask;
+
+	private int[] entryOfIndex;	// reverse lookup, entry having each index, EMPTY if none
+	private int numIndex;		// 1 + the largest index
+
+	public IdDictionary(int expectedSize) {
+
+		int capacity = Math.max(16, expectedSize);
+		arena = new byte[8 * capacity];
+		offsets = new int[capacity + 1];
+		indices = new int[capacity];
+		int numSlot = Integer.highestOneBit(2 * capacity - 1) << 1;
+		slots = new int[numSlot];
+		Arrays.fill(slots, EMPTY);
+		mask = numSlot - 1;
+		entryOfIndex = new int[capacity];
+		Arrays.fill(entryOfIndex, EMPTY);
+	}
+
+	/**
+	 * @return number of ids in the dictionary
+	 */
+	public int size() {
+		return numEntry;
+	}
+
+	/**
+	 * @return 1 + the largest index, equal to {@link #size()} when indices are dense
+	 */
+	public int numIndex() {
+		return numIndex;
+	}
+
+	/**
+	 * Set the index of {@code id}, an existing index of the same id is overridden
+	 */
+	public void put(String id, int index) {
+		byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+		put(ByteBuffer.wrap(bytes), 0, bytes.length, index);
+	}
+
+	/**
+	 * Set the index of the id made of bytes [from, from + len) of {@code buf}, using absolute gets.
+	 * An existing index of the same id is overridden
+	 */
+	public void put(ByteBuffer buf, int from, int len, int index) {
+
+		int slot = hash(buf, from, len) & mask;
+		while (slots[slot] != EMPTY) {
+			int e = slots[slot];
+			if (equals(e, buf, from, len)) {
+				if (entryOfIndex[indices[e]] == e) {
+					entryOfIndex[indices[e]] = EMPTY;
+				}
+				indices[e] = index;
+				setReverse(index, e);
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		int e = append(buf, from, len, index);
+		slots[slot] = e;
+		setReverse(index, e);
+		if (2 * numEntry > slots.length) {
+			rehash();
+		}
+	}
+
+	/**
+	 * @return index of {@code id} or -1 if the id is not in the dictionary
+	 */
+	public int get(String id) {
+		byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+		return get(ByteBuffer.wrap(bytes), 0, bytes.length);
+	}
+
+	/**
+	 * Look up the id made of bytes [from, from + len) of {@code buf}, using absolute gets
+	 * @return index of the id or -1 if the id is not in the dictionary
+	 */
+	public int get(ByteBuffer buf, int from, int len) {
+
+		int slot = hash(buf, from, len) & mask;
+		while (slots[slot] != EMPTY) {
+			int e = slots[slot];
+			if (equals(e, buf, from, len)) {
+				return indices[e];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	public boolean contains(String id) {
+		return get(id) != -1;
+	}
+
+	/**
+	 * @return the id having {@code index} or null if there is none
+	 */
+	public String id(int index) {
+		byte[] bytes = idBytes(index);
+		return (bytes == null) ? null : new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return UTF-8 bytes of the id having {@code index} or null if there is none
+	 */
+	public byte[] idBytes(int index) {
+		if (index < 0 || index >= numIndex || entryOfIndex[index] == EMPTY) {
+			return null;
+		}
+		int e = entryOfIndex[index];
+		return Arrays.copyOfRange(arena, offsets[e], offsets[e + 1]);
+	}
+
+	private int append(ByteBuffer buf, int from, int len, int index) {
+
+		if (numEntry == indices.length) {
+			offsets = Arrays.copyOf(offsets, 2 * numEntry + 1);
+			indices = Arrays.copyOf(indices, 2 * numEntry);
+		}
+		if (arenaSize + len > arena.length) {
+			arena = Arrays.copyOf(arena, Math.max(2 * arena.length, arenaSize + len));
+		}
+		buf.get(from, arena, arenaSize, len);
+		arenaSize += len;
+		int e = numEntry++;
+		indices[e] = index;
+		offsets[e + 1] = arenaSize;
+		return e;
+	}
+
+	private void setReverse(int index, int e) {
+		if (index >= entryOfIndex.length) {
+			int oldLength = entryOfIndex.length;
+			entryOfIndex = Arrays.copyOf(entryOfIndex, Math.max(2 * oldLength, index + 1));
+			Arrays.fill(entryOfIndex, oldLength, entryOfIndex.length, EMPTY);
+		}
+		entryOfIndex[index] = e;
+		numIndex = Math.max(numIndex, index + 1);
+	}
+
+	private void rehash() {
+
+		slots = new int[2 * slots.length];
+		Arrays.fill(slots, EMPTY);
+		mask = slots.length - 1;
+		ByteBuffer ids = ByteBuffer.wrap(arena);
+		for (int e = 0; e < numEntry; e++) {
+			int slot = hash(ids, offsets[e], offsets[e + 1] - offsets[e]) & mask;
+			while (slots[slot] != EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+			slots[slot] = e;
+		}
+	}
+
+	private boolean equals(int e, ByteBuffer buf, int from, int len) {
+		int start = offsets[e];
+		if (offsets[e + 1] - start != len) {
+			return false;
+		}
+		for (int j = 0; j < len; j++) {
+			if (arena[start + j] != buf.get(from + j)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// FNV-1a, followed by a mix so that the low bits used for the slot depend on all bytes
+	private static int hash(ByteBuffer buf, int from, int len) {
+		int h = 0x811c9dc5;
+		for (int j = from; j < from + len; j++) {
+			h = (h ^ (buf.get(j) & 0xff)) * 0x01000193;
+		}
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h;
+	}
+}
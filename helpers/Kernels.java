@@ -0,0 +1,107 @@
+package helpers;
+
+import java.nio.DoubleBuffer;
+
+/**
+ * Per-entity vector primitives of the models, on factor vectors read in place from their buffer (see
+ * defs.FactorMatrix#data()) and on plain double[] sums.
+ * Kernels run on SIMD lanes through the jdk.incubator.vector module when it is in the boot layer (compile and run
+ * with {@code --add-modules jdk.incubator.vector}) and the factors are on the heap, otherwise on scalar loops.
+ * The property {@code -Dkernels.scalar=true} forces the scalar loops.
+ *
+ * Elementwise kernels give the same values on both paths. Dot products on lanes sum one partial per lane before adding
+ * them, so their rounding differs slightly from the scalar loop, which sums in increasing k as the code it replaces.
+ */
+public class Kernels {
+
+	public static final boolean VECTOR = !Boolean.getBoolean("kernels.scalar")
+											&& ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()
+											&& VectorKernels.LANES > 1;
+
+	/**
+	 * @return sum_k x[xOff + k] * y[yOff + k] for k < n
+	 */
+	public static double dot(double[] x, int xOff, DoubleBuffer y, int yOff, int n) {
+		if (VECTOR && y.hasArray()) {
+			return VectorKernels.dot(x, xOff, y.array(), y.arrayOffset() + yOff, n);
+		}
+		double dot = 0;
+		for (int k = 0; k < n; k++) {
+			dot += x[xOff + k] * y.get(yOff + k);
+		}
+		return dot;
+	}
+
+	public static double dot(DoubleBuffer x, int xOff, DoubleBuffer y, int yOff, int n) {
+		if (VECTOR && x.hasArray() && y.hasArray()) {
+			return VectorKernels.dot(x.array(), x.arrayOffset() + xOff, y.array(), y.arrayOffset() + yOff, n);
+		}
+		double dot = 0;
+		for (int k = 0; k < n; k++) {
+			dot += x.get(xOff + k) * y.get(yOff + k);
+		}
+		return dot;
+	}
+
+	/**
+	 * y[yOff + k] = a * x[xOff + k]
+	 */
+	public static void scale(double a, DoubleBuffer x, int xOff, double[] y, int yOff, int n) {
+		if (VECTOR && x.hasArray()) {
+			VectorKernels.scale(a, x.array(), x.arrayOffset() + xOff, y, yOff, n);
+			return;
+		}
+		for (int k = 0; k < n; k++) {
+			y[yOff + k] = a * x.get(xOff + k);
+		}
+	}
+
+	/**
+	 * y[yOff + k] += x[xOff + k] * a
+	 */
+	public static void axpy(double a, DoubleBuffer x, int xOff, double[] y, int yOff, int n) {
+		if (VECTOR && x.hasArray()) {
+			VectorKernels.axpy(a, x.array(), x.arrayOffset() + xOff, y, yOff, n);
+			return;
+		}
+		for (int k = 0; k < n; k++) {
+			y[yOff + k] += x.get(xOff + k) * a;
+		}
+	}
+
+	public static void axpy(double a, double[] x, int xOff, double[] y, int yOff, int n) {
+		if (VECTOR) {
+			VectorKernels.axpy(a, x, xOff, y, yOff, n);
+			return;
+		}
+		for (int k = 0; k < n; k++) {
+			y[yOff + k] += x[xOff + k] * a;
+		}
+	}
+
+	/**
+	 * y[yOff + k] += x[xOff + k] * a * b, multiplied in this order
+	 */
+	public static void axpy(double a, double b, DoubleBuffer x, int xOff, double[] y, int yOff, int n) {
+		if (VECTOR && x.hasArray()) {
+			VectorKernels.axpy(a, b, x.array(), x.arrayOffset() + xOff, y, yOff, n);
+			return;
+		}
+		for (int k = 0; k < n; k++) {
+			y[yOff + k] += x.get(xOff + k) * a * b;
+		}
+	}
+
+	/**
+	 * out[outOff + k] = x[xOff + k] * a + s[k] * b, e.g. a gradient from the regularized factors and a sum of error terms
+	 */
+	public static void scaledAccumulate(double a, DoubleBuffer x, int xOff, double b, double[] s, DoubleBuffer out, int outOff, int n) {
+		if (VECTOR && x.hasArray() && out.hasArray()) {
+			VectorKernels.scaledAccumulate(a, x.array(), x.arrayOffset() + xOff, b, s, out.array(), out.arrayOffset() + outOff, n);
+			return;
+		}
+		for (int k = 0; k < n; k++) {
+			out.put(outOff + k, x.get(xOff + k) * a + s[k] * b);
+		}
+	}
+}
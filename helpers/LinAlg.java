@@ -0,0 +1,28 @@
+package helpers;
+
+import java.util.function.DoubleUnaryOperator;
+
+import defs.FactorMatrix;
+
+/**
+ * Dense linear algebra used by the models, on factor matrices (numFactor x numEntity, see {@link FactorMatrix}) and
+ * row-major double[][] results. Diagonal matrices are given by their diagonal, as the row scales of {@link #gemmTN}.
+ * Implementations must compute each result entry with the same operations whatever their blocking or threads, e.g. the
+ * dot products of {@link #gemmTN} are summed in increasing factor order from 0, so that results do not depend on the
+ * backend.
+ */
+public interface LinAlg {
+
+	/**
+	 * c[e][f] = sum_k (rowScale[e] * a_e[k]) * b_f[k] for all entities e of a and f of b, i.e. C = diag(rowScale) A^T B
+	 * without transposing A
+	 * @param rowScale: diagonal scaling the entities of a, null for none
+	 * @param accumulate: add the products to c, i.e. c[e][f] = c[e][f] + product, instead of overwriting it
+	 */
+	void gemmTN(double[] rowScale, FactorMatrix a, FactorMatrix b, double[][] c, boolean accumulate);
+
+	/**
+	 * dst[e][f] = func(src[e][f]), dst may be src
+	 */
+	void map(double[][] src, DoubleUnaryOperator func, double[][] dst);
+}
@@ -0,0 +1,319 @@
+package helpers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads a delimited text file (with a header line) in parallel: the file is split into byte ranges which end on line
+ * boundaries, each range is mapped and parsed on its own thread into its own collector.
+ * Fields are parsed straight from the mapped bytes, no regex and no String per line.
+ * Collectors are returned in file order, so merging them in order gives the same result as reading the file line by line.
+ */
+class ParallelCsvReader {
+
+	private static final long MAX_CHUNK_SIZE = 1L << 28;	// 256MB, well below the 2GB limit of a mapping
+	private static final long MIN_CHUNK_SIZE = 1L << 20;
+	private static final int MAX_FIELD = 16;
+
+	interface LineParser<T> {
+
+		T newCollector();
+
+		void parse(Line line, T collector) throws IOException;
+	}
+
+	private final int numThread;
+
+	ParallelCsvReader(int numThread) {
+		this.numThread = numThread;
+	}
+
+	/**
+	 * @param tabIsDelimiter: if true, both ',' and '\t' separate fields, otherwise only ','
+	 * @return one collector per chunk, in file order
+	 */
+	<T> List<T> read(String fname, boolean tabIsDelimiter, LineParser<T> parser) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(Paths.get(fname), StandardOpenOption.READ)) {
+
+			long[] bounds = chunkBounds(channel);
+			List<Callable<T>> tasks = new ArrayList<Callable<T>>();
+			for (int c = 0; c + 1 < bounds.length; c++) {
+				long start = bounds[c];
+				long end = bounds[c + 1];
+				tasks.add(() -> parseChunk(channel, start, end, tabIsDelimiter, parser));
+			}
+
+			ExecutorService pool = Executors.newFixedThreadPool(numThread);
+			try {
+				List<T> collectors = new ArrayList<T>();
+				for (Future<T> future : pool.invokeAll(tasks)) {
+					collectors.add(future.get());
+				}
+				return collectors;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while reading " + fname, e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				throw new IOException("failed to read " + fname, cause);
+			} finally {
+				pool.shutdown();
+			}
+		}
+	}
+
+	// chunk c covers bytes [bounds[c], bounds[c+1]), the first chunk starts after the header line
+	private long[] chunkBounds(FileChannel channel) throws IOException {
+
+		long size = channel.size();
+		long first = nextLineStart(channel, 0);
+		long chunkSize = Math.min(MAX_CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, (size - first) / (4 * numThread) + 1));
+
+		List<Long> bounds = new ArrayList<Long>();
+		bounds.add(first);
+		long pos = first;
+		while (pos < size) {
+			// a line starting exactly at pos + chunkSize belongs to the next chunk
+			pos = (pos + chunkSize >= size) ? size : nextLineStart(channel, pos + chunkSize - 1);
+			bounds.add(pos);
+		}
+
+		long[] arr = new long[bounds.size()];
+		for (int c = 0; c < arr.length; c++) {
+			arr[c] = bounds.get(c);
+		}
+		return arr;
+	}
+
+	// position right after the first '\n' at or after pos, or the file size if there is none
+	private long nextLineStart(FileChannel channel, long pos) throws IOException {
+
+		ByteBuffer buf = ByteBuffer.allocate(4096);
+		long size = channel.size();
+		while (pos < size) {
+			buf.clear();
+			int n = channel.read(buf, pos);
+			for (int j = 0; j < n; j++) {
+				if (buf.get(j) == '\n') {
+					return pos + j + 1;
+				}
+			}
+			pos += n;
+		}
+		return size;
+	}
+
+	private <T> T parseChunk(FileChannel channel, long start, long end, boolean tabIsDelimiter, LineParser<T> parser) throws IOException {
+
+		T collector = parser.newCollector();
+		MappedByteBuffer buf = channel.map(MapMode.READ_ONLY, start, end - start);
+		Line line = new Line(buf, tabIsDelimiter);
+		int limit = buf.limit();
+		int lineStart = 0;
+		while (lineStart < limit) {
+			int lineEnd = lineStart;
+			while (lineEnd < limit && buf.get(lineEnd) != '\n') {
+				lineEnd++;
+			}
+			if (line.split(lineStart, lineEnd)) {
+				parser.parse(line, collector);
+			}
+			lineStart = lineEnd + 1;
+		}
+		return collector;
+	}
+
+	/**
+	 * Fields of the current line, as byte ranges of the chunk buffer. Reused for all lines of a chunk.
+	 */
+	static class Line {
+
+		private final ByteBuffer buf;
+		private final boolean tabIsDelimiter;
+		private final int[] starts = new int[MAX_FIELD];
+		private final int[] ends = new int[MAX_FIELD];
+		private int numField;
+
+		Line(ByteBuffer buf, boolean tabIsDelimiter) {
+			this.buf = buf;
+			this.tabIsDelimiter = tabIsDelimiter;
+		}
+
+		// @return false for an empty line
+		private boolean split(int lineStart, int lineEnd) {
+
+			if (lineEnd > lineStart && buf.get(lineEnd - 1) == '\r') {
+				lineEnd--;
+			}
+			if (lineEnd == lineStart) {
+				return false;
+			}
+			numField = 0;
+			int fieldStart = lineStart;
+			for (int j = lineStart; j < lineEnd && numField < MAX_FIELD - 1; j++) {
+				byte b = buf.get(j);
+				if (b == ',' || (tabIsDelimiter && b == '\t')) {
+					starts[numField] = fieldStart;
+					ends[numField] = j;
+					numField++;
+					fieldStart = j + 1;
+				}
+			}
+			starts[numField] = fieldStart;
+			ends[numField] = lineEnd;
+			numField++;
+			return true;
+		}
+
+		int numField() {
+			return numField;
+		}
+
+		ByteBuffer buffer() {
+			return buf;
+		}
+
+		int start(int f) {
+			return starts[f];
+		}
+
+		int length(int f) {
+			return ends[f] - starts[f];
+		}
+
+		String text(int f) {
+			byte[] bytes = new byte[length(f)];
+			buf.get(starts[f], bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Same result as {@link Integer#parseInt(String)} on the field, including the exception on malformed fields
+		 */
+		int parseInt(int f) {
+
+			int j = starts[f];
+			int end = ends[f];
+			boolean negative = false;
+			if (j < end && (buf.get(j) == '-' || buf.get(j) == '+')) {
+				negative = buf.get(j) == '-';
+				j++;
+			}
+			if (j == end || end - j > 9) {
+				return Integer.parseInt(text(f));	// empty or possibly overflowing, let parseInt decide
+			}
+			int value = 0;
+			for (; j < end; j++) {
+				int digit = buf.get(j) - '0';
+				if (digit < 0 || digit > 9) {
+					return Integer.parseInt(text(f));
+				}
+				value = 10 * value + digit;
+			}
+			return negative ? -value : value;
+		}
+
+		/**
+		 * Same result as {@link Double#valueOf(String)} on the field. Plain decimals whose digits fit in 2^53 and
+		 * with a decimal exponent of at most 22 are converted by a single correctly rounded multiplication or division
+		 * of two exact doubles, which gives the same double as the full conversion. All other fields fall back to it.
+		 */
+		double parseDouble(int f) {
+
+			int j = starts[f];
+			int end = ends[f];
+			while (j < end && (buf.get(j) & 0xff) <= ' ') {
+				j++;
+			}
+			while (end > j && (buf.get(end - 1) & 0xff) <= ' ') {
+				end--;
+			}
+			boolean negative = false;
+			if (j < end && (buf.get(j) == '-' || buf.get(j) == '+')) {
+				negative = buf.get(j) == '-';
+				j++;
+			}
+
+			long mantissa = 0;
+			int numDigit = 0;		// all digits of the mantissa
+			int numSigDigit = 0;	// digits from the first non-zero one
+			int exp10 = 0;
+			boolean seenPoint = false;
+			for (; j < end; j++) {
+				byte b = buf.get(j);
+				if (b >= '0' && b <= '9') {
+					if (numSigDigit == 18) {
+						return Double.parseDouble(text(f));
+					}
+					mantissa = 10 * mantissa + (b - '0');
+					numDigit++;
+					if (mantissa > 0) {
+						numSigDigit++;
+					}
+					if (seenPoint) {
+						exp10--;
+					}
+				} else if (b == '.' && !seenPoint) {
+					seenPoint = true;
+				} else if (b == 'e' || b == 'E') {
+					break;
+				} else {
+					return Double.parseDouble(text(f));
+				}
+			}
+
+			if (j < end) {	// exponent part
+				j++;
+				boolean negExp = false;
+				if (j < end && (buf.get(j) == '-' || buf.get(j) == '+')) {
+					negExp = buf.get(j) == '-';
+					j++;
+				}
+				if (j == end || end - j > 4) {
+					return Double.parseDouble(text(f));
+				}
+				int exp = 0;
+				for (; j < end; j++) {
+					int digit = buf.get(j) - '0';
+					if (digit < 0 || digit > 9) {
+						return Double.parseDouble(text(f));
+					}
+					exp = 10 * exp + digit;
+				}
+				exp10 += negExp ? -exp : exp;
+			}
+
+			if (numDigit == 0 || mantissa > (1L << 53) || exp10 > 22 || exp10 < -22) {
+				return Double.parseDouble(text(f));
+			}
+			double value = (exp10 >= 0) ? mantissa * POWERS_OF_TEN[exp10] : mantissa / POWERS_OF_TEN[-exp10];
+			return negative ? -value : value;
+		}
+	}
+
+	// all of these are exactly representable as doubles
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+}
@@ -4,6 +4,7 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.DoubleBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -11,6 +12,7 @@ import org.apache.commons.math3.linear.Array2DRowRealMatrix;
 import org.apache.commons.math3.linear.RealMatrix;
 
 import defs.Params;
+import defs.SoRecParams;
 import defs.SocBIT_Params;
 
 public class ParamLoader {
@@ -36,6 +38,36 @@ public class ParamLoader {
 		return new SocBIT_Params(decPrefs, topicUser, brandUser, topicItem, brandItem);
 	}
 
+	/**
+	 * Fill params from a snapshot saved by {@link ParamSaver#snapshot}. The params must be of the saved model and
+	 * dimensions, e.g. {@code new SocBIT_Params(numUser, numItem, ds.itemBrands, numTopic)}; their factors keep their
+	 * storage (heap or off-heap)
+	 */
+	public static void loadSnapshot(String dir, Params params) throws IOException {
+		
+		System.out.println("Loading params snapshot from folder " + dir);
+		BinaryFormat.readFactors(dir + "topic_user.bin", params.topicUser);
+		BinaryFormat.readFactors(dir + "topic_item.bin", params.topicItem);
+		if (params instanceof SoRecParams) {
+			BinaryFormat.readFactors(dir + "z.bin", ((SoRecParams) params).zMatrix);
+		}
+		if (params instanceof SocBIT_Params) {
+			SocBIT_Params castParams = (SocBIT_Params) params;
+			BinaryFormat.readFactors(dir + "brand_user.bin", castParams.brandUser);
+			BinaryFormat.readValues(dir + "item_brand_values.bin", castParams.brandItem.values());
+			BinaryFormat.readValues(dir + "decision_prefs.bin", DoubleBuffer.wrap(castParams.userDecisionPrefs));
+		}
+		params.touch();	// values were changed in place
+	}
+
+	/**
+	 * Load a user or item dictionary saved with the params by {@link ParamSaver#saveIndices}
+	 * @param name: "user_index" or "item_index"
+	 */
+	public static IdDictionary loadIndex(String paramsDir, String name) throws IOException {
+		return BinaryFormat.readIndex(paramsDir + name + ".bin");
+	}
+
 	private static double[] loadDecPref(String gtParamsDir) throws FileNotFoundException, IOException {
 		
 		String fname = gtParamsDir + "/decision_pref.csv";
@@ -1,6 +1,7 @@
 package helpers;
 
 import java.io.IOException;
+import java.nio.DoubleBuffer;
 import java.util.Arrays;
 
 import myUtil.Savers;
@@ -26,6 +27,34 @@ public class ParamSaver {
 		}
 	}
 
+	/**
+	 * Save the params in binary form (see {@link BinaryFormat}), much faster to write and read back than the csv files
+	 * of {@link #save}. Used to checkpoint params during training and to restart from them, see {@link ParamLoader#loadSnapshot}
+	 */
+	public static void snapshot(Params params, String dir) throws IOException {
+		
+		BinaryFormat.writeFactors(params.topicUser, dir + "topic_user.bin");
+		BinaryFormat.writeFactors(params.topicItem, dir + "topic_item.bin");
+		if (params instanceof SoRecParams) {
+			BinaryFormat.writeFactors(((SoRecParams) params).zMatrix, dir + "z.bin");
+		}
+		if (params instanceof SocBIT_Params) {
+			SocBIT_Params castParams = (SocBIT_Params) params;
+			BinaryFormat.writeFactors(castParams.brandUser, dir + "brand_user.bin");
+			BinaryFormat.writeValues(castParams.brandItem.values(), dir + "item_brand_values.bin");
+			BinaryFormat.writeValues(DoubleBuffer.wrap(castParams.userDecisionPrefs), dir + "decision_prefs.bin");
+		}
+	}
+
+	/**
+	 * Save the user and item dictionaries next to the params, so that learned rows/columns can be mapped back to ids
+	 * (and new data mapped to the same indices) when the model is used for scoring, see {@link ParamLoader#loadIndex}
+	 */
+	public static void saveIndices(IdDictionary userIndex, IdDictionary itemIndex, String dir) throws IOException {
+		BinaryFormat.writeIndex(userIndex, dir + "user_index.bin");
+		BinaryFormat.writeIndex(itemIndex, dir + "item_index.bin");
+	}
+
 	private static void saveZComponent(Params params, String dir) throws IOException {
 		SoRecParams soRecParams = (SoRecParams) params;
 		String zFile = dir + "z_feats.csv";
@@ -38,7 +67,7 @@ public class ParamSaver {
 		Savers.save(castParams.brandUser.toString(), userBrandFeat_file);
 		
 		String itemBrandFeat_file = dir + "item_brand_feats.csv";
-		Savers.save(castParams.brandItem.toString(), itemBrandFeat_file);
+		Savers.save(castParams.brandItem.toCsv(), itemBrandFeat_file);	// only pairs (item, brand) where the brand produces the item
 		
 		String decisionPref_file = dir + "decision_prefs.csv";
 		Savers.save(Arrays.toString(castParams.userDecisionPrefs), decisionPref_file);
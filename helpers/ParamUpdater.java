@@ -1,168 +1,161 @@
 package helpers;
 
-import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.RealVector;
+import java.util.Arrays;
 
 import defs.InvalidModelException;
-import defs.ParamModelMismatchException;
 import defs.Params;
 import defs.SoRecParams;
 import defs.SocBIT_Params;
 
-public class ParamUpdater {
+/**
+ * Gradient steps of the params of a model on two buffers, the current params and a candidate. A trial step writes
+ * candidate = current - stepSize * grad in place, so that trying a step allocates nothing: a rejected candidate is simply
+ * overwritten by the next trial, and an accepted one is swapped with the current params (see {@link #accept()}).
+ * The caller's initial params are never written to.
+ *
+ * For trials run at the same time, more candidate buffers can be added as slots (see {@link #useSlots(int)}): trials of
+ * different slots may run on different threads, the current params are only read by them.
+ */
+public class ParamUpdater implements AutoCloseable {
 	
-	public static Params update(Params cParams, double stepSize, Params cGrad, String model) throws ParamModelMismatchException, InvalidModelException {
-		
-//		Params nParams = buildParams(cParams, model);
-		
-		Params nParams = updateItemComponents(cParams, cGrad, stepSize, model);
-		nParams = updateUserComponents(nParams,  cGrad, stepSize, model);
-		return nParams;
-	}
+	private final String model;
+	private Params current;
+	private Params[] candidates;	// slot 0 is the candidate of the sequential trials
+	private boolean ownsCurrent;	// false while the current params are the caller's initial ones
 	
-	private static Params updateItemComponents(Params cParams, Params cGrad, double stepSize, String model) {
-		
-		Params nParams = new Params(cParams);
-		if (model.equalsIgnoreCase("socBIT") ) {//cParams instanceof SocBIT_Params && nParams instanceof SocBIT_Params
-			nParams = updateItemParamsBySocBIT( (SocBIT_Params) cParams, (SocBIT_Params) cGrad, stepSize);
-		} 
+	public ParamUpdater(Params initParams, String model) throws InvalidModelException {
 		
-		if (model.equalsIgnoreCase("soRec")) {
-			nParams = updateItemParamsBySoRec( (SoRecParams) cParams, (SoRecParams) cGrad, stepSize);
+		if (!Checkers.isValid(model)) {
+			throw new InvalidModelException();
 		}
-//		if (model.equalsIgnoreCase("STE")) {
-//			nParams = updateItemParamsBySTE(cParams, cGrad, stepSize);
-//		}
-		
-		return nParams;
-//		model.equalsIgnoreCase("bSTE")
+		this.model = model;
+		current = initParams;
+		candidates = new Params[] {copy(initParams)};
 	}
-
-	private static Params updateUserComponents(Params cParams,  Params cGrad, double stepSize, String model) {
-		
-		Params nParams = new Params(cParams);
-		if (model.equalsIgnoreCase("socBIT") ) {// model.equalsIgnoreCase("bSTE")
-			nParams = updateUserParamsBySocBIT((SocBIT_Params) cParams,  (SocBIT_Params) cGrad, stepSize);
-		} 
-		
-		if (model.equalsIgnoreCase("soRec")) {
-			nParams = updateUserParamsBySoRec((SoRecParams) cParams, (SoRecParams) cGrad, stepSize);
+	
+	/**
+	 * Have at least {@code numSlot} candidate buffers, the new ones are allocated here once
+	 */
+	public void useSlots(int numSlot) {
+		
+		int numOld = candidates.length;
+		if (numSlot <= numOld) {
+			return;
+		}
+		candidates = Arrays.copyOf(candidates, numSlot);
+		for (int slot = numOld; slot < numSlot; slot++) {
+			candidates[slot] = copy(current);
 		}
-		
-//		if (model.equalsIgnoreCase("STE")) {
-//			nParams = updateUserParamsBySTE(cParams,  cGrad, stepSize);
-//		}
-		return nParams;
 	}
 	
-	// the same as basic MF
-	private static Params updateItemParamsBySoRec(SoRecParams cParams, SoRecParams cGrad, double stepSize) {
-		
-		SoRecParams nParams = new SoRecParams(cParams);
-		
-		RealMatrix descent = cGrad.topicItem.scalarMultiply(stepSize);
-		nParams.topicItem = cParams.topicItem.subtract(descent);
-		
-		return nParams;
+	public Params current() {
+		return current;
 	}
 	
-	private static Params updateUserParamsBySoRec(SoRecParams cParams, SoRecParams cGrad, double stepSize) {
-		SoRecParams nParams = new SoRecParams(cParams);
-		
-		RealMatrix topicDescent = cGrad.topicUser.scalarMultiply(stepSize);
-		nParams.topicUser = cParams.topicUser.subtract(topicDescent);
-		
-		RealMatrix zDescent = cGrad.zMatrix.scalarMultiply(stepSize);
-		nParams.zMatrix = cParams.zMatrix.subtract(zDescent);
-		
-		return nParams;
+	/**
+	 * @return the candidate buffer, set to current - stepSize * grad. It is overwritten by the next trial
+	 */
+	public Params tryStep(double stepSize, Params grad) {
+		return tryStep(0, stepSize, grad);
 	}
-
-	private static SocBIT_Params updateItemParamsBySocBIT(SocBIT_Params cParams, SocBIT_Params cGrad, double stepSize) {
-		
-		SocBIT_Params nParams = new SocBIT_Params(cParams);
-		
-		RealMatrix topicDescent = cGrad.topicItem.scalarMultiply(stepSize);
-		nParams.topicItem = cParams.topicItem.subtract(topicDescent);
-		
-		RealMatrix brandDescent = cGrad.brandItem.scalarMultiply(stepSize);
-		nParams.brandItem = cParams.brandItem.subtract(brandDescent);
-		
-		return nParams;
+	
+	/**
+	 * Same as {@link #tryStep(double, Params)} on the candidate buffer of a slot
+	 */
+	public Params tryStep(int slot, double stepSize, Params grad) {
+		return step(current, stepSize, grad, candidates[slot]);
 	}
 	
-	private static SocBIT_Params updateUserParamsBySocBIT(SocBIT_Params cParams,  SocBIT_Params cGrad, double stepSize) {
-		
-		SocBIT_Params nParams = new SocBIT_Params(cParams);
+	/**
+	 * Same as {@link #tryStep(double, Params)} from other params than the current ones (e.g. an extrapolation of them),
+	 * along any direction
+	 * @return the candidate buffer, set to from - stepSize * dir
+	 */
+	public Params tryStep(Params from, double stepSize, Params dir) {
+		return step(from, stepSize, dir, candidates[0]);
+	}
+	
+	private Params step(Params from, double stepSize, Params grad, Params candidate) {
 		
-		RealMatrix topicDescent = cGrad.topicUser.scalarMultiply(stepSize);
-		nParams.topicUser = cParams.topicUser.subtract(topicDescent);
+		if (model.equalsIgnoreCase("socBIT") || model.equalsIgnoreCase("bSTE")) {
+			stepBySocBIT((SocBIT_Params) from, (SocBIT_Params) grad, stepSize, (SocBIT_Params) candidate);
+		}
 		
-		RealMatrix brandDescent = cGrad.brandUser.scalarMultiply(stepSize);
-		nParams.brandUser = cParams.brandUser.subtract(brandDescent);
+		if (model.equalsIgnoreCase("soRec")) {
+			stepBySoRec((SoRecParams) from, (SoRecParams) grad, stepSize, (SoRecParams) candidate);
+		}
 		
-		int numUser = cParams.topicUser.getColumnDimension();
-		for (int u = 0; u < numUser; u++) {
-			// user decision pref
-			nParams.userDecisionPrefs[u] = cParams.userDecisionPrefs[u] - stepSize * cGrad.userDecisionPrefs[u];
+		if (model.equalsIgnoreCase("STE")) {
+			stepBySTE(from, grad, stepSize, candidate);
 		}
-		return nParams;
+		candidate.touch();	// values were changed in place
+		return candidate;
 	}
 	
-	@SuppressWarnings("unused")
-	private static Params updateItemParamsBySTE(Params params, Params cGrad, double stepSize) {
-		
-		Params nParams = new Params(params);
-		int numItem = params.topicItem.getColumnDimension();
-		for (int i = 0; i < numItem; i++) {
-			RealVector curTopicFeat = params.topicItem.getColumnVector(i);
-			RealVector topicDescent = cGrad.topicItem.getColumnVector(i).mapMultiply(-stepSize);
-			RealVector nextTopicFeat = curTopicFeat.add(topicDescent);
-			nParams.topicItem.setColumnVector(i, nextTopicFeat);
+	/**
+	 * Make the last candidate the current params, the previous current params become the next candidate buffer
+	 */
+	public void accept() {
+		accept(0);
+	}
+	
+	/**
+	 * Same as {@link #accept()} for the last candidate of a slot
+	 */
+	public void accept(int slot) {
+		
+		Params previous = current;
+		current = candidates[slot];
+		if (ownsCurrent) {
+			candidates[slot] = previous;
+		} else {
+			candidates[slot] = copy(current);	// once, instead of writing to the caller's params
+			ownsCurrent = true;
 		}
-		return nParams;
 	}
-
-	@SuppressWarnings("unused")
-	private static Params updateUserParamsBySTE(Params cParams,  Params cGrad, double stepSize) {
-		
-		Params nParams = new Params(cParams);
-		int numUser = getNumUser(cParams);
-		for (int u = 0; u < numUser; u++) {
-			
-			RealVector curTopicFeat = cParams.topicUser.getColumnVector(u);
-			RealVector topicDescent = cGrad.topicUser.getColumnVector(u).mapMultiply( -stepSize);
-			RealVector nextTopicFeat = curTopicFeat.add(topicDescent);
-			nParams.topicUser.setColumnVector(u, nextTopicFeat);
+	
+	/**
+	 * Release the candidate buffers, the current params are kept (e.g. as the learned params)
+	 */
+	@Override
+	public void close() {
+		for (Params candidate : candidates) {
+			candidate.close();
 		}
-		return nParams;
 	}
-
 	
-
-	@SuppressWarnings("unused")
-	private static Params buildParams(Params cParams, String model) throws ParamModelMismatchException, InvalidModelException {
+	private Params copy(Params params) {
 		
-		if (model.equalsIgnoreCase("STE")) {
-			return cParams;
-		} 
-		else {
-			if (model.equalsIgnoreCase("socBIT")) {
-				if (cParams instanceof SocBIT_Params) {
-					return (SocBIT_Params) cParams;
-				} 
-				else {
-					String msg = "Input params type and model mismatch!!!";
-					throw new ParamModelMismatchException(msg);
-				}
-			} 
-			else {
-				throw new InvalidModelException();
-			}
+		if (model.equalsIgnoreCase("socBIT") || model.equalsIgnoreCase("bSTE")) {
+			return new SocBIT_Params((SocBIT_Params) params);
+		}
+		if (model.equalsIgnoreCase("soRec")) {
+			return new SoRecParams((SoRecParams) params);
 		}
+		return new Params(params);
+	}
+	
+	// the same as basic MF
+	private static void stepBySTE(Params cParams, Params cGrad, double stepSize, Params nParams) {
+		nParams.topicItem.subtractScaled(cParams.topicItem, cGrad.topicItem, stepSize);
+		nParams.topicUser.subtractScaled(cParams.topicUser, cGrad.topicUser, stepSize);
+	}
+	
+	private static void stepBySoRec(SoRecParams cParams, SoRecParams cGrad, double stepSize, SoRecParams nParams) {
+		stepBySTE(cParams, cGrad, stepSize, nParams);
+		nParams.zMatrix.subtractScaled(cParams.zMatrix, cGrad.zMatrix, stepSize);
 	}
 
-	private static int getNumUser(Params params) {
-		return params.topicUser.getColumnDimension();
+	private static void stepBySocBIT(SocBIT_Params cParams, SocBIT_Params cGrad, double stepSize, SocBIT_Params nParams) {
+		
+		stepBySTE(cParams, cGrad, stepSize, nParams);
+		nParams.brandItem.subtractScaled(cParams.brandItem, cGrad.brandItem, stepSize);
+		nParams.brandUser.subtractScaled(cParams.brandUser, cGrad.brandUser, stepSize);
+		
+		int numUser = cParams.topicUser.getColumnDimension();
+		for (int u = 0; u < numUser; u++) {
+			// user decision pref
+			nParams.userDecisionPrefs[u] = cParams.userDecisionPrefs[u] - stepSize * cGrad.userDecisionPrefs[u];
+		}
 	}
 }
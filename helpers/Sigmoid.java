@@ -0,0 +1,120 @@
+package helpers;
+
+/**
+ * Logistic function s(x) = 1 / (1 + exp(-x)) and its derivative s'(x) = s(x) (1 - s(x)), which bound the estimates of
+ * the models (see {@link UtilFuncs#cutoff(double)} and {@link UtilFuncs#logisDiff(double)}).
+ *
+ * In the exact mode (default), both come from a single exp(-x) with the same values as when computed apart:
+ * s = 1 / (1 + e), s' = e / (1 + e)^2. Arguments are clamped to -MAX_EXP_ARG so that e never overflows,
+ * hence no NaN check (s and s' are then below 1e-307). NaN arguments are not checked for.
+ *
+ * In the approximate mode, s is a cubic Hermite interpolation of a table of s and s' at steps of 1/16 over
+ * [-RANGE, RANGE], clamped to 0 and 1 outside, and s' = s (1 - s), so no exp is called. The maximum absolute error
+ * is below 6e-9 for s and 3e-9 for s' (measured on a 1e-4 grid over [-40, 40]), far below the precision of the
+ * ratings and edge weights.
+ */
+public class Sigmoid {
+
+	private static final double MAX_EXP_ARG = 709;
+	private static final double RANGE = 20;
+	private static final int STEPS_PER_UNIT = 16;
+
+	// s and s' at -RANGE + j / STEPS_PER_UNIT
+	private static final double[] VALUES;
+	private static final double[] DIFFS;
+
+	private static boolean approximate = false;
+
+	static {
+		int numNode = (int) (2 * RANGE * STEPS_PER_UNIT) + 1;
+		VALUES = new double[numNode];
+		DIFFS = new double[numNode];
+		for (int j = 0; j < numNode; j++) {
+			double e = Math.exp(-(-RANGE + (double) j / STEPS_PER_UNIT));
+			VALUES[j] = 1 / (1 + e);
+			DIFFS[j] = e / ((1 + e) * (1 + e));
+		}
+	}
+
+	public static boolean isApproximate() {
+		return approximate;
+	}
+
+	public static void setApproximate(boolean approx) {
+		approximate = approx;
+	}
+
+	public static double value(double x) {
+		if (approximate) {
+			return approxValue(x);
+		}
+		return 1 / (1 + Math.exp(-Math.max(x, -MAX_EXP_ARG)));
+	}
+
+	public static double diff(double x) {
+		if (approximate) {
+			double s = approxValue(x);
+			return s * (1 - s);
+		}
+		double e = Math.exp(-Math.max(x, -MAX_EXP_ARG));
+		return e / ((1 + e) * (1 + e));
+	}
+
+	/**
+	 * s and s' of x[from, to) in one pass, written at the same positions of {@code values} and {@code diffs}.
+	 * {@code values} may be {@code x} to bound it in place
+	 */
+	public static void eval(double[] x, int from, int to, double[] values, double[] diffs) {
+		if (approximate) {
+			for (int k = from; k < to; k++) {
+				double s = approxValue(x[k]);
+				values[k] = s;
+				diffs[k] = s * (1 - s);
+			}
+			return;
+		}
+		for (int k = from; k < to; k++) {
+			double e = Math.exp(-Math.max(x[k], -MAX_EXP_ARG));
+			double onePlusE = 1 + e;
+			values[k] = 1 / onePlusE;
+			diffs[k] = e / (onePlusE * onePlusE);
+		}
+	}
+
+	/**
+	 * Same as {@link #eval(double[], int, int, double[], double[])} without the derivatives, for evaluations of the
+	 * objective only
+	 */
+	public static void values(double[] x, int from, int to, double[] values) {
+		if (approximate) {
+			for (int k = from; k < to; k++) {
+				values[k] = approxValue(x[k]);
+			}
+			return;
+		}
+		for (int k = from; k < to; k++) {
+			values[k] = 1 / (1 + Math.exp(-Math.max(x[k], -MAX_EXP_ARG)));
+		}
+	}
+
+	private static double approxValue(double x) {
+		if (x <= -RANGE) {
+			return 0;
+		}
+		if (x >= RANGE) {
+			return 1;
+		}
+		double t = (x + RANGE) * STEPS_PER_UNIT;
+		int j = (int) t;
+		double f = t - j;
+		double h = 1.0 / STEPS_PER_UNIT;
+		// cubic Hermite basis on [node j, node j+1]
+		double f2 = f * f;
+		double f3 = f2 * f;
+		double h00 = 2 * f3 - 3 * f2 + 1;
+		double h10 = f3 - 2 * f2 + f;
+		double h01 = -2 * f3 + 3 * f2;
+		double h11 = f3 - f2;
+		return h00 * VALUES[j] + h10 * h * DIFFS[j] + h01 * VALUES[j + 1] + h11 * h * DIFFS[j + 1];
+	}
+}
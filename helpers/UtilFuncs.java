@@ -5,24 +5,11 @@ import org.apache.commons.math3.linear.RealMatrix;
 
 public class UtilFuncs {
 	
-	private static final double LOWER = -70;
-	private static final double UPPER = 70;
-
-	static double logistic(double x) {
-		return 1/(1 + Math.exp(-x));
-	}
-	
+	/**
+	 * @return derivative of the logistic function at x, see {@link Sigmoid}
+	 */
 	public static double logisDiff(double x) {
-		double invExp = Math.exp(-x);
-		double value = invExp/square(1 + invExp);
-		//XXX: value can be NaN if the square(1 + invExp) is too large
-		// in that case the value  actually converges 0
-		// we guard against NaN by returning 0 instead
-		if (!Double.isNaN(value)) {
-			return value;
-		} else {
-			return 0;
-		}
+		return Sigmoid.diff(x);
 	}
 
 	public static RealMatrix cutoff(RealMatrix matrix) {
@@ -32,26 +19,22 @@ public class UtilFuncs {
 		RealMatrix cutoffMatrix = new Array2DRowRealMatrix(rowDim, colDim);
 		for (int i = 0; i < rowDim; i++) {
 			for (int j = 0; j < colDim; j++) {
-				double entry = matrix.getEntry(i, j);
-				double logisticValue = logistic(entry);
-				if (!Double.isNaN(logisticValue)) {
-					cutoffMatrix.setEntry(i, j, logisticValue);
-				} else {
-					if (entry < LOWER) {
-						cutoffMatrix.setEntry(i, j, 0);
-					}
-					if (entry > UPPER) {
-						cutoffMatrix.setEntry(i, j, 1);
-					}
-				}
+				cutoffMatrix.setEntry(i, j, cutoff(matrix.getEntry(i, j)));
 			}
 		}
 		
 		return cutoffMatrix;
 	}
 
+	/**
+	 * @return logistic value of a single estimate, see {@link Sigmoid}
+	 */
+	public static double cutoff(double entry) {
+		return Sigmoid.value(entry);
+	}
+
 	public static double square(double d) {
-		return Math.pow(d, 2);
+		return d * d;
 	}
 
 	public static double sqFrobNorm(RealMatrix matrix) {
@@ -77,4 +60,35 @@ public class UtilFuncs {
 		}
 		return c;
 	}
+	
+	public static int[] identity(int n) {
+		int[] ids = new int[n];
+		for (int t = 0; t < n; t++) {
+			ids[t] = t;
+		}
+		return ids;
+	}
+	
+	/**
+	 * Stable counting sort of the positions in {@code order} by their keys
+	 * @param order: positions to sort
+	 * @param keys: key of each position, in [0, numKey)
+	 * @param numKey
+	 * @return positions in {@code order} sorted by key, positions with the same key keep their relative order
+	 */
+	public static int[] countingSort(int[] order, int[] keys, int numKey) {
+		
+		int[] start = new int[numKey + 1];
+		for (int t : order) {
+			start[keys[t] + 1]++;
+		}
+		for (int key = 0; key < numKey; key++) {
+			start[key + 1] += start[key];
+		}
+		int[] sorted = new int[order.length];
+		for (int t : order) {
+			sorted[start[keys[t]]++] = t;
+		}
+		return sorted;
+	}
 }
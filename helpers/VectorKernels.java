@@ -0,0 +1,79 @@
+package helpers;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Lane implementations of {@link Kernels} on heap arrays, only loaded when the vector module is available.
+ * Products and sums are separate lane operations (no fused multiply-add), so that elementwise results are the same as
+ * the scalar loops
+ */
+class VectorKernels {
+
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	static final int LANES = SPECIES.length();
+
+	static double dot(double[] x, int xOff, double[] y, int yOff, int n) {
+		int bound = SPECIES.loopBound(n);
+		DoubleVector sums = DoubleVector.zero(SPECIES);
+		int k = 0;
+		for (; k < bound; k += LANES) {
+			DoubleVector prod = DoubleVector.fromArray(SPECIES, x, xOff + k).mul(DoubleVector.fromArray(SPECIES, y, yOff + k));
+			sums = sums.add(prod);
+		}
+		double dot = sums.reduceLanes(VectorOperators.ADD);
+		for (; k < n; k++) {
+			dot += x[xOff + k] * y[yOff + k];
+		}
+		return dot;
+	}
+
+	static void scale(double a, double[] x, int xOff, double[] y, int yOff, int n) {
+		int bound = SPECIES.loopBound(n);
+		int k = 0;
+		for (; k < bound; k += LANES) {
+			DoubleVector.fromArray(SPECIES, x, xOff + k).mul(a).intoArray(y, yOff + k);
+		}
+		for (; k < n; k++) {
+			y[yOff + k] = a * x[xOff + k];
+		}
+	}
+
+	static void axpy(double a, double[] x, int xOff, double[] y, int yOff, int n) {
+		int bound = SPECIES.loopBound(n);
+		int k = 0;
+		for (; k < bound; k += LANES) {
+			DoubleVector prod = DoubleVector.fromArray(SPECIES, x, xOff + k).mul(a);
+			DoubleVector.fromArray(SPECIES, y, yOff + k).add(prod).intoArray(y, yOff + k);
+		}
+		for (; k < n; k++) {
+			y[yOff + k] += x[xOff + k] * a;
+		}
+	}
+
+	static void axpy(double a, double b, double[] x, int xOff, double[] y, int yOff, int n) {
+		int bound = SPECIES.loopBound(n);
+		int k = 0;
+		for (; k < bound; k += LANES) {
+			DoubleVector prod = DoubleVector.fromArray(SPECIES, x, xOff + k).mul(a).mul(b);
+			DoubleVector.fromArray(SPECIES, y, yOff + k).add(prod).intoArray(y, yOff + k);
+		}
+		for (; k < n; k++) {
+			y[yOff + k] += x[xOff + k] * a * b;
+		}
+	}
+
+	static void scaledAccumulate(double a, double[] x, int xOff, double b, double[] s, double[] out, int outOff, int n) {
+		int bound = SPECIES.loopBound(n);
+		int k = 0;
+		for (; k < bound; k += LANES) {
+			DoubleVector scaled = DoubleVector.fromArray(SPECIES, x, xOff + k).mul(a);
+			scaled.add(DoubleVector.fromArray(SPECIES, s, k).mul(b)).intoArray(out, outOff + k);
+		}
+		for (; k < n; k++) {
+			out[outOff + k] = x[xOff + k] * a + s[k] * b;
+		}
+	}
+}